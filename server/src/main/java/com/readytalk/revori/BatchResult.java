@@ -0,0 +1,54 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori;
+
+/**
+ * Statistics describing the outcome of a call to {@link
+ * RevisionBuilder#applyBatch(PatchTemplate, Iterable)}.
+ */
+public interface BatchResult {
+  /**
+   * Returns the number of parameter rows applied.
+   */
+  public int rows();
+
+  /**
+   * Returns the number of rows inserted where no row with the same
+   * primary key existed.
+   */
+  public int inserted();
+
+  /**
+   * Returns the number of rows inserted in place of an existing row
+   * with the same primary key, per DuplicateKeyResolution.Overwrite.
+   */
+  public int overwritten();
+
+  /**
+   * Returns the number of rows not inserted because a row with the
+   * same primary key existed, per DuplicateKeyResolution.Skip.
+   */
+  public int skipped();
+
+  /**
+   * Returns the number of rows updated.
+   */
+  public int updated();
+
+  /**
+   * Returns the number of rows deleted.
+   */
+  public int deleted();
+
+  /**
+   * Returns the total number of rows affected, i.e. the sum of the
+   * values apply(PatchTemplate, Object...) would have returned had
+   * each parameter row been applied separately.
+   */
+  public int affected();
+}
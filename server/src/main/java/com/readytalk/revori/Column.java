@@ -43,6 +43,8 @@ public final class Column<T> implements Comparable<Column<?>> {
    */
   public final boolean serializable;
 
+  private Identities.Identity identity;
+
   /**
    * Defines a column which is associated with the specified type and
    * ID.  The type specified here will be used for dynamic type
@@ -79,6 +81,21 @@ public final class Column<T> implements Comparable<Column<?>> {
     this(type, makeId());
   }
 
+  /**
+   * Returns a process-wide integer identifying this column, which is
+   * the same for all columns equal to it.  The order implied by
+   * these integers is arbitrary and may vary from process to
+   * process, so compareTo should be used wherever a stable order is
+   * required.
+   */
+  public int identity() {
+    Identities.Identity i = identity;
+    if (i == null) {
+      identity = i = Identities.identify(this);
+    }
+    return i.value;
+  }
+
   public int hashCode() {
     return id.hashCode();
   }
@@ -0,0 +1,66 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Assigns process-wide integer identities to columns, tables and
+ * indexes such that objects which are equal to each other always
+ * receive the same identity.  An identity is only remembered for as
+ * long as some object holding it is reachable, so schema objects
+ * created at runtime (e.g. the columns and tables of a query's
+ * temporary view) are not pinned in memory.
+ */
+@ThreadSafe
+class Identities {
+  /**
+   * An identity shared by a set of equal objects, each of which
+   * must hold a strong reference to it.
+   */
+  public static class Identity {
+    public final int value;
+
+    // the key under which this identity was remembered, which must
+    // stay reachable as long as any object holding this identity
+    // is, or else an equal object might receive a different one
+    private final Object key;
+
+    private Identity(int value, Object key) {
+      this.value = value;
+      this.key = key;
+    }
+  }
+
+  @GuardedBy("Identities.class")
+  private static final Map<Object, WeakReference<Identity>> identities
+    = new WeakHashMap<Object, WeakReference<Identity>>();
+
+  // start at one so that zero may be used to mean "not yet assigned"
+  @GuardedBy("Identities.class")
+  private static int next = 1;
+
+  public synchronized static Identity identify(Object o) {
+    WeakReference<Identity> reference = identities.get(o);
+    Identity identity = reference == null ? null : reference.get();
+    if (identity == null) {
+      // remove any stale entry first, since WeakHashMap.put would
+      // otherwise keep its key in place of ours
+      identities.remove(o);
+
+      identity = new Identity(next++, o);
+      identities.put(o, new WeakReference<Identity>(identity));
+    }
+    return identity;
+  }
+}
@@ -37,6 +37,8 @@ public final class Index implements Comparable<Index> {
    */
   public final List<Column<?>> columns;
 
+  private Identities.Identity identity;
+
   /**
    * Defines an index which is associated with the specified list of
    * columns.  The order of the list determines the indexing order as
@@ -88,6 +90,21 @@ public final class Index implements Comparable<Index> {
     return compareColumns(o);
   }
 
+  /**
+   * Returns a process-wide integer identifying this index, which is
+   * the same for all indexes equal to it.  The order implied by
+   * these integers is arbitrary and may vary from process to
+   * process, so compareTo should be used wherever a stable order is
+   * required.
+   */
+  public int identity() {
+    Identities.Identity i = identity;
+    if (i == null) {
+      identity = i = Identities.identify(this);
+    }
+    return i.value;
+  }
+
   public int hashCode() {
     int h = table.hashCode();
     for (Column<?> c: columns) {
@@ -109,7 +126,6 @@ public final class Index implements Comparable<Index> {
   }
 
   public boolean isPrimary() {
-    // TODO: we *should* be able to use (this == table.primaryKey) here
-    return equals(table.primaryKey);
+    return identity() == table.primaryKey.identity();
   }
 }
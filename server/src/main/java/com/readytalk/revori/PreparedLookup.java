@@ -0,0 +1,52 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Class representing a point lookup of a column by a complete key of
+ * an index, validated once so that it may be applied cheaply and
+ * repeatedly to any number of revisions via {@link
+ * Revision#query(PreparedLookup, Object)} and its overloads.  Those
+ * methods allocate nothing, so a lookup done in a tight loop creates
+ * no garbage.  Instances are immutable and may be shared across
+ * threads.
+ */
+@Immutable
+public final class PreparedLookup<T> {
+  /**
+   * The index whose key identifies the row of interest.
+   */
+  public final Index index;
+
+  /**
+   * The column whose value is to be retrieved.
+   */
+  public final Column<T> column;
+
+  public PreparedLookup(Index index, Column<T> column) {
+    this.index = index;
+    this.column = column;
+
+    if (index == null) throw new NullPointerException();
+    if (column == null) throw new NullPointerException();
+  }
+
+  /**
+   * Returns the number of key values required by this lookup, i.e.
+   * the number of columns in the index.
+   */
+  public int keySize() {
+    return index.columns.size();
+  }
+
+  public String toString() {
+    return "preparedLookup[" + index + " " + column + "]";
+  }
+}
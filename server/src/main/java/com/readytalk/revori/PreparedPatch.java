@@ -0,0 +1,39 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori;
+
+/**
+ * A patch template bound to a particular {@link RevisionBuilder}, as
+ * returned by {@link RevisionBuilder#prepare(PatchTemplate)}.  The
+ * expression trees needed to apply the template are built once, so
+ * applying it repeatedly costs little more than choosing an index
+ * for each parameter set and doing the inserts, updates, and deletes
+ * it performs.  Instances are not thread safe.
+ */
+public interface PreparedPatch {
+  /**
+   * Applies this patch to the builder it was prepared for.  This is
+   * equivalent to <code>builder.apply(template(), parameters)</code>.
+   *
+   * @return the number of rows affected by the patch
+   *
+   * @throws DuplicateKeyException if the specified patch introduces a
+   * duplicate primary key
+   *
+   * @throws ClassCastException if an inserted or updated value cannot
+   * be cast to the declared type of its column
+   */
+  public int apply(Object ... parameters)
+    throws DuplicateKeyException,
+           ClassCastException;
+
+  /**
+   * Returns the template from which this patch was prepared.
+   */
+  public PatchTemplate template();
+}
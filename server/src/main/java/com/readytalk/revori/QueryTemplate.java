@@ -21,6 +21,7 @@ import javax.annotation.concurrent.NotThreadSafe;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.primitives.Ints;
 
 /**
  * Class representing a template for queries which is not bound to any
@@ -28,6 +29,12 @@ import com.google.common.collect.ImmutableSortedSet;
  */
 @NotThreadSafe
 public final class QueryTemplate implements Comparable<QueryTemplate> {
+  /**
+   * Value of QueryTemplate.limit which indicates the number of rows
+   * in a query result is not limited.
+   */
+  public static final int Unlimited = -1;
+
   /**
    * The number of parameter expressions present in the the expression
    * list and test expression, including any parameters referenced
@@ -59,6 +66,19 @@ public final class QueryTemplate implements Comparable<QueryTemplate> {
 
   public final boolean hasAggregates;
 
+  /**
+   * The maximum number of rows a query based on this template may
+   * yield (taken after skipping QueryTemplate.offset rows), or
+   * QueryTemplate.Unlimited.
+   */
+  public final int limit;
+
+  /**
+   * The number of rows a query based on this template should skip
+   * before yielding any.
+   */
+  public final int offset;
+
   /**
    * Defines a query template with the specified expressions to be
    * evaluated, the source from which any column references in the
@@ -87,6 +107,40 @@ public final class QueryTemplate implements Comparable<QueryTemplate> {
                        Set<Expression> groupingExpressions,
                        List<OrderExpression> orderByExpressions)
   {
+    this(expressions, source, test, groupingExpressions, orderByExpressions,
+         Unlimited, 0);
+  }
+
+  /**
+   * Defines a query template whose results will be limited to at
+   * most the specified number of rows (or QueryTemplate.Unlimited),
+   * after skipping the specified number of rows.  Rows are counted in
+   * the order given by the specified order-by expressions, followed
+   * by the primary keys of the tables in the source (or by the
+   * grouping expressions, if any expression is an aggregate).
+   *
+   * @throws IllegalArgumentException if the limit is neither
+   * QueryTemplate.Unlimited nor a non-negative number, or the offset
+   * is negative
+   */
+  public QueryTemplate(List<Expression> expressions,
+                       Source source,
+                       Expression test,
+                       Set<Expression> groupingExpressions,
+                       List<OrderExpression> orderByExpressions,
+                       int limit,
+                       int offset)
+  {
+    if (limit < 0 && limit != Unlimited) {
+      throw new IllegalArgumentException("invalid limit: " + limit);
+    }
+
+    if (offset < 0) {
+      throw new IllegalArgumentException("invalid offset: " + offset);
+    }
+
+    this.limit = limit;
+    this.offset = offset;
     this.expressions = ImmutableList.copyOf(expressions);
     this.groupingExpressions = ImmutableSortedSet.copyOf(groupingExpressions);
     this.orderByExpressions = ImmutableList.copyOf(orderByExpressions);
@@ -138,14 +192,31 @@ public final class QueryTemplate implements Comparable<QueryTemplate> {
       return d;
     }
 
-    return compare(groupingExpressions, o.groupingExpressions);
+    d = compare(groupingExpressions, o.groupingExpressions);
+    if (d != 0) {
+      return d;
+    }
+
+    d = compare(orderByExpressions, o.orderByExpressions);
+    if (d != 0) {
+      return d;
+    }
+
+    d = Ints.compare(limit, o.limit);
+    if (d != 0) {
+      return d;
+    }
+
+    return Ints.compare(offset, o.offset);
   }
 
   public boolean equals(Object o) {
     return o instanceof QueryTemplate && compareTo((QueryTemplate) o) == 0;
   }
 
-  public static class OrderExpression {
+  public static class OrderExpression
+    implements Comparable<OrderExpression>
+  {
     public final Expression expression;
     public final Comparator comparator;
 
@@ -153,5 +224,44 @@ public final class QueryTemplate implements Comparable<QueryTemplate> {
       this.expression = expression;
       this.comparator = comparator;
     }
+
+    /**
+     * Orders by expression and then by comparator, with
+     * Comparators.Ascending before Comparators.Descending before any
+     * other comparator.  Other comparators are ordered by class name,
+     * and then arbitrarily but consistently.
+     */
+    public int compareTo(OrderExpression o) {
+      if (this == o) return 0;
+
+      int d = expression.compareTo(o.expression);
+      if (d != 0 || comparator == o.comparator) {
+        return d;
+      }
+
+      d = Ints.compare(rank(comparator), rank(o.comparator));
+      if (d != 0) {
+        return d;
+      }
+
+      d = comparator.getClass().getName().compareTo
+        (o.comparator.getClass().getName());
+      if (d != 0) {
+        return d;
+      }
+
+      return Ints.compare(System.identityHashCode(comparator),
+                          System.identityHashCode(o.comparator));
+    }
+
+    private static int rank(Comparator comparator) {
+      if (comparator == Comparators.Ascending) {
+        return 0;
+      } else if (comparator == Comparators.Descending) {
+        return 1;
+      } else {
+        return 2;
+      }
+    }
   }
 }
@@ -63,6 +63,28 @@ public interface Revision {
    */
   public <T> T query(Column<T> column, Index index, Object ... indexValues);
 
+  /**
+   * Retrieves the value, if any, associated with the lookup's column
+   * in the row of this revision identified by the specified key,
+   * which must be the sole column of the lookup's index.  Unlike
+   * query(Column, Index, Object...), this allocates nothing.
+   */
+  public <T> T query(PreparedLookup<T> lookup, Object key);
+
+  /**
+   * Identical to query(PreparedLookup, Object), but for indexes with
+   * two columns.
+   */
+  public <T> T query(PreparedLookup<T> lookup, Object key1, Object key2);
+
+  /**
+   * Identical to query(PreparedLookup, Object), but for indexes with
+   * any number of columns.  The key is read from
+   * key[keyOffset..keyOffset+lookup.keySize()-1], so callers may reuse
+   * a single array for many lookups.
+   */
+  public <T> T query(PreparedLookup<T> lookup, Object[] key, int keyOffset);
+
   /**
    * Retrieves any values associated with the specified column in this
    * revision, ordered by the specified index.  If indexPrefix is
@@ -72,6 +94,33 @@ public interface Revision {
   public <T> Iterator<T> queryAll(Column<T> column, Index index,
                                   Object ... indexPrefix);
 
+  /**
+   * Identical to queryAll(column, index, indexPrefix), except that
+   * the first offset matching rows are skipped.  For an index with a
+   * single column, the skipped rows are never visited, so this takes
+   * time logarithmic in the number of rows.
+   */
+  public <T> Iterator<T> queryAll(int offset, Column<T> column, Index index,
+                                  Object ... indexPrefix);
+
+  /**
+   * Returns the number of rows in this revision matching the
+   * specified index prefix, or the number of rows in the index's
+   * table if indexPrefix is empty.  This takes time logarithmic in
+   * the number of rows when no more than one column of the index is
+   * left unspecified by indexPrefix.
+   */
+  public int count(Index index, Object ... indexPrefix);
+
+  /**
+   * Returns the number of rows in this revision which precede, in the
+   * order defined by the specified index, any row matching the
+   * specified index prefix, whether or not such a row exists.  This
+   * takes time logarithmic in the number of rows for an index with a
+   * single column.
+   */
+  public int rank(Index index, Object ... indexPrefix);
+
   /**
    * Retrieves the value, if any, associated with the specified path
    * in this revision.  This is equivalent to query(path, 0,
@@ -123,7 +172,14 @@ public interface Revision {
    * The items of each row in the result are visited in the same order
    * as the expressions were specified in
    * <code>QueryTemplate.QueryTemplate(List, Source,
-   * Expression)</code>.
+   * Expression)</code>.<p>
+   *
+   * If the template has a limit or offset, the diff is instead
+   * between the windows of rows that limit and offset select from
+   * the query's (ordered) results for each revision: rows in the
+   * first revision's window but not the second's are visited as
+   * removed, followed by rows in the second revision's window but not
+   * the first's, visited as added.
    */
   public QueryResult diff(Revision fork,
                           QueryTemplate template,
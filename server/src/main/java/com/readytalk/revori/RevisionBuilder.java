@@ -7,6 +7,8 @@
 
 package com.readytalk.revori;
 
+import java.util.List;
+
 /**
  * Type used for incrementally defining a new revision by applying a
  * series of inserts, updates, and/or deletes to a base revision.
@@ -34,6 +36,39 @@ public interface RevisionBuilder {
                    Object ... parameters)
     throws DuplicateKeyException,
            ClassCastException;
+
+  /**
+   * Prepares the specified patch template for repeated application
+   * to this builder.  Applying the result is equivalent to calling
+   * apply(template, parameters), but avoids rebuilding the
+   * template's expression trees each time.
+   */
+  public PreparedPatch prepare(PatchTemplate template);
+
+  /**
+   * Applies the specified patch template once for each of the
+   * specified parameter arrays, returning statistics describing the
+   * outcome.<p>
+   *
+   * When the primary key of the row each application affects can be
+   * determined from its parameters alone (e.g. for inserts, and for
+   * updates and deletes whose tests fix the leading primary key
+   * column), the applications are done in primary key order rather
+   * than the order given, which makes each write cheaper.  Since
+   * applications affecting the same key are still done in the order
+   * given, and those affecting different keys are independent, the
+   * result is the same as applying each in turn.
+   *
+   * @throws DuplicateKeyException if the specified patch introduces a
+   * duplicate primary key
+   *
+   * @throws ClassCastException if an inserted or updated value cannot
+   * be cast to the declared type of its column
+   */
+  public BatchResult applyBatch(PatchTemplate template,
+                                Iterable<Object[]> parameters)
+    throws DuplicateKeyException,
+           ClassCastException;
   
   /**
    * Deletes any rows matching the specified path.  This is equivalent
@@ -90,6 +125,38 @@ public interface RevisionBuilder {
                                 int pathOffset,
                                 int pathLength);
 
+  /**
+   * Inserts the specified rows into the specified table.  Each row
+   * is an array of values corresponding element-for-element to the
+   * specified columns, which must include every column of the
+   * table's primary key.<p>
+   *
+   * The rows are sorted by primary key unless they are already in
+   * that order.  If the table is empty when this method is called,
+   * its data and index trees are then built directly from the sorted
+   * rows in linear time instead of by inserting each row separately,
+   * which makes this the preferred way to populate a new table.<p>
+   *
+   * Rows with duplicate primary keys, whether among the specified
+   * rows or already present in the table, are handled according to
+   * the specified DuplicateKeyResolution.  When two of the specified
+   * rows collide, the earlier one is considered to be present.
+   *
+   * @return the number of rows inserted or overwritten
+   *
+   * @throws DuplicateKeyException if the specified rows introduce a
+   * duplicate primary key and duplicateKeyResolution is Throw
+   *
+   * @throws ClassCastException if a value cannot be cast to the
+   * declared type of its column
+   */
+  public int load(DuplicateKeyResolution duplicateKeyResolution,
+                  Table table,
+                  List<Column<?>> columns,
+                  List<Object[]> rows)
+    throws DuplicateKeyException,
+           ClassCastException;
+
   /**
    * Prepares a TableBuilder to update the given table.
    * @return said table builder
@@ -127,6 +194,59 @@ public interface RevisionBuilder {
    */
   public RevisionBuilder remove(ForeignKey constraint);
 
+  /**
+   * Requests that foreign key constraints be verified in bulk when
+   * this builder is committed.  By default, commit looks up the
+   * referent of each new or updated row and the referers of each
+   * deleted or updated one, which is ideal for small changes but
+   * slow when many rows of the constrained tables have changed, as
+   * when importing related tables.  In bulk mode, commit instead
+   * verifies each constraint whose tables have changed exactly once,
+   * by scanning both of those tables in full, and in parallel with
+   * other constraints if Revisions.maintenancePool() is set.  Any
+   * broken references are passed to the ForeignKeyResolver given to
+   * commit, as usual.
+   */
+  public RevisionBuilder bulkValidateForeignKeys();
+
+  /**
+   * Identical to fork(table, null, null).
+   */
+  public RevisionBuilder fork(Table table);
+
+  /**
+   * Returns a new builder which may modify those rows of the
+   * specified table whose first primary key column value is at least
+   * low and less than high, where a null bound means the range is
+   * unbounded on that side.  The new builder starts with the rows
+   * accumulated in this builder so far and may be used on another
+   * thread, concurrently with other forks of this builder, as long as
+   * the ranges of forks of the same table do not overlap.
+   *
+   * The changes made by the returned builder are applied to this
+   * one when it is passed to join, which must be called from the
+   * thread using this builder, after the fork is no longer in use.
+   * Indexes, views, and foreign keys are brought up to date when this
+   * builder is committed, not by the fork.
+   *
+   * Until then, this builder may not modify the specified table or
+   * the schema, nor may it be committed.  Likewise, the fork may not
+   * modify any other table or the schema, and may not be committed.
+   *
+   * @throws IllegalArgumentException if the specified range overlaps
+   * that of another fork of the same table which has not been joined
+   */
+  public RevisionBuilder fork(Table table, Object low, Object high);
+
+  /**
+   * Applies the changes made by the specified builder, which must
+   * have been returned by fork on this builder, to this builder.
+   *
+   * @throws IllegalStateException if the fork modified rows outside
+   * its range
+   */
+  public void join(RevisionBuilder child);
+
   /**
    * Identical to commit(ForeignKeyResolvers.Restrict). 
    */
@@ -7,6 +7,9 @@
 
 package com.readytalk.revori;
 
+import java.util.concurrent.ForkJoinPool;
+
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import com.readytalk.revori.imp.MyRevision;
@@ -24,4 +27,30 @@ public class Revisions {
    * be derived via <code>Revision.builder()</code>.
    */
   public static final Revision Empty = MyRevision.Empty;
+
+  /**
+   * Specifies the pool to be used to bring secondary indexes and
+   * views up to date when revisions are built.  Each index or view
+   * affected by a change is updated by its own task, so a change to a
+   * heavily indexed table may use as many threads as the pool
+   * provides.  If the pool is null, all such work is done on the
+   * thread building the revision.<p>
+   *
+   * The default is null unless the
+   * <code>com.readytalk.revori.maintenanceThreads</code> system
+   * property specifies more than one thread, in which case a pool of
+   * that size is used.
+   */
+  public static void setMaintenancePool(@Nullable ForkJoinPool pool) {
+    MyRevision.setMaintenancePool(pool);
+  }
+
+  /**
+   * Returns the pool most recently specified using
+   * <code>setMaintenancePool</code>, or null if there is none.
+   */
+  @Nullable
+  public static ForkJoinPool maintenancePool() {
+    return MyRevision.maintenancePool();
+  }
 }
@@ -45,6 +45,8 @@ public class Table implements Comparable<Table> {
    */
   public final boolean serializable;
 
+  private Identities.Identity identity;
+
   /**
    * Defines a table using the specified list of columns as the
    * primary key.<p>
@@ -124,6 +126,21 @@ public class Table implements Comparable<Table> {
     return primaryKey.compareColumns(o.primaryKey);
   }
 
+  /**
+   * Returns a process-wide integer identifying this table, which is
+   * the same for all tables equal to it.  The order implied by
+   * these integers is arbitrary and may vary from process to
+   * process, so compareTo should be used wherever a stable order is
+   * required.
+   */
+  public int identity() {
+    Identities.Identity i = identity;
+    if (i == null) {
+      identity = i = Identities.identify(this);
+    }
+    return i.value;
+  }
+
   public int hashCode() {
     return id.hashCode();
   }
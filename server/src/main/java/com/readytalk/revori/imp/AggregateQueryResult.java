@@ -0,0 +1,180 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.readytalk.revori.Aggregate;
+import com.readytalk.revori.Comparators;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.ExpressionVisitor;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+
+/**
+ * Query result for a template with aggregates (but none in its test)
+ * which folds the rows of the diff into a hash table of groups, and
+ * then visits each group as an inserted row, ordered by the order-by
+ * expressions followed by the grouping expressions.  Like a temporary
+ * view of the same query, a group's aggregates reflect the rows
+ * inserted into and deleted from that group between the base and the
+ * fork, and a group is dropped if its row count falls to zero.  A
+ * template with no grouping expressions always yields a single row.
+ */
+class AggregateQueryResult extends BufferedQueryResult {
+  public AggregateQueryResult(MyRevision base,
+                              MyRevision fork,
+                              QueryTemplate template,
+                              Object[] parameters)
+  {
+    final Set<Aggregate<?>> aggregates = new TreeSet<Aggregate<?>>();
+    ExpressionVisitor visitor = new ExpressionVisitor() {
+        public void visit(Expression e) {
+          if (e instanceof Aggregate) {
+            aggregates.add((Aggregate<?>) e);
+          }
+        }
+      };
+
+    for (Expression e: template.expressions) {
+      e.visit(visitor);
+    }
+
+    for (QueryTemplate.OrderExpression e: template.orderByExpressions) {
+      e.expression.visit(visitor);
+    }
+
+    List<Expression> expressions = new ArrayList<Expression>
+      (template.expressions);
+    List<Comparator> comparators = new ArrayList<Comparator>();
+
+    for (QueryTemplate.OrderExpression e: template.orderByExpressions) {
+      expressions.add(e.expression);
+      comparators.add(e.comparator);
+    }
+
+    int groupOffset = expressions.size();
+    expressions.addAll(template.groupingExpressions);
+    for (int i = 0; i < template.groupingExpressions.size(); ++i) {
+      comparators.add(Comparators.Ascending);
+    }
+
+    int aggregateOffset = expressions.size();
+    expressions.addAll(aggregates);
+
+    int argumentOffset = expressions.size();
+    for (Aggregate<?> a: aggregates) {
+      expressions.addAll(a.expressions);
+    }
+
+    // we force the result to visit every table, even if nothing has
+    // changed, so that we have adapters for the aggregates in any
+    // case
+    MyQueryResult result = new MyQueryResult
+      (base, null, fork, null, new QueryTemplate
+       (expressions, template.source, template.test), parameters, true);
+
+    List<AggregateAdapter> adapters = new ArrayList<AggregateAdapter>();
+    for (int i = aggregateOffset; i < argumentOffset; ++i) {
+      adapters.add((AggregateAdapter) result.expressions.get(i));
+    }
+
+    int size = template.expressions.size();
+    int keySize = comparators.size();
+    int groupSize = aggregateOffset - groupOffset;
+    Map<List<Object>, Group> groups = new HashMap<List<Object>, Group>();
+
+    while (true) {
+      QueryResult.Type type = result.nextRow();
+      if (type == QueryResult.Type.End) {
+        break;
+      }
+
+      List<Object> groupKey = Arrays.asList
+        (evaluate(result.expressions, groupOffset, groupSize));
+
+      Group group = groups.get(groupKey);
+      if (group == null) {
+        group = new Group(adapters);
+        groups.put(groupKey, group);
+      }
+
+      int offset = argumentOffset;
+      for (int i = 0; i < adapters.size(); ++i) {
+        AggregateAdapter a = adapters.get(i);
+        Object[] arguments = evaluate
+          (result.expressions, offset, a.aggregate.expressions.size());
+        offset += arguments.length;
+
+        if (type == QueryResult.Type.Inserted) {
+          a.add(group.accumulations[i], arguments);
+        } else {
+          a.subtract(group.accumulations[i], arguments);
+        }
+        group.accumulations[i] = a.value;
+      }
+
+      group.count += type == QueryResult.Type.Inserted ? 1 : -1;
+
+      if (group.count == 0 && groupSize != 0) {
+        groups.remove(groupKey);
+      } else {
+        group.values = evaluate(result.expressions, 0, size);
+        group.key = evaluate(result.expressions, size, keySize);
+      }
+
+      for (AggregateAdapter a: adapters) {
+        a.value = Compare.Undefined;
+      }
+    }
+
+    if (groups.isEmpty() && groupSize == 0) {
+      // if there's no difference between the base and the fork, we
+      // need to synthesize a row containing the aggregates
+      Group group = new Group(adapters);
+      for (int i = 0; i < adapters.size(); ++i) {
+        adapters.get(i).value = group.accumulations[i];
+      }
+
+      group.values = evaluate(result.expressions, 0, size);
+      group.key = evaluate(result.expressions, size, keySize);
+      groups.put(null, group);
+
+      for (AggregateAdapter a: adapters) {
+        a.value = Compare.Undefined;
+      }
+    }
+
+    order(comparators, QueryTemplate.Unlimited);
+
+    for (Group group: groups.values()) {
+      add(QueryResult.Type.Inserted, group.values, group.key);
+    }
+  }
+
+  private static class Group {
+    public final Object[] accumulations;
+    public int count;
+    public Object[] values;
+    public Object[] key;
+
+    public Group(List<AggregateAdapter> adapters) {
+      accumulations = new Object[adapters.size()];
+      for (int i = 0; i < accumulations.length; ++i) {
+        accumulations[i] = adapters.get(i).aggregate.function.base();
+      }
+    }
+  }
+}
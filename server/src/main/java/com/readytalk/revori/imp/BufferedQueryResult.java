@@ -0,0 +1,162 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+
+/**
+ * Base class for query results which must see every row of a diff
+ * before they can produce their first, e.g. because they sort or
+ * aggregate those rows.  Subclasses collect rows in memory by calling
+ * add, after calling order if they need the rows sorted.
+ */
+abstract class BufferedQueryResult implements QueryResult {
+  private final List<Row> rows = new ArrayList<Row>();
+  private Comparator<Row> order;
+  private PriorityQueue<Row> heap;
+  private int capacity;
+  private int count;
+  private Iterator<Row> iterator;
+  private Row row;
+  private int nextItemIndex;
+
+  /**
+   * Arranges for rows to be visited in order of their keys, each
+   * element of which is compared using the corresponding comparator.
+   * Rows with equal keys are visited in the order they were added.
+   * If capacity is not QueryTemplate.Unlimited, only that many of the
+   * first rows in that order are kept, using a heap to discard the
+   * others as they are added.
+   */
+  protected void order(final List<Comparator> comparators, int capacity) {
+    order = new Comparator<Row>() {
+      public int compare(Row a, Row b) {
+        for (int i = 0; i < comparators.size(); ++i) {
+          int d = BufferedQueryResult.compare
+            (a.key[i], b.key[i], comparators.get(i));
+          if (d != 0) {
+            return d;
+          }
+        }
+        return a.sequence - b.sequence;
+      }
+    };
+
+    if (capacity != QueryTemplate.Unlimited) {
+      this.capacity = capacity;
+      heap = new PriorityQueue<Row>
+        (capacity + 1, Collections.reverseOrder(order));
+    }
+  }
+
+  protected void add(QueryResult.Type type, Object[] values, Object[] key) {
+    Row row = new Row(type, values, key, count++);
+    if (heap != null) {
+      heap.add(row);
+      if (heap.size() > capacity) {
+        heap.poll();
+      }
+    } else {
+      rows.add(row);
+    }
+  }
+
+  private Iterator<Row> iterator() {
+    if (iterator == null) {
+      if (heap != null) {
+        rows.addAll(heap);
+      }
+
+      if (order != null) {
+        Collections.sort(rows, order);
+      }
+
+      iterator = rows.iterator();
+    }
+    return iterator;
+  }
+
+  private static int compare(Object left, Object right,
+                             Comparator comparator)
+  {
+    // nulls sort first, as dummy values do in Compare.compare
+    if (left == right) {
+      return 0;
+    } else if (left == null) {
+      return -1;
+    } else if (right == null) {
+      return 1;
+    } else {
+      return Compare.compare(left, right, comparator);
+    }
+  }
+
+  /**
+   * Evaluates each of the specified expressions, replacing any
+   * undefined value with null.
+   */
+  protected static Object[] evaluate(List<ExpressionAdapter> expressions,
+                                     int offset,
+                                     int length)
+  {
+    Object[] values = new Object[length];
+    for (int i = 0; i < length; ++i) {
+      Object v = expressions.get(offset + i).evaluate(true);
+      values[i] = v == Compare.Undefined ? null : v;
+    }
+    return values;
+  }
+
+  public QueryResult.Type nextRow() {
+    if (iterator().hasNext()) {
+      row = iterator.next();
+      nextItemIndex = 0;
+      return row.type;
+    } else {
+      row = null;
+      return QueryResult.Type.End;
+    }
+  }
+
+  public Object nextItem() {
+    if (row == null || nextItemIndex >= row.values.length) {
+      throw new NoSuchElementException();
+    } else {
+      return row.values[nextItemIndex++];
+    }
+  }
+
+  public boolean rowUpdated() {
+    return false;
+  }
+
+  private static class Row {
+    public final QueryResult.Type type;
+    public final Object[] values;
+    public final Object[] key;
+    public final int sequence;
+
+    public Row(QueryResult.Type type, Object[] values, Object[] key,
+               int sequence)
+    {
+      this.type = type;
+      this.values = values;
+      this.key = key;
+      this.sequence = sequence;
+    }
+  }
+}
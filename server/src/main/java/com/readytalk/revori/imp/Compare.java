@@ -10,6 +10,7 @@ package com.readytalk.revori.imp;
 import java.util.Comparator;
 
 import com.readytalk.revori.Column;
+import com.readytalk.revori.Comparators;
 import com.readytalk.revori.Index;
 import com.readytalk.revori.Table;
 import com.readytalk.revori.imp.Interval.BoundType;
@@ -35,6 +36,14 @@ public class Compare {
       }
     };
 
+  // The following comparators order tables, indexes and columns by
+  // their process-wide identities rather than by ID strings, since
+  // they're used at every level of every path lookup.  They must
+  // only be used for the structural levels of a revision's tree (the
+  // root tree, table trees, and row trees); metadata tables such as
+  // Constants.IndexTable store schema objects as ordinary column
+  // values and use the columns' own comparators.
+
   public static Comparator TableComparator = new Comparator<Table>() {
     public int compare(Table a, Table b) {
       if (a == b) {
@@ -50,20 +59,25 @@ public class Compare {
       } else if (b.equals(Constants.IndexTable)) {
         return 1;
       } else {
-        return a.compareTo(b);
+        int d = a.order - b.order;
+        if (d != 0) {
+          return d;
+        }
+
+        return Compare.compare(a.identity(), b.identity());
       }
     }
   };
 
   public static Comparator IndexComparator = new Comparator<Index>() {
     public int compare(Index a, Index b) {
-      return a.compareTo(b);
+      return Compare.compare(a.identity(), b.identity());
     }
   };
 
   public static Comparator ColumnComparator = new Comparator<Column>() {
     public int compare(Column a, Column b) {
-      return a.compareTo(b);
+      return Compare.compare(a.identity(), b.identity());
     }
   };
 
@@ -88,16 +102,40 @@ public class Compare {
       return -1;
     } else if (right == Dummy) {
       return 1;
+    } else if (comparator == Comparators.Ascending) {
+      return compareAscending(left, right);
     } else {
       return comparator.compare(left, right);
     }
   }
 
+  /**
+   * Compares the specified keys in natural order, handling the common
+   * case of integer keys without going through Comparator.compare and
+   * Comparable.compareTo.
+   */
+  private static int compareAscending(Object left, Object right) {
+    Class c = left.getClass();
+    if (c == Integer.class && right.getClass() == Integer.class) {
+      return compare
+        (((Integer) left).intValue(), ((Integer) right).intValue());
+    } else if (c == Long.class && right.getClass() == Long.class) {
+      return compare
+        (((Long) left).longValue(), ((Long) right).longValue());
+    } else {
+      return ((Comparable) left).compareTo(right);
+    }
+  }
+
+  public static int compare(long left, long right) {
+    return left < right ? -1 : (left == right ? 0 : 1);
+  }
+
   public static boolean equal(Object left,
                               Object right,
                               Comparator comparator)
   {
-    return comparator.compare(left, right) == 0;
+    return left == right || compare(left, right, comparator) == 0;
   }
 
   public static boolean equal(Object left,
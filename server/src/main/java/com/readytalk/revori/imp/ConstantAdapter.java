@@ -16,7 +16,9 @@ class ConstantAdapter implements ExpressionAdapter {
   public static final ConstantAdapter Dummy = new ConstantAdapter
     (Compare.Dummy);
 
-  public final Object value;
+  // not final, since a parameter may be rebound to a new value each
+  // time a prepared patch is applied (see ExpressionContext.bind)
+  public Object value;
     
   public ConstantAdapter(Object value) {
     this.value = value;
@@ -9,7 +9,11 @@ package com.readytalk.revori.imp;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
+import com.readytalk.revori.BinaryOperation;
 import com.readytalk.revori.Column;
+import com.readytalk.revori.Comparators;
 import com.readytalk.revori.DeleteTemplate;
 import com.readytalk.revori.Index;
 import com.readytalk.revori.PatchTemplate;
@@ -17,81 +21,172 @@ import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.Table;
 
 class DeleteTemplateAdapter implements PatchTemplateAdapter {
-  public int apply(MyRevisionBuilder builder,
-                   PatchTemplate template,
-                   Object[] parameters)
-  {
-    DeleteTemplate delete = (DeleteTemplate) template;
+  public PreparedPatchAdapter prepare(PatchTemplate template) {
+    return new Prepared((DeleteTemplate) template);
+  }
 
-    ExpressionContext expressionContext = new ExpressionContext(parameters, null);
+  private static class Prepared implements PreparedPatchAdapter {
+    private final DeleteTemplate delete;
+    private final ExpressionContext expressionContext;
+    private final ExpressionAdapter test;
 
-    ExpressionAdapter test = ExpressionAdapterFactory.makeAdapter
-      (expressionContext, delete.test);
+    public Prepared(DeleteTemplate delete) {
+      this.delete = delete;
+
+      expressionContext = new ExpressionContext
+        (new Object[delete.parameterCount()], null);
+
+      test = ExpressionAdapterFactory.makeAdapter
+        (expressionContext, delete.test);
+    }
 
-    builder.setKey
-      (Constants.TableDataDepth, delete.tableReference.table,
-       Compare.TableComparator);
+    private Plan plan(MyRevisionBuilder builder) {
+      // see UpdateTemplateAdapter.Prepared.plan
+      return Plan.choosePlan
+        (MyRevision.Empty, NodeStack.Null, builder.result, builder.stack,
+         test, delete.tableReference);
+    }
 
-    Plan plan = Plan.choosePlan
-      (MyRevision.Empty, NodeStack.Null, builder.result, builder.stack, test,
-       delete.tableReference);
+    public Table table() {
+      return delete.tableReference.table;
+    }
 
-    builder.updateIndex(plan.index);
+    public Object[] key(MyRevisionBuilder builder, Object[] parameters) {
+      expressionContext.bind(parameters);
 
-    int count = 0;
-    MyRevision revision = builder.result;
-    Table table = delete.tableReference.table;
-    Index index = table.primaryKey;
+      Plan plan = plan(builder);
+      if (plan.index.equals(delete.tableReference.table.primaryKey)) {
+        return plan.pointPrefix();
+      } else {
+        return null;
+      }
+    }
 
-    builder.setKey(Constants.IndexDataDepth, index, Compare.IndexComparator);
+    public int apply(MyRevisionBuilder builder,
+                     Object[] parameters,
+                     @Nullable MyBatchResult statistics)
+    {
+      expressionContext.bind(parameters);
+
+      builder.setKey
+        (Constants.TableDataDepth, delete.tableReference.table,
+         Compare.TableComparator);
+
+      Plan plan = plan(builder);
+
+      builder.updateIndex(plan.index);
+
+      int count = 0;
+      MyRevision revision = builder.result;
+      Table table = delete.tableReference.table;
+      Index index = table.primaryKey;
+
+      if (index.equals(plan.index)
+          && index.columns.get(0).comparator == Comparators.Ascending
+          && isRange(test, plan.references[0]))
+      {
+        List<Interval> intervals = plan.scans[0].evaluate();
+        if (intervals.size() == 1) {
+          count = builder.deleteRange(table, intervals.get(0));
+          if (statistics != null) statistics.deleted += count;
+          return count;
+        }
+      }
 
-    TableIterator iterator = new TableIterator
-      (delete.tableReference, MyRevision.Empty, NodeStack.Null, revision,
-       new NodeStack(), test, expressionContext, plan, false);
+      builder.setKey
+        (Constants.IndexDataDepth, index, Compare.IndexComparator);
 
-    List<Column<?>> keyColumns = index.columns;
+      TableIterator iterator = new TableIterator
+        (delete.tableReference, MyRevision.Empty, NodeStack.Null, revision,
+         new NodeStack(), test, expressionContext, plan, false);
 
-    Object deleteToken = index.equals(plan.index) ? null : builder.token;
+      List<Column<?>> keyColumns = index.columns;
 
-    count = 0;
-    boolean done = false;
-    while (! done) {
-      QueryResult.Type type = iterator.nextRow();
-      switch (type) {
-      case End:
-        done = true;
-        break;
+      Token deleteToken = index.equals(plan.index) ? null : builder.token;
+
+      count = 0;
+      boolean done = false;
+      while (! done) {
+        QueryResult.Type type = iterator.nextRow();
+        switch (type) {
+        case End:
+          done = true;
+          break;
       
-      case Inserted: {
-        builder.prepareForUpdate(table);
+        case Inserted: {
+          builder.prepareForUpdate(table);
 
-        ++ count;
+          ++ count;
 
-        if (deleteToken == null) {
-          builder.setToken(deleteToken = new Object());
-        }
+          if (deleteToken == null) {
+            builder.setToken(deleteToken = new Token());
+          }
+
+          Node tree = (Node) iterator.pair.fork.value;
 
-        Node tree = (Node) iterator.pair.fork.value;
+          int i = 0;
+          for (; i < keyColumns.size() - 1; ++i) {
+            Column c = keyColumns.get(i);
+            builder.setKey
+              (i + Constants.IndexDataBodyDepth,
+               Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+          }
 
-        int i = 0;
-        for (; i < keyColumns.size() - 1; ++i) {
           Column c = keyColumns.get(i);
-          builder.setKey
+          builder.deleteKey
             (i + Constants.IndexDataBodyDepth,
              Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+        } break;
+
+        default:
+          throw new RuntimeException("unexpected result type: " + type);
         }
+      }
 
-        Column c = keyColumns.get(i);
-        builder.deleteKey
-          (i + Constants.IndexDataBodyDepth,
-           Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
-      } break;
+      if (statistics != null) statistics.deleted += count;
 
-      default:
-        throw new RuntimeException("unexpected result type: " + type);
+      return count;
+    }
+  }
+
+  /**
+   * Returns true if the specified test matches exactly those rows
+   * whose values for the specified column lie within the interval(s)
+   * produced by a scan of that test, i.e. if it is a conjunction of
+   * comparisons between that column and constants.  In that case, we
+   * can delete the matching rows without evaluating the test for
+   * each of them.
+   */
+  private static boolean isRange(ExpressionAdapter test,
+                                 ColumnReferenceAdapter reference)
+  {
+    if (test instanceof ConstantAdapter) {
+      return Boolean.TRUE.equals(((ConstantAdapter) test).value);
+    } else if (test instanceof BooleanBinaryAdapter) {
+      BooleanBinaryAdapter b = (BooleanBinaryAdapter) test;
+      return b.type == BinaryOperation.Type.And
+        && isRange(b.left, reference)
+        && isRange(b.right, reference);
+    } else if (test instanceof ComparisonAdapter && reference != null) {
+      ComparisonAdapter c = (ComparisonAdapter) test;
+      if (c.type == BinaryOperation.Type.NotEqual) {
+        return false;
+      } else if (c.left == reference) {
+        return isConstant(c.right, reference.column);
+      } else if (c.right == reference) {
+        return isConstant(c.left, reference.column);
+      } else {
+        return false;
       }
+    } else {
+      return false;
     }
+  }
 
-    return count;
+  private static boolean isConstant(ExpressionAdapter expression,
+                                    Column<?> column)
+  {
+    return expression instanceof ConstantAdapter
+      && column.type.isInstance(((ConstantAdapter) expression).value);
   }
 }
@@ -36,9 +36,10 @@ class ExpressionAdapterFactory {
       {
         ExpressionAdapter adapter = context.adapters.get(expression);
         if (adapter == null) {
-          context.adapters.put
-            (expression, adapter = new ConstantAdapter
-             (context.parameters[context.parameterIndex++]));
+          ConstantAdapter parameter = new ConstantAdapter
+            (context.parameters[context.parameterIndex++]);
+          context.adapters.put(expression, adapter = parameter);
+          context.parameterAdapters.add(parameter);
         }
 
         return adapter;
@@ -7,6 +7,7 @@
 
 package com.readytalk.revori.imp;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -20,6 +21,7 @@ import com.readytalk.revori.Expression;
 class ExpressionContext {
   public final Map<Expression, ExpressionAdapter> adapters = new TreeMap<Expression, ExpressionAdapter>();
   public final Set<ColumnReferenceAdapter> columnReferences = new HashSet<ColumnReferenceAdapter>();
+  public final List<ConstantAdapter> parameterAdapters = new ArrayList<ConstantAdapter>();
   public final Object[] parameters;
   public final List<ExpressionAdapter> queryExpressions;
   public int parameterIndex;
@@ -28,4 +30,15 @@ class ExpressionContext {
     this.parameters = parameters;
     this.queryExpressions = queryExpressions;
   }
+
+  /**
+   * Replaces the values of the parameters of the expressions built
+   * using this context with the specified values, which are matched
+   * to parameters in the order the latter were first encountered.
+   */
+  public void bind(Object[] parameters) {
+    for (int i = 0; i < parameterAdapters.size(); ++i) {
+      parameterAdapters.get(i).value = parameters[i];
+    }
+  }
 }
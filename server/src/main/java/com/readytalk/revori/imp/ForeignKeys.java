@@ -7,18 +7,32 @@
 
 package com.readytalk.revori.imp;
 
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.SourceFactory.reference;
+
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import javax.annotation.Nullable;
 
 import com.readytalk.revori.Column;
 import com.readytalk.revori.DiffResult;
+import com.readytalk.revori.Expression;
 import com.readytalk.revori.ForeignKey;
 import com.readytalk.revori.ForeignKeyException;
 import com.readytalk.revori.ForeignKeyResolver;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
 import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
 
 class ForeignKeys {
   public static void checkForeignKeys(NodeStack baseStack,
@@ -29,12 +43,184 @@ class ForeignKeys {
                                       ForeignKeyResolver resolver,
                                       @Nullable Table filter)
   {
-    MyRevision r = null;
-    while (r != builder.result) {
-      r = builder.result;
+    // resolving broken references may break others (e.g. deleting a
+    // row which is itself referred to), so we work through the
+    // changes in rounds.  Each round need only diff the revision
+    // checked by the previous round against the current one, since
+    // anything which didn't change in between has already been
+    // checked, and anything which might now be broken by a change
+    // will be found by looking at that change.
+    while (base != builder.result) {
+      MyRevision fork = builder.result;
       check(baseStack, base, forkStack, builder, scratchStack, resolver,
             filter);
+      base = fork;
+    }
+  }
+
+  /**
+   * Like checkForeignKeys, but rather than looking up the referents
+   * of each new or updated row and the referers of each deleted or
+   * updated one, verifies each constraint which may have been
+   * affected by the changes from base to builder.result once, by
+   * scanning its referent table to collect the referenced keys and
+   * then scanning its referer table for references to anything else.
+   * This is much cheaper when a large fraction of the rows in those
+   * tables has changed, as in a bulk load.  Constraints are verified
+   * in parallel if a maintenance pool has been specified.  Any
+   * broken references found are then passed to the resolver, and
+   * whatever changes it makes are checked incrementally as usual.
+   */
+  public static void validate(MyRevision base,
+                              MyRevisionBuilder builder,
+                              ForeignKeyResolver resolver)
+  {
+    final MyRevision fork = builder.result;
+    if (base == fork) {
+      return;
+    }
+
+    // ensure fork remains unmodified as we scan it:
+    builder.setToken(new Token());
+
+    List<ForeignKey> constraints = new ArrayList<ForeignKey>();
+    for (NodeIterator keys = new NodeIterator
+           (new NodeStack(), Node.pathFind
+            (fork.root, Constants.ForeignKeyTable, Compare.TableComparator,
+             Constants.ForeignKeyTable.primaryKey, Compare.IndexComparator));
+         keys.hasNext();)
+    {
+      ForeignKey constraint = (ForeignKey) keys.next().key;
+      if (changed(base, fork, constraint.refererTable)
+          || changed(base, fork, constraint.referentTable)
+          || Node.pathFind
+          (base.root, Constants.ForeignKeyTable, Compare.TableComparator,
+           Constants.ForeignKeyTable.primaryKey, Compare.IndexComparator,
+           constraint, Constants.ForeignKeyColumn.comparator) == Node.Null)
+      {
+        constraints.add(constraint);
+      }
+    }
+
+    List<List<Object[]>> broken = new ArrayList<List<Object[]>>();
+    ForkJoinPool pool = MyRevision.maintenancePool();
+    if (pool != null && constraints.size() > 1) {
+      List<ForkJoinTask<List<Object[]>>> tasks
+        = new ArrayList<ForkJoinTask<List<Object[]>>>();
+      for (final ForeignKey constraint: constraints) {
+        tasks.add(pool.submit(new Callable<List<Object[]>>() {
+          public List<Object[]> call() {
+            return brokenReferences(fork, constraint);
+          }
+        }));
+      }
+
+      for (ForkJoinTask<List<Object[]>> task: tasks) {
+        broken.add(task.join());
+      }
+    } else {
+      for (ForeignKey constraint: constraints) {
+        broken.add(brokenReferences(fork, constraint));
+      }
     }
+
+    for (int i = 0; i < constraints.size(); ++i) {
+      for (Object[] row: broken.get(i)) {
+        handleBrokenReference(resolver, builder, constraints.get(i), row);
+      }
+    }
+
+    checkForeignKeys
+      (new NodeStack(), fork, new NodeStack(), builder, new NodeStack(),
+       resolver, null);
+  }
+
+  private static boolean changed(MyRevision base,
+                                 MyRevision fork,
+                                 Table table)
+  {
+    return Node.find(base.root, table, Compare.TableComparator).value
+      != Node.find(fork.root, table, Compare.TableComparator).value;
+  }
+
+  /**
+   * Returns the primary keys of those rows of the referer table of
+   * the specified constraint which refer to nonexistent rows of its
+   * referent table.
+   */
+  private static List<Object[]> brokenReferences(MyRevision revision,
+                                                 ForeignKey constraint)
+  {
+    final List<Column<?>> referentColumns = constraint.referentColumns;
+
+    Set<Object[]> referents = new TreeSet<Object[]>
+      (new Comparator<Object[]>() {
+        public int compare(Object[] a, Object[] b) {
+          for (int i = 0; i < a.length; ++i) {
+            int d = Compare.compare
+              (a[i], b[i], referentColumns.get(i).comparator);
+            if (d != 0) {
+              return d;
+            }
+          }
+          return 0;
+        }
+      });
+
+    TableReference referent = reference(constraint.referentTable);
+    List<Expression> referentExpressions = new ArrayList<Expression>();
+    for (Column<?> c: referentColumns) {
+      referentExpressions.add(reference(referent, c));
+    }
+
+    QueryResult result = MyRevision.Empty.diff
+      (revision, new QueryTemplate
+       (referentExpressions, referent, constant(true)));
+
+    while (result.nextRow() == QueryResult.Type.Inserted) {
+      Object[] key = new Object[referentColumns.size()];
+      for (int i = 0; i < key.length; ++i) {
+        key[i] = result.nextItem();
+      }
+      referents.add(key);
+    }
+
+    TableReference referer = reference(constraint.refererTable);
+    List<Column<?>> keyColumns = referer.table.primaryKey.columns;
+    List<Expression> refererExpressions = new ArrayList<Expression>();
+    for (Column<?> c: keyColumns) {
+      refererExpressions.add(reference(referer, c));
+    }
+    for (Column<?> c: constraint.refererColumns) {
+      refererExpressions.add(reference(referer, c));
+    }
+
+    result = MyRevision.Empty.diff
+      (revision, new QueryTemplate
+       (refererExpressions, referer, constant(true)));
+
+    List<Object[]> broken = new ArrayList<Object[]>();
+    Object[] key = new Object[referentColumns.size()];
+    while (result.nextRow() == QueryResult.Type.Inserted) {
+      Object[] row = new Object[keyColumns.size()];
+      for (int i = 0; i < row.length; ++i) {
+        row[i] = result.nextItem();
+      }
+
+      for (int i = 0; i < key.length; ++i) {
+        key[i] = result.nextItem();
+        if (key[i] == null) {
+          // consistent with RefererForeignKeyAdapter.isBrokenReference
+          throw new NullPointerException();
+        }
+      }
+
+      if (! referents.contains(key)) {
+        broken.add(row);
+      }
+    }
+
+    return broken;
   }
 
   private static void check(NodeStack baseStack,
@@ -48,7 +234,7 @@ class ForeignKeys {
     MyRevision fork = builder.result;
 
     // ensure fork remains unmodified as we iterate over it:
-    builder.setToken(new Object());
+    builder.setToken(new Token());
         
     MyDiffResult result = new MyDiffResult
       (base, baseStack, fork, forkStack, false);
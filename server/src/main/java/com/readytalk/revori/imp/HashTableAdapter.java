@@ -0,0 +1,69 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds rows matching each value of the left side of a hash join by
+ * looking them up in a hash table built from a single pass over the
+ * right side's table.
+ */
+class HashTableAdapter extends KeyedTableAdapter {
+  private final Map<Object, List<Row>> rows
+    = new HashMap<Object, List<Row>>();
+
+  public HashTableAdapter(TableAdapter table,
+                          ColumnReferenceAdapter key,
+                          ExpressionAdapter probe,
+                          MyRevision base,
+                          MyRevision fork)
+  {
+    super(table, key, probe, base, fork);
+
+    // we use a separate, empty expression context here so that none
+    // of the query's column references are disturbed
+    TableIterator iterator = new TableIterator
+      (table.tableReference, base, new NodeStack(), fork, new NodeStack(),
+       ConstantAdapter.True, new ExpressionContext(null, null), true);
+
+    for (Row row = next(iterator); row != null; row = next(iterator)) {
+      Object baseKey = row.base == null ? null : Node.find
+        (row.base, key.column, Compare.ColumnComparator).value();
+      Object forkKey = row.fork == null ? null : Node.find
+        (row.fork, key.column, Compare.ColumnComparator).value();
+
+      // a null key can never satisfy an equality test, so there's no
+      // need to remember rows under one
+      if (baseKey != null) {
+        add(baseKey, row);
+      }
+
+      if (forkKey != null && (! forkKey.equals(baseKey))) {
+        add(forkKey, row);
+      }
+    }
+  }
+
+  private void add(Object key, Row row) {
+    List<Row> list = rows.get(key);
+    if (list == null) {
+      rows.put(key, list = new ArrayList<Row>());
+    }
+    list.add(row);
+  }
+
+  protected List<Row> rows(Object value) {
+    List<Row> list = rows.get(value);
+    return list == null ? Collections.<Row>emptyList() : list;
+  }
+}
@@ -7,10 +7,10 @@
 
 package com.readytalk.revori.imp;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+
+import javax.annotation.Nullable;
 
 import com.readytalk.revori.Column;
 import com.readytalk.revori.DuplicateKeyException;
@@ -18,71 +18,114 @@ import com.readytalk.revori.Expression;
 import com.readytalk.revori.Index;
 import com.readytalk.revori.InsertTemplate;
 import com.readytalk.revori.PatchTemplate;
+import com.readytalk.revori.Table;
 
 class InsertTemplateAdapter implements PatchTemplateAdapter {
-	public int apply(MyRevisionBuilder builder, PatchTemplate template, Object[] parameters) {
-		InsertTemplate insert = (InsertTemplate) template;
-
-		ExpressionContext expressionContext = new ExpressionContext(parameters, null);
-
-		Map<Column<?>, Object> map = new HashMap<Column<?>, Object>();
-		Iterator<Column<?>> columnIterator = insert.columns.iterator();
-		Iterator<Expression> valueIterator = insert.values.iterator();
-		while (columnIterator.hasNext()) {
-			Column<?> column = columnIterator.next();
-
-			map.put(column, Compare.validate(
-					ExpressionAdapterFactory.makeAdapter(expressionContext, valueIterator.next()).evaluate(false),
-					column.type));
-		}
-      
-    Node tree = Node.Null;
-    Node.BlazeResult result = new Node.BlazeResult();
-    for (Column<?> c: insert.columns) {
-      tree = Node.blaze
-        (result, builder.token, builder.stack, tree, c,
-         Compare.ColumnComparator);
-      result.node.value = map.get(c);
-    }
+  public PreparedPatchAdapter prepare(PatchTemplate template) {
+    return new Prepared((InsertTemplate) template);
+  }
 
-    builder.prepareForUpdate(insert.table);
+  private static class Prepared implements PreparedPatchAdapter {
+    private final InsertTemplate insert;
+    private final ExpressionContext expressionContext;
+    private final ExpressionAdapter[] valueAdapters;
+    private final int[] keyPositions;
 
-    Index index = insert.table.primaryKey;
+    public Prepared(InsertTemplate insert) {
+      this.insert = insert;
 
-    builder.setKey(Constants.TableDataDepth, insert.table,
-                   Compare.TableComparator);
-    builder.setKey(Constants.IndexDataDepth, index, Compare.IndexComparator);
+      expressionContext = new ExpressionContext
+        (new Object[insert.parameterCount()], null);
 
-    List<Column<?>> columns = index.columns;
-    int i;
-    for (i = 0; i < columns.size() - 1; ++i) {
-      Column c = columns.get(i);
-      builder.setKey
-        (i + Constants.IndexDataBodyDepth, map.get(c), c.comparator);
+      valueAdapters = new ExpressionAdapter[insert.columns.size()];
+      Iterator<Expression> valueIterator = insert.values.iterator();
+      for (int i = 0; i < valueAdapters.length; ++i) {
+        valueAdapters[i] = ExpressionAdapterFactory.makeAdapter
+          (expressionContext, valueIterator.next());
+      }
+
+      List<Column<?>> columns = insert.table.primaryKey.columns;
+      keyPositions = new int[columns.size()];
+      for (int i = 0; i < keyPositions.length; ++i) {
+        keyPositions[i] = insert.columns.lastIndexOf(columns.get(i));
+      }
     }
 
-    Column c = columns.get(i);
-    Node n = builder.blaze
-      (i + Constants.IndexDataBodyDepth, map.get(c), c.comparator);
+    public Table table() {
+      return insert.table;
+    }
 
-    if (n.value == Node.Null) {
-      n.value = tree;
-      return 1;
-    } else {
-      switch (insert.duplicateKeyResolution) {
-      case Skip:
-        return 0;
+    public Object[] key(MyRevisionBuilder builder, Object[] parameters) {
+      expressionContext.bind(parameters);
 
-      case Overwrite:
-        n.value = tree;
-        return 1;
+      List<Column<?>> columns = insert.table.primaryKey.columns;
+      Object[] key = new Object[keyPositions.length];
+      for (int i = 0; i < key.length; ++i) {
+        key[i] = Compare.validate
+          (valueAdapters[keyPositions[i]].evaluate(false),
+           columns.get(i).type);
+      }
+      return key;
+    }
 
-      case Throw:
-        throw new DuplicateKeyException();
+    public int apply(MyRevisionBuilder builder,
+                     Object[] parameters,
+                     @Nullable MyBatchResult statistics)
+    {
+      expressionContext.bind(parameters);
 
-      default:
-        throw new RuntimeException
-          ("unexpected resolution: " + insert.duplicateKeyResolution);
+      Object[] values = new Object[valueAdapters.length];
+      for (int i = 0; i < values.length; ++i) {
+        values[i] = Compare.validate
+          (valueAdapters[i].evaluate(false), insert.columns.get(i).type);
+      }
+
+      Node tree = builder.makeRow(insert.columns, values);
+
+      builder.prepareForUpdate(insert.table);
+
+      Index index = insert.table.primaryKey;
+
+      builder.setKey(Constants.TableDataDepth, insert.table,
+                     Compare.TableComparator);
+      builder.setKey(Constants.IndexDataDepth, index, Compare.IndexComparator);
+
+      List<Column<?>> columns = index.columns;
+      int i;
+      for (i = 0; i < columns.size() - 1; ++i) {
+        Column c = columns.get(i);
+        builder.setKey
+          (i + Constants.IndexDataBodyDepth, values[keyPositions[i]],
+           c.comparator);
+      }
+
+      Column c = columns.get(i);
+      Node n = builder.blaze
+        (i + Constants.IndexDataBodyDepth, values[keyPositions[i]],
+         c.comparator);
+
+      if (n.value == Node.Null) {
+        n.value = tree;
+        if (statistics != null) ++ statistics.inserted;
+        return 1;
+      } else {
+        switch (insert.duplicateKeyResolution) {
+        case Skip:
+          if (statistics != null) ++ statistics.skipped;
+          return 0;
+
+        case Overwrite:
+          n.value = tree;
+          if (statistics != null) ++ statistics.overwritten;
+          return 1;
+
+        case Throw:
+          throw new DuplicateKeyException();
+
+        default:
+          throw new RuntimeException
+            ("unexpected resolution: " + insert.duplicateKeyResolution);
+        }
       }
     }
   }
@@ -7,12 +7,27 @@
 
 package com.readytalk.revori.imp;
 
+import java.util.HashSet;
+import java.util.Set;
+
+import com.readytalk.revori.BinaryOperation;
+import com.readytalk.revori.Index;
 import com.readytalk.revori.Join;
+import com.readytalk.revori.TableReference;
 
 class JoinAdapter implements SourceAdapter {
+  private static final int SwapThreshold = 2;
+  private static final int LookupCost = 8;
+
   public final Join.Type type;
   public final SourceAdapter left;
   public final SourceAdapter right;
+  private JoinAdapter swapped;
+  private boolean planned;
+  public ColumnReferenceAdapter buildKey;
+  public ExpressionAdapter probeKey;
+  public Index leftIndex;
+  public Index rightIndex;
 
   public JoinAdapter(Join.Type type,
                      SourceAdapter left,
@@ -31,9 +46,300 @@ class JoinAdapter implements SourceAdapter {
                                  ExpressionContext expressionContext,
                                  boolean visitUnchanged)
   {
-    return new JoinIterator
-      (this, base, baseStack, fork, forkStack, test, expressionContext,
-       visitUnchanged);
+    if (! planned) {
+      plan(base, baseStack, fork, forkStack, test);
+    }
+
+    if (swapped != null && base.root == Node.Null) {
+      return swapped.iterator
+        (base, baseStack, fork, forkStack, test, expressionContext,
+         visitUnchanged);
+    } else if (buildKey != null) {
+      // a hash or merge join is just a nested loop join whose inner
+      // loop finds matching rows without scanning the right side's
+      // table each time:
+      TableAdapter table = (TableAdapter) right;
+      JoinAdapter join;
+      if (rightIndex == null) {
+        join = new JoinAdapter
+          (type, left, new HashTableAdapter
+           (table, buildKey, probeKey, base, fork));
+      } else {
+        join = new JoinAdapter
+          (type, new TableAdapter
+           (((TableAdapter) left).tableReference, leftIndex),
+           new MergeTableAdapter
+           (table, rightIndex, buildKey, probeKey, base, fork));
+      }
+      join.planned = true;
+
+      return new JoinIterator
+        (join, base, baseStack, fork, forkStack, test, expressionContext,
+         visitUnchanged);
+    } else {
+      return new JoinIterator
+        (this, base, baseStack, fork, forkStack, test, expressionContext,
+         visitUnchanged);
+    }
+  }
+
+  /**
+   * Decides how to iterate over this join.  The result of an inner
+   * join doesn't depend on which side is on the outside of the loop,
+   * so if the right side is a table whose best plan visits
+   * substantially fewer entries than the left side's, we swap them.
+   * Then, if the test equates a column of the (possibly new) right
+   * side with a column of the left side, we consider two
+   * alternatives to looking up matching rows in the right side for
+   * each row of the left side: if both sides are tables with indexes
+   * ordered by their join columns, and walking both of those indexes
+   * is estimated to be cheaper than the lookups, we use a merge join;
+   * otherwise, if the right side has no index we could use for the
+   * lookups, we use a hash join, building the hash table from
+   * whichever side is smaller (for an inner join).  The decision is
+   * made once, the first time this join is iterated, when neither
+   * side's column references have been bound yet.
+   *
+   * <p>Swapping is only safe when the base is empty.  Otherwise, a
+   * left row whose selected columns are unchanged is visited as
+   * unchanged even if its join columns have changed, and its matches
+   * are looked up using the old values of those columns.  That's
+   * fine for the side chosen by the query, but it would yield
+   * spurious rows if we chose the other.  Since a nested join may be
+   * iterated with an empty base at first and a non-empty one later,
+   * we plan this join unswapped as well whenever we swap it.
+   */
+  private void plan(MyRevision base,
+                    NodeStack baseStack,
+                    MyRevision fork,
+                    NodeStack forkStack,
+                    ExpressionAdapter test)
+  {
+    planned = true;
+
+    JoinAdapter join = this;
+    double leftCost = 0;
+    double rightCost = 0;
+    boolean tables = left instanceof TableAdapter
+      && right instanceof TableAdapter;
+    boolean swap = type == Join.Type.Inner && tables
+      && base.root == Node.Null;
+
+    if (tables) {
+      leftCost = ((TableAdapter) left).estimate
+        (base, baseStack, fork, forkStack, test);
+      rightCost = ((TableAdapter) right).estimate
+        (base, baseStack, fork, forkStack, test);
+
+      if (swap && rightCost * SwapThreshold < leftCost) {
+        join = swap();
+      }
+    }
+
+    if (join == this) {
+      join = planKeys
+        (base, baseStack, fork, forkStack, test, tables, leftCost,
+         rightCost, swap);
+    } else {
+      join = join.planKeys
+        (base, baseStack, fork, forkStack, test, tables, rightCost,
+         leftCost, swap);
+    }
+
+    if (join != this) {
+      swapped = join;
+      planKeys(base, baseStack, fork, forkStack, test, tables, leftCost,
+               rightCost, false);
+    }
+  }
+
+  /**
+   * Sets this join up as a merge or hash join if the test equates a
+   * column of the right side with a column of the left side and the
+   * right side has no index we could use to look up matches instead.
+   * Returns this join, or, if swapping is allowed and the left side
+   * is the smaller one to build a hash table from, a swapped copy set
+   * up in its place.
+   */
+  private JoinAdapter planKeys(MyRevision base,
+                               NodeStack baseStack,
+                               MyRevision fork,
+                               NodeStack forkStack,
+                               ExpressionAdapter test,
+                               boolean tables,
+                               double leftCost,
+                               double rightCost,
+                               boolean swap)
+  {
+    JoinAdapter join = this;
+    if (right instanceof TableAdapter) {
+      TableAdapter right = (TableAdapter) this.right;
+      ComparisonAdapter equality = findEquality
+        (test, right.tableReference, tableReferences(left));
+
+      if (equality != null
+          && (! (tables && merge
+                 (base, baseStack, fork, forkStack, test, equality,
+                  leftCost)))
+          && (! indexed(base, baseStack, fork, forkStack, test, right,
+                        equality)))
+      {
+        if (swap && leftCost < rightCost) {
+          join = swap();
+        }
+
+        join.setKeys(equality);
+      }
+    }
+    return join;
+  }
+
+  /**
+   * Sets this join up as a merge join on the specified equality and
+   * returns true if both sides have indexes ordered by their
+   * respective columns of that equality, and walking both is
+   * estimated to cost no more than looking up matches in the right
+   * side for each of the specified number of left side rows.
+   * Otherwise, returns false.
+   */
+  private boolean merge(MyRevision base,
+                        NodeStack baseStack,
+                        MyRevision fork,
+                        NodeStack forkStack,
+                        ExpressionAdapter test,
+                        ComparisonAdapter equality,
+                        double leftCost)
+  {
+    setKeys(equality);
+
+    TableReference leftReference = ((TableAdapter) left).tableReference;
+    TableReference rightReference = ((TableAdapter) right).tableReference;
+    ColumnReferenceAdapter probe = (ColumnReferenceAdapter) probeKey;
+
+    Index leftIndex = Plan.orderedIndex
+      (base, baseStack, fork, forkStack, leftReference, probe.column);
+    Index rightIndex = Plan.orderedIndex
+      (base, baseStack, fork, forkStack, rightReference, buildKey.column);
+
+    if (leftIndex != null
+        && rightIndex != null
+        && probe.column.type == buildKey.column.type
+        && leftIndex.columns.get(0).comparator
+        == rightIndex.columns.get(0).comparator
+        && Plan.choosePlan(leftIndex, test, leftReference, base, fork).cost
+        + Plan.choosePlan(rightIndex, test, rightReference, base, fork).cost
+        <= leftCost * LookupCost)
+    {
+      this.leftIndex = leftIndex;
+      this.rightIndex = rightIndex;
+      return true;
+    } else {
+      buildKey = null;
+      probeKey = null;
+      return false;
+    }
+  }
+
+  private JoinAdapter swap() {
+    JoinAdapter join = new JoinAdapter(type, right, left);
+    join.planned = true;
+    return join;
+  }
+
+  private void setKeys(ComparisonAdapter equality) {
+    TableReference reference = ((TableAdapter) right).tableReference;
+    if (equality.left instanceof ColumnReferenceAdapter
+        && ((ColumnReferenceAdapter) equality.left).tableReference
+        == reference)
+    {
+      buildKey = (ColumnReferenceAdapter) equality.left;
+      probeKey = equality.right;
+    } else {
+      buildKey = (ColumnReferenceAdapter) equality.right;
+      probeKey = equality.left;
+    }
+  }
+
+  /**
+   * Returns true if, given a value for the left side of the specified
+   * equality, the best plan for the specified table would use it to
+   * look up rows directly.
+   */
+  private static boolean indexed(MyRevision base,
+                                 NodeStack baseStack,
+                                 MyRevision fork,
+                                 NodeStack forkStack,
+                                 ExpressionAdapter test,
+                                 TableAdapter table,
+                                 ComparisonAdapter equality)
+  {
+    ColumnReferenceAdapter other = (ColumnReferenceAdapter)
+      (((ColumnReferenceAdapter) equality.left).tableReference
+       == table.tableReference ? equality.right : equality.left);
+
+    Object value = other.value;
+    other.value = Compare.Dummy;
+    try {
+      Plan plan = Plan.choosePlan
+        (base, baseStack, fork, forkStack, test, table.tableReference);
+
+      return plan.scans[0].isUseful()
+        && plan.references[0] != null
+        && (plan.references[0] == equality.left
+            || plan.references[0] == equality.right);
+    } finally {
+      other.value = value;
+    }
+  }
+
+  private static Set<TableReference> tableReferences(SourceAdapter source) {
+    final Set<TableReference> set = new HashSet<TableReference>();
+    source.visit(new SourceAdapterVisitor() {
+        public void visit(SourceAdapter source) {
+          if (source instanceof TableAdapter) {
+            set.add(((TableAdapter) source).tableReference);
+          }
+        }
+      });
+    return set;
+  }
+
+  /**
+   * Finds a conjunct of the specified test which equates a column of
+   * the specified table reference with a column of one of the
+   * specified other table references, or returns null if there is no
+   * such conjunct.
+   */
+  private static ComparisonAdapter findEquality
+    (ExpressionAdapter test,
+     TableReference reference,
+     Set<TableReference> others)
+  {
+    if (test instanceof BooleanBinaryAdapter) {
+      BooleanBinaryAdapter b = (BooleanBinaryAdapter) test;
+      if (b.type == BinaryOperation.Type.And) {
+        ComparisonAdapter c = findEquality(b.left, reference, others);
+        return c == null ? findEquality(b.right, reference, others) : c;
+      }
+    } else if (test instanceof ComparisonAdapter) {
+      ComparisonAdapter c = (ComparisonAdapter) test;
+      if (c.type == BinaryOperation.Type.Equal
+          && c.left instanceof ColumnReferenceAdapter
+          && c.right instanceof ColumnReferenceAdapter)
+      {
+        TableReference left = ((ColumnReferenceAdapter) c.left)
+          .tableReference;
+        TableReference right = ((ColumnReferenceAdapter) c.right)
+          .tableReference;
+
+        if ((left == reference && others.contains(right))
+            || (right == reference && others.contains(left)))
+        {
+          return c;
+        }
+      }
+    }
+    return null;
   }
 
   public void visit(SourceAdapterVisitor visitor) {
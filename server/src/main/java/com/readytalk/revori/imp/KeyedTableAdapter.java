@@ -0,0 +1,180 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.readytalk.revori.QueryResult;
+
+/**
+ * Base class for adapters which stand in for a table on the right
+ * side of an equi-join.  Rather than planning and running a fresh
+ * table scan for each row of the left side, as a TableAdapter would,
+ * these look up the rows whose join column matches the left side's
+ * current value (via rows(Object)) among rows gathered from a single
+ * pass over the table, then classify them just as a TableIterator
+ * would have.  An instance is bound to the base and fork revisions
+ * of a single JoinIterator.
+ */
+abstract class KeyedTableAdapter implements SourceAdapter {
+  public enum Mode {
+    /**
+     * Report differences between the base and fork versions of each
+     * row.
+     */
+    Diff,
+
+    /**
+     * Report the base version of each row as inserted.
+     */
+    Base,
+
+    /**
+     * Report the fork version of each row as inserted.
+     */
+    Fork;
+  }
+
+  public final TableAdapter table;
+  public final ColumnReferenceAdapter key;
+  public final ExpressionAdapter probe;
+  public final MyRevision base;
+  public final MyRevision fork;
+  private List<ColumnReferenceAdapter> columnReferences;
+
+  public KeyedTableAdapter(TableAdapter table,
+                           ColumnReferenceAdapter key,
+                           ExpressionAdapter probe,
+                           MyRevision base,
+                           MyRevision fork)
+  {
+    this.table = table;
+    this.key = key;
+    this.probe = probe;
+    this.base = base;
+    this.fork = fork;
+  }
+
+  /**
+   * Returns the rows whose value for the join column is equal to the
+   * specified value, which will not be null.
+   */
+  protected abstract List<Row> rows(Object value);
+
+  public SourceIterator iterator(MyRevision base,
+                                 NodeStack baseStack,
+                                 MyRevision fork,
+                                 NodeStack forkStack,
+                                 ExpressionAdapter test,
+                                 ExpressionContext expressionContext,
+                                 boolean visitUnchanged)
+  {
+    if (columnReferences == null) {
+      columnReferences = new ArrayList<ColumnReferenceAdapter>();
+      for (ColumnReferenceAdapter r: expressionContext.columnReferences) {
+        if (r.tableReference == table.tableReference) {
+          columnReferences.add(r);
+        }
+      }
+    }
+
+    // JoinIterator asks for either the differences between our base
+    // and fork, or the contents of one of them compared to an empty
+    // revision:
+    Mode mode;
+    if (base == this.base && fork == this.fork) {
+      mode = Mode.Diff;
+    } else if (fork == this.fork) {
+      mode = Mode.Fork;
+    } else {
+      mode = Mode.Base;
+    }
+
+    Object value = probe.evaluate(false);
+
+    // a null never satisfies an equality test, and neither does a
+    // dummy value from the unmatched side of an outer join
+    List<Row> rows = value == null || value == Compare.Dummy
+      ? Collections.<Row>emptyList() : rows(value);
+
+    return new KeyedTableIterator
+      (rows, mode, test, expressionContext, columnReferences,
+       visitUnchanged);
+  }
+
+  public void visit(SourceAdapterVisitor visitor) {
+    table.visit(visitor);
+  }
+
+  public void visit(ExpressionContext expressionContext,
+                    ColumnReferenceAdapterVisitor visitor)
+  {
+    table.visit(expressionContext, visitor);
+  }
+
+  /**
+   * Returns the value of the join column for the specified row.
+   */
+  protected Object key(Row row) {
+    return Node.find
+      (row.base == null ? row.fork : row.base, key.column,
+       Compare.ColumnComparator).value();
+  }
+
+  /**
+   * Returns the next row from the specified iterator, which must have
+   * been created with a test which is always true and with
+   * visitUnchanged set to true, or null if there are no more rows.
+   */
+  protected static Row next(TableIterator iterator) {
+    QueryResult.Type type = iterator.nextRow();
+    switch (type) {
+    case End:
+      return null;
+
+    case Unchanged:
+      return new Row((Node) iterator.pair.base.value,
+                     (Node) iterator.pair.fork.value);
+
+    case Deleted:
+      if (iterator.pair.fork == null) {
+        return new Row((Node) iterator.pair.base.value, null);
+      } else {
+        Row row = new Row((Node) iterator.pair.base.value,
+                          (Node) iterator.pair.fork.value);
+
+        // the iterator will report the fork version of this row
+        // next, but we've already got it:
+        iterator.nextRow();
+
+        return row;
+      }
+
+    case Inserted:
+      return new Row(null, (Node) iterator.pair.fork.value);
+
+    default:
+      throw new RuntimeException("unexpected result type: " + type);
+    }
+  }
+
+  /**
+   * The base and fork versions of a row, either of which may be null.
+   */
+  public static class Row {
+    public final Node base;
+    public final Node fork;
+
+    public Row(Node base, Node fork) {
+      this.base = base;
+      this.fork = fork;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.imp.KeyedTableAdapter.Mode;
+import com.readytalk.revori.imp.KeyedTableAdapter.Row;
+
+/**
+ * Iterates over rows found by a KeyedTableAdapter, testing and
+ * classifying them just as a TableIterator over the same revisions
+ * would.
+ */
+class KeyedTableIterator implements SourceIterator {
+  public final Iterator<Row> rows;
+  public final Mode mode;
+  public final ExpressionAdapter test;
+  public final ExpressionContext expressionContext;
+  public final List<ColumnReferenceAdapter> columnReferences;
+  public final boolean visitUnchanged;
+  public Node pendingFork;
+
+  public KeyedTableIterator(List<Row> rows,
+                            Mode mode,
+                            ExpressionAdapter test,
+                            ExpressionContext expressionContext,
+                            List<ColumnReferenceAdapter> columnReferences,
+                            boolean visitUnchanged)
+  {
+    this.rows = rows.iterator();
+    this.mode = mode;
+    this.test = test;
+    this.expressionContext = expressionContext;
+    this.columnReferences = columnReferences;
+    this.visitUnchanged = visitUnchanged;
+  }
+
+  public QueryResult.Type nextRow() {
+    if (pendingFork != null) {
+      Node fork = pendingFork;
+      pendingFork = null;
+      if (test(fork)) {
+        return QueryResult.Type.Inserted;
+      }
+    }
+
+    while (rows.hasNext()) {
+      Row row = rows.next();
+      switch (mode) {
+      case Diff:
+        // see TableIterator.nextRow
+        if (test(row.base)) {
+          if (row.fork == null) {
+            return QueryResult.Type.Deleted;
+          } else if (row.base == row.fork || equal(row)) {
+            if (visitUnchanged) {
+              return QueryResult.Type.Unchanged;
+            }
+          } else {
+            pendingFork = row.fork;
+            return QueryResult.Type.Deleted;
+          }
+        } else if (test(row.fork)) {
+          return QueryResult.Type.Inserted;
+        }
+        break;
+
+      case Base:
+        if (test(row.base)) {
+          return QueryResult.Type.Inserted;
+        }
+        break;
+
+      case Fork:
+        if (test(row.fork)) {
+          return QueryResult.Type.Inserted;
+        }
+        break;
+
+      default: throw new RuntimeException("unexpected mode: " + mode);
+      }
+    }
+
+    for (ColumnReferenceAdapter r: columnReferences) {
+      r.value = Compare.Undefined;
+    }
+
+    return QueryResult.Type.End;
+  }
+
+  public boolean rowUpdated() {
+    return false;
+  }
+
+  private void bind(Node tree) {
+    for (ColumnReferenceAdapter r: columnReferences) {
+      TableIterator.setValue(r, tree);
+    }
+  }
+
+  private boolean test(Node tree) {
+    if (tree != null) {
+      bind(tree);
+      return test.evaluate(false) != Boolean.FALSE;
+    } else {
+      return false;
+    }
+  }
+
+  private boolean equal(Row row) {
+    if (expressionContext.queryExpressions == null) {
+      return Node.treeEqual(NodeStack.Null, row.base, NodeStack.Null,
+                            row.fork, Compare.ColumnComparator);
+    } else {
+      bind(row.fork);
+      Object[] forkValues = evaluate(expressionContext.queryExpressions);
+      bind(row.base);
+      Object[] baseValues = evaluate(expressionContext.queryExpressions);
+      return Arrays.equals(baseValues, forkValues);
+    }
+  }
+
+  private static Object[] evaluate(List<ExpressionAdapter> expressions) {
+    Object[] values = new Object[expressions.size()];
+    int i = 0;
+    for (ExpressionAdapter e: expressions) {
+      values[i++] = e.evaluate(false);
+    }
+    return values;
+  }
+}
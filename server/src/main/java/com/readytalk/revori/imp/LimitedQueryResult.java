@@ -0,0 +1,95 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+
+/**
+ * Query result for a template with a limit or offset.  The result of
+ * such a query for a single revision is the window of rows selected
+ * by the limit and offset from the (ordered) result of the same query
+ * without them.  The diff between two revisions is then the
+ * difference between their windows: rows in the base window but not
+ * the fork window are visited as deleted, followed by rows in the
+ * fork window but not the base window, visited as inserted, each in
+ * window order.  Thus a row may be deleted or inserted merely
+ * because other rows have moved it into or out of the window.  As
+ * for other queries, the window of the empty revision is empty, even
+ * for a query with aggregates.
+ */
+class LimitedQueryResult extends BufferedQueryResult {
+  public LimitedQueryResult(MyRevision base,
+                            MyRevision fork,
+                            QueryTemplate template,
+                            Object[] parameters)
+  {
+    if (base != fork && template.limit != 0) {
+      List<List<Object>> baseRows = window(base, template, parameters);
+      List<List<Object>> forkRows = window(fork, template, parameters);
+
+      Multiset<List<Object>> set = HashMultiset.create(forkRows);
+      for (List<Object> row: baseRows) {
+        if (! set.remove(row)) {
+          add(QueryResult.Type.Deleted, row.toArray(), null);
+        }
+      }
+
+      set = HashMultiset.create(baseRows);
+      for (List<Object> row: forkRows) {
+        if (! set.remove(row)) {
+          add(QueryResult.Type.Inserted, row.toArray(), null);
+        }
+      }
+    }
+  }
+
+  private static List<List<Object>> window(MyRevision revision,
+                                           QueryTemplate template,
+                                           Object[] parameters)
+  {
+    if (revision.root == Node.Null) {
+      return Collections.emptyList();
+    }
+
+    int capacity = template.limit == QueryTemplate.Unlimited
+      ? QueryTemplate.Unlimited
+      : (int) Math.min
+      (Integer.MAX_VALUE, (long) template.offset + template.limit);
+
+    QueryResult result = MyRevision.Empty.diff
+      (revision, template, parameters, true, capacity);
+
+    List<List<Object>> rows = new ArrayList<List<Object>>();
+    int count = template.expressions.size();
+    int skip = template.offset;
+    while ((template.limit == QueryTemplate.Unlimited
+            || rows.size() < template.limit)
+           && result.nextRow() != QueryResult.Type.End)
+    {
+      if (skip > 0) {
+        -- skip;
+      } else {
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; ++i) {
+          values[i] = result.nextItem();
+        }
+        rows.add(Arrays.asList(values));
+      }
+    }
+
+    return rows;
+  }
+}
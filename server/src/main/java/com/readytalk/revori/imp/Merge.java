@@ -54,7 +54,7 @@ class Merge {
     //  4. Verify foreign key constraints.
 
     MyRevisionBuilder builder = new MyRevisionBuilder
-      (new Object(), left, new NodeStack());
+      (new Token(), left, new NodeStack());
 
     Set<Index> indexes = new TreeSet<Index>();
     Set<Index> newIndexes = new TreeSet<Index>();
@@ -324,9 +324,18 @@ class Merge {
       builder.updateViewTree(view, left, leftStack, baseStack);
     }
 
-    // build data trees for any new indexes
+    // build data trees for any new indexes, which only the right
+    // revision has.  Rather than building them from scratch, we start
+    // with the right revision's trees and apply whatever changed
+    // between it and the result, so the cost is proportional to the
+    // size of the left revision's changes instead of the table size.
     for (Index index: newIndexes) {
-      builder.updateIndexTree(index, MyRevision.Empty, leftStack, baseStack);
+      builder.graft
+        (index, Node.pathFind
+         (right.root, index.table, Compare.TableComparator, index,
+          Compare.IndexComparator));
+
+      builder.updateIndexTree(index, right, rightStack, baseStack);
     }
 
     // build data trees for any new views
@@ -353,6 +362,10 @@ class Merge {
     // Node.dump(builder.result.root, System.out, 1);
     // System.out.println();
 
+    // freeze the result so the comparisons below may use (and cache)
+    // content hashes
+    builder.setToken(new Token());
+
     if (left.equals(builder.result)) {
       return left;
     } else if (base.equals(builder.result)) {
@@ -0,0 +1,84 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.readytalk.revori.Index;
+
+/**
+ * Finds rows matching each value of the left side of a merge join by
+ * walking the right side's table in order of its join column,
+ * in lockstep with the left side, which must be visited in the same
+ * order.  Each row of the right side is thus visited just once, no
+ * matter how many rows of the left side it matches.
+ */
+class MergeTableAdapter extends KeyedTableAdapter {
+  private final TableIterator iterator;
+  private final Comparator comparator;
+  private Row next;
+  private Object value;
+  private List<Row> rows = Collections.emptyList();
+
+  public MergeTableAdapter(TableAdapter table,
+                           Index index,
+                           ColumnReferenceAdapter key,
+                           ExpressionAdapter probe,
+                           MyRevision base,
+                           MyRevision fork)
+  {
+    super(table, key, probe, base, fork);
+
+    this.comparator = index.columns.get(0).comparator;
+
+    // we use a separate, empty expression context here so that none
+    // of the query's column references are disturbed
+    this.iterator = new TableIterator
+      (table.tableReference, base, new NodeStack(), fork, new NodeStack(),
+       ConstantAdapter.True, new ExpressionContext(null, null),
+       Plan.choosePlan(index, ConstantAdapter.True, table.tableReference),
+       true);
+
+    this.next = next(iterator);
+  }
+
+  @SuppressWarnings("unchecked")
+  protected List<Row> rows(Object value) {
+    if (this.value != null) {
+      int difference = comparator.compare(value, this.value);
+      if (difference == 0) {
+        return rows;
+      }
+
+      checkState(difference > 0, "merge join input out of order");
+    }
+
+    while (next != null && comparator.compare(key(next), value) < 0) {
+      next = next(iterator);
+    }
+
+    this.value = value;
+
+    if (next != null && comparator.compare(key(next), value) == 0) {
+      rows = new ArrayList<Row>();
+      do {
+        rows.add(next);
+        next = next(iterator);
+      } while (next != null && comparator.compare(key(next), value) == 0);
+    } else {
+      rows = Collections.emptyList();
+    }
+
+    return rows;
+  }
+}
@@ -0,0 +1,53 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import com.readytalk.revori.BatchResult;
+
+class MyBatchResult implements BatchResult {
+  public int rows;
+  public int inserted;
+  public int overwritten;
+  public int skipped;
+  public int updated;
+  public int deleted;
+
+  public int rows() {
+    return rows;
+  }
+
+  public int inserted() {
+    return inserted;
+  }
+
+  public int overwritten() {
+    return overwritten;
+  }
+
+  public int skipped() {
+    return skipped;
+  }
+
+  public int updated() {
+    return updated;
+  }
+
+  public int deleted() {
+    return deleted;
+  }
+
+  public int affected() {
+    return inserted + overwritten + updated + deleted;
+  }
+
+  public String toString() {
+    return "batchResult[rows " + rows + " inserted " + inserted
+      + " overwritten " + overwritten + " skipped " + skipped
+      + " updated " + updated + " deleted " + deleted + "]";
+  }
+}
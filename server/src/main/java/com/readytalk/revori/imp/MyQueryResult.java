@@ -70,15 +70,33 @@ class MyQueryResult implements QueryResult {
                        QueryTemplate template,
                        Object[] parameters,
                        boolean force)
+  {
+    this(base, baseStack, fork, forkStack, template, parameters, force,
+         SourceAdapterFactory.makeAdapter(template.source));
+  }
+
+  /**
+   * Creates a query result which iterates over the specified source
+   * adapter rather than one made from the template's source.  This
+   * allows the caller to dictate e.g. which index is used to iterate
+   * over a table.
+   */
+  public MyQueryResult(MyRevision base,
+                       @Nullable NodeStack baseStack,
+                       MyRevision fork,
+                       @Nullable NodeStack forkStack,
+                       QueryTemplate template,
+                       Object[] parameters,
+                       boolean force,
+                       SourceAdapter source)
   {
     if (base == fork && (! force)) {
-      source = null;
+      this.source = null;
       expressions = null;
       expressionContext = null;
       test = null;
     } else {
       ChangeFinder finder = new ChangeFinder(base, fork);
-      SourceAdapter source = SourceAdapterFactory.makeAdapter(template.source);
       source.visit(finder);
 
       if (finder.foundChanged || force) {
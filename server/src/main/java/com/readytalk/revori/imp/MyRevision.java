@@ -7,48 +7,134 @@
 
 package com.readytalk.revori.imp;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
 
 import com.google.common.collect.Lists;
+import com.readytalk.revori.Aggregate;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.ColumnReference;
 import com.readytalk.revori.ConflictResolver;
 import com.readytalk.revori.Constant;
 import com.readytalk.revori.DiffResult;
 import com.readytalk.revori.Expression;
+import com.readytalk.revori.ExpressionVisitor;
 import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.Index;
+import com.readytalk.revori.PreparedLookup;
 import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.QueryTemplate;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Table;
 import com.readytalk.revori.TableReference;
 import com.readytalk.revori.View;
 
 public class MyRevision implements Revision {
+  /**
+   * How many times more index entries we're willing to visit in
+   * order to avoid sorting the results of a query.
+   */
+  private static final int SortThreshold = 4;
+
   public static final MyRevision Empty = new MyRevision
-    (new Object(), Node.Null);
+    (new Token(), Node.Null);
 
-  public final Object token;
+  private static volatile ForkJoinPool maintenancePool
+    = defaultMaintenancePool();
+
+  public final Token token;
   public Node root;
 
   public static Revision empty() {
     return Empty;
   }
 
-  public MyRevision(Object token, Node root) {
+  private static ForkJoinPool defaultMaintenancePool() {
+    int threads = Integer.getInteger
+      ("com.readytalk.revori.maintenanceThreads", 1);
+
+    return threads > 1 ? new ForkJoinPool(threads) : null;
+  }
+
+  public static ForkJoinPool maintenancePool() {
+    return maintenancePool;
+  }
+
+  public static void setMaintenancePool(ForkJoinPool pool) {
+    maintenancePool = pool;
+  }
+
+  public MyRevision(Token token, Node root) {
     this.token = token;
     this.root = root;
   }
 
   public <T> T query(Column<T> column, Index index, Object ... indexValues) {
-    Object[] path = new Object[indexValues.length + 2];
-    path[0] = index;
-    System.arraycopy(indexValues, 0, path, 1, indexValues.length);
-    path[indexValues.length + 1] = column;
-    return (T) query(path);
+    checkArgument(indexValues.length == index.columns.size(),
+                  "wrong number of parameters for specified index");
+
+    return query(index, column, indexValues, 0);
+  }
+
+  public <T> T query(PreparedLookup<T> lookup, Object key) {
+    List<Column<?>> columns = lookup.index.columns;
+    checkArgument(columns.size() == 1,
+                  "wrong number of parameters for specified index");
+
+    Node n = indexBody(lookup.index);
+    n = (Node) Node.find(n, key, columns.get(0).comparator).value;
+
+    return value(n, lookup.column);
+  }
+
+  public <T> T query(PreparedLookup<T> lookup, Object key1, Object key2) {
+    List<Column<?>> columns = lookup.index.columns;
+    checkArgument(columns.size() == 2,
+                  "wrong number of parameters for specified index");
+
+    Node n = indexBody(lookup.index);
+    n = (Node) Node.find(n, key1, columns.get(0).comparator).value;
+    n = (Node) Node.find(n, key2, columns.get(1).comparator).value;
+
+    return value(n, lookup.column);
+  }
+
+  public <T> T query(PreparedLookup<T> lookup, Object[] key, int keyOffset) {
+    checkArgument(keyOffset >= 0
+                  && key.length - keyOffset >= lookup.keySize(),
+                  "wrong number of parameters for specified index");
+
+    return query(lookup.index, lookup.column, key, keyOffset);
+  }
+
+  private <T> T query(Index index, Column<T> column, Object[] key,
+                      int keyOffset)
+  {
+    List<Column<?>> columns = index.columns;
+    Node n = indexBody(index);
+    for (int i = 0; i < columns.size(); ++i) {
+      n = (Node) Node.find(n, key[keyOffset + i], columns.get(i).comparator)
+        .value;
+    }
+
+    return value(n, column);
+  }
+
+  /**
+   * Returns the body of the specified index (i.e. the tree keyed by
+   * values of its first column), or Node.Null if it is empty.
+   */
+  private Node indexBody(Index index) {
+    Node n = (Node) Node.find(root, index.table, Compare.TableComparator)
+      .value;
+    return (Node) Node.find(n, index, Compare.IndexComparator).value;
   }
 
   public <T> Iterator<T> queryAll(final Column<T> column,
@@ -111,6 +197,106 @@ public class MyRevision implements Revision {
     };
   }
 
+  public <T> Iterator<T> queryAll(int offset,
+                                  final Column<T> column,
+                                  Index index,
+                                  Object ... indexPrefix)
+  {
+    checkArgument(offset >= 0, "negative offset");
+
+    Node tree = findTree(index, indexPrefix);
+    int levels = index.columns.size() - indexPrefix.length;
+    if (levels == 0) {
+      if (offset > 0 || tree == Node.Null) {
+        return Collections.<T>emptyList().iterator();
+      } else {
+        return Collections.singletonList(value(tree, column)).iterator();
+      }
+    }
+
+    final RowIterator it = new RowIterator(tree, levels, offset);
+
+    return new Iterator<T>() {
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      public T next() {
+        return value((Node) it.next().value, column);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  public int count(Index index, Object ... indexPrefix) {
+    int levels = index.columns.size() - indexPrefix.length;
+    if (levels == 0) {
+      return findTree(index, indexPrefix) == Node.Null ? 0 : 1;
+    } else {
+      return Node.count(findTree(index, indexPrefix), levels);
+    }
+  }
+
+  public int rank(Index index, Object ... indexPrefix) {
+    List<Column<?>> columns = index.columns;
+    checkArgument(indexPrefix.length <= columns.size(),
+                  "too many values for specified index");
+
+    Node tree = findTree(index);
+    int rank = 0;
+    for (int i = 0; i < indexPrefix.length && tree != Node.Null; ++i) {
+      Comparator comparator = columns.get(i).comparator;
+      int levels = columns.size() - i;
+      if (levels == 1) {
+        rank += Node.rank(tree, indexPrefix[i], comparator);
+      } else {
+        for (NodeIterator it = new NodeIterator(new NodeStack(), tree);
+             it.hasNext();)
+        {
+          Node n = it.next();
+          if (Compare.compare(n.key, indexPrefix[i], comparator) >= 0) {
+            break;
+          }
+          rank += Node.count((Node) n.value, levels - 1);
+        }
+
+        tree = (Node) Node.find(tree, indexPrefix[i], comparator).value;
+      }
+    }
+    return rank;
+  }
+
+  private static <T> T value(Node row, Column<T> column) {
+    Node n = Node.find(row, column, Compare.ColumnComparator);
+    return n == Node.Null ? null : (T) n.value;
+  }
+
+  /**
+   * Returns the tree (or, for a complete key, the row) found by
+   * following the specified index values through the body of the
+   * specified index, or Node.Null if there is no such tree.
+   */
+  private Node findTree(Index index, Object ... indexValues) {
+    List<Column<?>> columns = index.columns;
+    checkArgument(indexValues.length <= columns.size(),
+                  "too many values for specified index");
+
+    Object[] path = new Object[(indexValues.length + 2) * 2];
+    path[0] = index.table;
+    path[1] = Compare.TableComparator;
+    path[2] = index;
+    path[3] = Compare.IndexComparator;
+    for (int i = 0; i < indexValues.length; ++i) {
+      path[(i + 2) * 2] = indexValues[i];
+      path[((i + 2) * 2) + 1] = columns.get(i).comparator;
+    }
+
+    return Node.pathFind(root, path);
+  }
+
   public Object query(Object[] path,
                       int pathOffset,
                       int pathLength)
@@ -182,20 +368,44 @@ public class MyRevision implements Revision {
          + parameters.length + ")");
     }
 
-    if (template.hasAggregates || (! template.orderByExpressions.isEmpty())) {
+    if (template.limit != QueryTemplate.Unlimited || template.offset != 0) {
+      return new LimitedQueryResult(this, myFork, template, parameters.clone());
+    } else {
+      return diff
+        (myFork, template, parameters.clone(), false, QueryTemplate.Unlimited);
+    }
+  }
+
+  /**
+   * Like diff(Revision, QueryTemplate, Object...), but ignores any
+   * limit or offset in the template.  If ordered is true, rows are
+   * visited in the order described by QueryTemplate.QueryTemplate(List,
+   * Source, Expression, Set, List, int, int) even if the template has
+   * no order-by expressions.  If capacity is not
+   * QueryTemplate.Unlimited, the caller promises not to visit more
+   * than that many rows.
+   */
+  QueryResult diff(MyRevision myFork,
+                   QueryTemplate template,
+                   Object[] parameters,
+                   boolean ordered,
+                   int capacity)
+  {
+    if (template.hasAggregates && hasAggregates(template.test)) {
+      // A test which uses an aggregate function can only be evaluated
+      // once all the rows of a group have been seen, so for now we
+      // fall back to materializing the query as a temporary view.
+
       // todo: look for an index or view which will allow us to
-      // fulfill this query without creating a temporary view;
-      // i.e. teach the query planner about order-by clauses,
-      // aggregates, and views, so we only fall back to using a
-      // temporary view when an exisiting view or index does not
-      // suffice.  The query planner may be able to use a view even
-      // for queries which do not involve aggregates or order-by
-      // clauses.  Ultimately, it may help to remove the distinction
-      // between indexes and views.
+      // fulfill this query without creating a temporary view.  The
+      // query planner may be able to use a view even for queries
+      // which do not involve aggregates or order-by clauses.
+      // Ultimately, it may help to remove the distinction between
+      // indexes and views.
 
       View view = new View(template, parameters);
       MyRevisionBuilder builder = new MyRevisionBuilder
-        (new Object(), myFork, new NodeStack());
+        (new Token(), myFork, new NodeStack());
 
       builder.addView(view, this);
 
@@ -209,10 +419,96 @@ public class MyRevision implements Revision {
       return myFork.diff
         (builder.commit(), new QueryTemplate
          (expressions, tableReference, new Constant(true)));
+    } else if (template.hasAggregates) {
+      return new AggregateQueryResult(this, myFork, template, parameters);
+    } else if (ordered || (! template.orderByExpressions.isEmpty())) {
+      TableAdapter source = orderedSource
+        (this, myFork, template, parameters, capacity);
+      if (source != null) {
+        return new MyQueryResult
+          (this, null, myFork, null, template, parameters, false, source);
+      } else {
+        return new SortedQueryResult
+          (this, myFork, template, parameters, capacity);
+      }
     } else {
       return new MyQueryResult
-        (this, null, myFork, null, template, parameters.clone());
+        (this, null, myFork, null, template, parameters);
+    }
+  }
+
+  private static boolean hasAggregates(Expression expression) {
+    final boolean hasAggregates[] = new boolean[1];
+    expression.visit(new ExpressionVisitor() {
+        public void visit(Expression e) {
+          if (e instanceof Aggregate) {
+            hasAggregates[0] = true;
+          }
+        }
+      });
+    return hasAggregates[0];
+  }
+
+  /**
+   * Returns an adapter which will iterate over the source of the
+   * specified template in the order given by its order-by
+   * expressions, if that source is a table with an index providing
+   * that order which would not cost much more to scan than sorting
+   * the results of the best plan would.  Otherwise, returns null.
+   * If capacity is not QueryTemplate.Unlimited, we assume only that
+   * many rows will be visited, so an ordered scan may stop early.
+   */
+  private static TableAdapter orderedSource(MyRevision base,
+                                            MyRevision fork,
+                                            QueryTemplate template,
+                                            Object[] parameters,
+                                            int capacity)
+  {
+    if (! (template.source instanceof TableReference)) {
+      return null;
+    }
+
+    TableReference tableReference = (TableReference) template.source;
+    List<Column<?>> columns = Lists.newArrayList();
+    for (QueryTemplate.OrderExpression e: template.orderByExpressions) {
+      if (e.expression instanceof ColumnReference
+          && ((ColumnReference<?>) e.expression).tableReference
+          == tableReference
+          && ((ColumnReference<?>) e.expression).column.comparator
+          == e.comparator)
+      {
+        columns.add(((ColumnReference<?>) e.expression).column);
+      } else {
+        return null;
+      }
     }
+
+    Index index = Plan.orderedIndex
+      (base, new NodeStack(), fork, new NodeStack(), tableReference,
+       columns);
+
+    if (index == null) {
+      return null;
+    }
+
+    ExpressionContext expressionContext = new ExpressionContext
+      (parameters, null);
+    ExpressionAdapter test = ExpressionAdapterFactory.makeAdapter
+      (expressionContext, template.test);
+    TableAdapter source = new TableAdapter(tableReference, index);
+
+    double ordered = Plan.choosePlan
+      (index, test, tableReference, base, fork).cost;
+    double best = source.estimate
+      (base, new NodeStack(), fork, new NodeStack(), test);
+
+    if (capacity != QueryTemplate.Unlimited && best > capacity) {
+      // assuming matching rows are evenly distributed, we'll only
+      // need to scan part of the index
+      ordered *= capacity / best;
+    }
+
+    return ordered <= best * SortThreshold ? source : null;
   }
 
   public DiffResult diff(Revision fork, boolean skipBrokenReferences)
@@ -231,7 +527,7 @@ public class MyRevision implements Revision {
   }
 
   public RevisionBuilder builder() {
-    return new MyRevisionBuilder(new Object(), this, new NodeStack());
+    return new MyRevisionBuilder(new Token(), this, new NodeStack());
   }
 
   public Revision merge(Revision left,
@@ -277,6 +573,51 @@ public class MyRevision implements Revision {
       return true;
     }
     return (other instanceof MyRevision)
+      && (! hashesDiffer(this, (MyRevision) other))
       && diff((MyRevision)other, true).next() == DiffResult.Type.End;
   }
+
+  /**
+   * Returns true if the contents of the specified revisions certainly
+   * differ according to their primary key data hashes.  We only
+   * consult the hashes when both revisions are frozen, since that's
+   * when they can be cached, and when neither has foreign keys, since
+   * diffs may then skip rows with broken references.
+   */
+  private static boolean hashesDiffer(MyRevision a, MyRevision b) {
+    if (! (Node.frozen(a.root) && Node.frozen(b.root))
+        || hasForeignKeys(a) || hasForeignKeys(b))
+    {
+      return false;
+    }
+
+    return a.hash() != b.hash();
+  }
+
+  private static boolean hasForeignKeys(MyRevision revision) {
+    return Node.find
+      (revision.root, Constants.ForeignKeyTable, Compare.TableComparator)
+      != Node.Null;
+  }
+
+  /**
+   * Returns a hash of the primary key data of every table in this
+   * revision (see Node.hash).  This is cheap once the nodes involved
+   * have cached their hashes, which MyRevisionBuilder.commit ensures
+   * for the nodes it creates.
+   */
+  public int hash() {
+    int hash = 0;
+    for (NodeIterator tables = new NodeIterator(new NodeStack(), root);
+         tables.hasNext();)
+    {
+      Node table = tables.next();
+      Index primaryKey = ((Table) table.key).primaryKey;
+      hash = (hash * 31) + Node.hash
+        ((Node) Node.find((Node) table.value, primaryKey,
+                          Compare.IndexComparator).value,
+         primaryKey.columns.size() + 1);
+    }
+    return hash;
+  }
 }
@@ -11,14 +11,22 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.readytalk.revori.SourceFactory.reference;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.readytalk.revori.BatchResult;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.DeleteTemplate;
 import com.readytalk.revori.DuplicateKeyException;
@@ -29,6 +37,7 @@ import com.readytalk.revori.ForeignKeyResolvers;
 import com.readytalk.revori.Index;
 import com.readytalk.revori.InsertTemplate;
 import com.readytalk.revori.PatchTemplate;
+import com.readytalk.revori.PreparedPatch;
 import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.RevisionBuilder;
@@ -52,7 +61,7 @@ class MyRevisionBuilder implements RevisionBuilder {
     adapters.put(DeleteTemplate.class, new DeleteTemplateAdapter());
   }
 
-  public Object token;
+  public Token token;
   public final NodeStack stack;
   public final Object[] keys;
   public final Comparator[] comparators;
@@ -68,8 +77,22 @@ class MyRevisionBuilder implements RevisionBuilder {
   public MyRevision result;
   public int max = -1;
   public boolean dirtyIndexes;
-
-  public MyRevisionBuilder(Object token,
+  private final Map<List<Column<?>>, int[]> columnOrders
+    = new IdentityHashMap<List<Column<?>>, int[]>();
+  // if this builder was created by fork, it may only modify rows of
+  // forkTable whose first key column value lies within forkInterval
+  private MyRevisionBuilder parent;
+  private Table forkTable;
+  private Interval forkInterval;
+  // if true, verify foreign keys with full scans at commit time
+  private boolean bulkForeignKeys;
+  // spine of the tree we last appended to, if any
+  private final Node.AppendCursor appendCursor = new Node.AppendCursor();
+  // builders forked from this one which have not yet been joined
+  private final List<MyRevisionBuilder> forks
+    = new ArrayList<MyRevisionBuilder>();
+
+  public MyRevisionBuilder(Token token,
                            MyRevision base,
                            NodeStack stack)
   {
@@ -85,14 +108,20 @@ class MyRevisionBuilder implements RevisionBuilder {
     found = new Node[Constants.MaxDepth + 1];
   }
 
-  public void setToken(Object token) {
+  public void setToken(Token token) {
     if (token != this.token) {
-      this.token = token;
-      for (int i = 0; i < max; ++i) {
-        found[i] = null;
-        blazedLeaves[i] = null;
-        blazedRoots[i + 1] = null;
+      if (this.token != null) {
+        // nodes owned by the old token may be shared from now on, so
+        // they must never change again
+        this.token.frozen = true;
       }
+
+      this.token = token;
+      // cached paths belong to the old token and must not be modified
+      // in place under the new one, including the deepest leaf
+      Arrays.fill(found, null);
+      Arrays.fill(blazedLeaves, null);
+      Arrays.fill(blazedRoots, null);
     }
   }
 
@@ -127,9 +156,84 @@ class MyRevisionBuilder implements RevisionBuilder {
   public void deleteAll() {
     result = MyRevision.Empty;
     max = -1;
+    Arrays.fill(found, null);
+    Arrays.fill(blazedLeaves, null);
+    Arrays.fill(blazedRoots, null);
+  }
+
+  /**
+   * Replaces the tree found by following the current path to the
+   * specified depth, deleting the path if the new tree is empty.
+   */
+  public void replace(int index, Node tree) {
+    // the tree we were appending to may be rearranged or discarded
+    appendCursor.root = null;
+
+    if (tree == Node.Null) {
+      delete(index);
+    } else {
+      blaze(index).value = tree;
+
+      // anything we knew about the levels below is now stale
+      for (int i = index + 1; i < found.length; ++i) {
+        found[i] = null;
+        blazedLeaves[i] = null;
+        blazedRoots[i] = null;
+      }
+
+      if (max > index) {
+        max = index;
+      }
+    }
+  }
+
+  /**
+   * Deletes every row of the specified table whose value for the
+   * first primary key column lies within the specified interval,
+   * returning the number of rows deleted.  Rather than deleting rows
+   * one at a time, this splits the whole range out of the primary key
+   * tree in logarithmic time.  Other indexes and views are brought up
+   * to date lazily, as usual.
+   */
+  public int deleteRange(Table table, Interval interval) {
+    prepareForUpdate(table);
+
+    Index index = table.primaryKey;
+
+    if (forkInterval != null) {
+      Comparator comparator = index.columns.get(0).comparator;
+      if (! contains(forkInterval, interval, comparator)) {
+        throw new IllegalStateException
+          ("forked builder may not modify rows outside its range");
+      }
+    }
+
+    setKey(Constants.TableDataDepth, table, Compare.TableComparator);
+    setKey(Constants.IndexDataDepth, index, Compare.IndexComparator);
+
+    Node tree = (Node) find(Constants.IndexDataDepth).value;
+    if (tree == Node.Null) {
+      return 0;
+    }
+
+    Node remaining = Node.removeRange
+      (token, tree, interval, index.columns.get(0).comparator, blazeResult);
+
+    int count = Node.count(blazeResult.node, index.columns.size());
+
+    // even if nothing was removed, the split may have rearranged
+    // nodes owned by our token in place, so the original tree is no
+    // longer valid and must be replaced
+    replace(Constants.IndexDataDepth, remaining);
+
+    return count;
   }
 
   private void delete(int index) {
+    if (forkInterval != null) {
+      checkInRange(index);
+    }
+
     Node root = blazedRoots[index];
     if (root == null) {
       if (index == 0) {
@@ -150,9 +254,13 @@ class MyRevisionBuilder implements RevisionBuilder {
         {
           delete(index - 1);
         } else {
+          Node tree = (Node) blaze(index - 1).value;
+          if (tree == appendCursor.root) {
+            appendCursor.root = null;
+          }
+
           root = Node.delete
-            (token, stack, (Node) blaze(index - 1).value, keys[index],
-             comparators[index]);
+            (token, stack, tree, keys[index], comparators[index]);
           blazedLeaves[index - 1].value = root;
           blazedRoots[index] = root;
           blazedLeaves[index] = null;
@@ -187,6 +295,10 @@ class MyRevisionBuilder implements RevisionBuilder {
 
   private void deleteBlazed(int index) {
     blazedLeaves[index] = null;
+    if (blazedRoots[index] == appendCursor.root) {
+      appendCursor.root = null;
+    }
+
     Node root = Node.delete
       (token, stack, blazedRoots[index], keys[index], comparators[index]);
     blazedRoots[index] = root;
@@ -216,6 +328,10 @@ class MyRevisionBuilder implements RevisionBuilder {
   private Node blaze(int index) {
     Node n = blazedLeaves[index];
     if (n == null) {
+      if (forkInterval != null) {
+        checkInRange(index);
+      }
+
       if (index == 0) {
         Node root = Node.blaze
           (blazeResult, token, stack, result.root, keys[0], comparators[0]);
@@ -229,9 +345,21 @@ class MyRevisionBuilder implements RevisionBuilder {
         blazedRoots[1] = (Node) blazeResult.node.value;
         return blazeResult.node;
       } else {
-        Node root = Node.blaze
-          (blazeResult, token, stack, (Node) blaze(index - 1).value,
-           keys[index], comparators[index]);
+        Node tree = (Node) blaze(index - 1).value;
+        Node root = append(index, tree);
+        if (root == null) {
+          int size = tree.size;
+          root = Node.blaze
+            (blazeResult, token, stack, tree, keys[index], comparators[index]);
+
+          // inserting anywhere but the end may have rearranged the
+          // spine, whereas finding an existing key changes nothing
+          if (tree == appendCursor.root
+              && (root != tree || root.size != size))
+          {
+            appendCursor.root = null;
+          }
+        }
 
         blazedLeaves[index - 1].value = root;
         blazedRoots[index] = root;
@@ -243,22 +371,77 @@ class MyRevisionBuilder implements RevisionBuilder {
     }
   }
 
+  /**
+   * Inserts keys[index] into the specified tree via appendCursor if
+   * it is greater than every key already there, returning the new
+   * root, or null if the general path should be used instead.
+   * Ascending keys are common enough (e.g. timestamps and sequence
+   * numbers) that it's worth avoiding a search from the root for each
+   * one.
+   */
+  private Node append(int index, Node tree) {
+    Comparator comparator = comparators[index];
+    if (index < Constants.IndexDataBodyDepth
+        || comparator == Compare.ColumnComparator)
+    {
+      return null;
+    }
+
+    Node.AppendCursor cursor = appendCursor;
+    if (cursor.root != tree || tree == Node.Null || cursor.token != token) {
+      Node last = Node.last(tree);
+      if (last != Node.Null
+          && Compare.compare(keys[index], last.key, comparator) <= 0)
+      {
+        return null;
+      }
+
+      Node.startAppend(cursor, token, tree);
+    } else if (Compare.compare
+               (keys[index], cursor.spine[cursor.length - 1].key, comparator)
+               <= 0)
+    {
+      return null;
+    }
+
+    blazeResult.node = Node.append(cursor, keys[index]);
+    return cursor.root;
+  }
+
   public void updateIndexTree(Index index,
                               MyRevision base,
                               NodeStack baseStack,
                               NodeStack forkStack)
   {
-	checkArgument(!index.equals(index.table.primaryKey));
+    updateIndexTrees
+      (index.table, Collections.singletonList(index), base, baseStack,
+       forkStack);
+  }
 
-    TableIterator iterator
-      = new TableIterator
-      (reference(index.table), base, baseStack, result, forkStack,
-       ConstantAdapter.True, new ExpressionContext(null, null), false);
+  /**
+   * Brings the specified indexes of the specified table up to date
+   * with respect to the changes to its rows between the specified
+   * base revision and the current result.  The table is diffed once,
+   * and each changed row is applied to every index in turn, so the
+   * cost is proportional to the number of changed rows rather than
+   * that times the number of indexes.
+   */
+  public void updateIndexTrees(Table table,
+                               List<Index> indexes,
+                               MyRevision base,
+                               NodeStack baseStack,
+                               NodeStack forkStack)
+  {
+    if (indexes.isEmpty()) {
+      return;
+    }
 
-    setKey(Constants.TableDataDepth, index.table, Compare.TableComparator);
-    setKey(Constants.IndexDataDepth, index, Compare.IndexComparator);
+    for (Index index: indexes) {
+      checkArgument(!index.equals(table.primaryKey));
+    }
 
-    List<Column<?>> keyColumns = index.columns;
+    TableIterator iterator = tableIterator
+      (table, base, baseStack, result, forkStack);
 
     while (true) {
       QueryResult.Type type = iterator.nextRow();
@@ -266,57 +449,124 @@ class MyRevisionBuilder implements RevisionBuilder {
       case End:
         return;
       
-      case Inserted: {
-        Node tree = (Node) iterator.pair.fork.value;
+      case Inserted:
+        for (Index index: indexes) {
+          insertIndexEntry(index, (Node) iterator.pair.fork.value);
+        }
+        break;
 
-        int i = 0;
-        for (; i < keyColumns.size() - 1; ++i) {
-          Column c = keyColumns.get(i);
-          setKey
-            (i + Constants.IndexDataBodyDepth,
-             Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+      case Deleted:
+        for (Index index: indexes) {
+          deleteIndexEntry(index, (Node) iterator.pair.base.value);
         }
+        break;
+      
+      default:
+        throw new RuntimeException("unexpected result type: " + type);
+      }
+    }
+  }
 
-        Column c = keyColumns.get(i);
-        Node n = blaze
-          (i + Constants.IndexDataBodyDepth,
-           Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+  private static TableIterator tableIterator(Table table,
+                                             MyRevision base,
+                                             NodeStack baseStack,
+                                             MyRevision fork,
+                                             NodeStack forkStack)
+  {
+    return new TableIterator
+      (reference(table), base, baseStack, fork, forkStack,
+       ConstantAdapter.True, new ExpressionContext(null, null), false);
+  }
 
-        checkArgument(n.value == Node.Null);
-      
-        n.value = tree;
-      } break;
+  /**
+   * Returns the rows of the specified table which were inserted or
+   * deleted between the specified revisions, in the order visited by
+   * the diff, so they may be applied to several indexes without
+   * diffing the table again for each one.
+   */
+  private static List<RowChange> rowChanges(Table table,
+                                            MyRevision base,
+                                            MyRevision fork)
+  {
+    TableIterator iterator = tableIterator
+      (table, base, new NodeStack(), fork, new NodeStack());
 
-      case Deleted: {
-        Node tree = (Node) iterator.pair.base.value;
+    List<RowChange> changes = new ArrayList<RowChange>();
+    while (true) {
+      QueryResult.Type type = iterator.nextRow();
+      switch (type) {
+      case End:
+        return changes;
 
-        int i = 0;
-        for (; i < keyColumns.size() - 1; ++i) {
-          Column c = keyColumns.get(i);
-          setKey
-            (i + Constants.IndexDataBodyDepth,
-             Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
-        }
+      case Inserted:
+        changes.add(new RowChange(true, (Node) iterator.pair.fork.value));
+        break;
+
+      case Deleted:
+        changes.add(new RowChange(false, (Node) iterator.pair.base.value));
+        break;
 
-        Column c = keyColumns.get(i);
-        deleteKey
-          (i + Constants.IndexDataBodyDepth,
-           Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
-      } break;
-      
       default:
         throw new RuntimeException("unexpected result type: " + type);
       }
     }
   }
 
-  private Node makeTree(NodeStack stack,
-                        List<Column<?>> columns,
+  private void setIndexKeys(Index index, Node tree) {
+    setKey(Constants.TableDataDepth, index.table, Compare.TableComparator);
+    setKey(Constants.IndexDataDepth, index, Compare.IndexComparator);
+
+    List<Column<?>> keyColumns = index.columns;
+    for (int i = 0; i < keyColumns.size() - 1; ++i) {
+      Column c = keyColumns.get(i);
+      setKey
+        (i + Constants.IndexDataBodyDepth,
+         Node.find(tree, c, Compare.ColumnComparator).value,
+         c.comparator);
+    }
+  }
+
+  private void insertIndexEntry(Index index, Node tree) {
+    setIndexKeys(index, tree);
+
+    int i = index.columns.size() - 1;
+    Column c = index.columns.get(i);
+    Node n = blaze
+      (i + Constants.IndexDataBodyDepth,
+       Node.find(tree, c, Compare.ColumnComparator).value,
+       c.comparator);
+
+    checkArgument(n.value == Node.Null);
+      
+    n.value = tree;
+  }
+
+  private void deleteIndexEntry(Index index, Node tree) {
+    setIndexKeys(index, tree);
+
+    int i = index.columns.size() - 1;
+    Column c = index.columns.get(i);
+    deleteKey
+      (i + Constants.IndexDataBodyDepth,
+       Node.find(tree, c, Compare.ColumnComparator).value,
+       c.comparator);
+  }
+
+  private static class RowChange {
+    public final boolean inserted;
+    public final Node tree;
+
+    public RowChange(boolean inserted, Node tree) {
+      this.inserted = inserted;
+      this.tree = tree;
+    }
+  }
+
+  private Node makeTree(List<Column<?>> columns,
                         List<ExpressionAdapter> expressions)
   {
-    Node.BlazeResult result = new Node.BlazeResult();
-    Node n = Node.Null;
-    for (int i = 0; i < columns.size(); ++i) {
+    Object[] values = new Object[columns.size()];
+    for (int i = 0; i < values.length; ++i) {
       Column<?> c = columns.get(i);
       Object v = expressions.get(i).evaluate(true);
       if (! Compare.Undefined.equals(v)) {
@@ -325,11 +575,45 @@ class MyRevisionBuilder implements RevisionBuilder {
             (v.getClass().getName() + " cannot be cast to "
              + c.type.getName());
         }
-        n = Node.blaze(result, token, stack, n, c, Compare.ColumnComparator);
-        result.node.value = v;
       }
+      values[i] = v;
     }
-    return n;
+    return makeRow(columns, values);
+  }
+
+  /**
+   * Builds a row tree from the specified values, which correspond
+   * positionally to the specified columns.  Undefined values are
+   * omitted, and where a column appears more than once the last
+   * defined value wins.  Since the row is built bottom-up with
+   * Node.build, it costs exactly one node per cell and no
+   * rebalancing, regardless of the order in which the columns are
+   * given.
+   */
+  Node makeRow(List<Column<?>> columns, Object[] values) {
+    int[] order = columnOrders.get(columns);
+    if (order == null) {
+      order = columnOrder(columns);
+      columnOrders.put(columns, order);
+    }
+
+    Object[] keys = new Object[order.length];
+    Object[] sorted = new Object[order.length];
+    int count = 0;
+    for (int i = 0; i < order.length; ++i) {
+      Column<?> c = columns.get(order[i]);
+      Object v = values[order[i]];
+      if (! Compare.Undefined.equals(v)) {
+        if (count > 0 && c.equals(keys[count - 1])) {
+          sorted[count - 1] = v;
+        } else {
+          keys[count] = c;
+          sorted[count++] = v;
+        }
+      }
+    }
+
+    return Node.build(token, keys, sorted, count);
   }
 
   public void updateViewTree(View view,
@@ -429,7 +713,7 @@ class MyRevisionBuilder implements RevisionBuilder {
           checkArgument(n.value == Node.Null);
         }
       
-        n.value = makeTree(stack, view.columns, expressions);
+        n.value = makeTree(view.columns, expressions);
 
         if (view.query.hasAggregates) {
           for (AggregateAdapter a: aggregates) {
@@ -476,7 +760,7 @@ class MyRevisionBuilder implements RevisionBuilder {
                 || ((Integer) expressions.get(view.aggregateOffset)
                     .evaluate(true)) != 0))
         {
-          blaze(index).value = makeTree(stack, view.columns, expressions);
+          blaze(index).value = makeTree(view.columns, expressions);
         } else {
           delete(index);
         }
@@ -518,7 +802,7 @@ class MyRevisionBuilder implements RevisionBuilder {
             a.value = a.aggregate.function.base();
           }
           
-          n.value = makeTree(stack, view.columns, expressions);
+          n.value = makeTree(view.columns, expressions);
           
           for (AggregateAdapter a: aggregates) {
             a.value = Compare.Undefined;
@@ -612,9 +896,11 @@ class MyRevisionBuilder implements RevisionBuilder {
 
       DiffIterator.DiffPair pair = new DiffIterator.DiffPair();
 
+      Map<Table, List<Index>> indexMap = Maps.newLinkedHashMap();
       Set<View> viewSet = Sets.newHashSet();
       while (iterator.next(pair)) {
         if (pair.fork != null) {
+          List<Index> indexList = new ArrayList<Index>();
           for (NodeIterator indexes = new NodeIterator
                  (indexUpdateIterateStack, Node.pathFind
                   (result.root, Constants.IndexTable, Compare.TableComparator,
@@ -622,9 +908,11 @@ class MyRevisionBuilder implements RevisionBuilder {
                    pair.fork.key, Constants.TableColumn.comparator));
                indexes.hasNext();)
           {
-            updateIndexTree
-              ((Index) indexes.next().key, indexBase,
-               indexUpdateBaseStack, indexUpdateForkStack);
+            indexList.add((Index) indexes.next().key);
+          }
+
+          if (! indexList.isEmpty()) {
+            indexMap.put((Table) pair.fork.key, indexList);
           }
 
           for (NodeIterator views = new NodeIterator
@@ -655,9 +943,33 @@ class MyRevisionBuilder implements RevisionBuilder {
         }
       }
 
-      for (View v: viewSet) {
-        updateViewTree
-          (v, indexBase, indexUpdateBaseStack, indexUpdateForkStack);
+      ForkJoinPool pool = MyRevision.maintenancePool();
+
+      // views may be planned using the indexes updated here, so those
+      // must be done before we start on the views
+
+      int indexCount = 0;
+      for (List<Index> indexList: indexMap.values()) {
+        indexCount += indexList.size();
+      }
+
+      if (pool != null && indexCount > 1) {
+        updateIndexTreesInParallel(pool, indexMap);
+      } else {
+        for (Map.Entry<Table, List<Index>> e: indexMap.entrySet()) {
+          updateIndexTrees
+            (e.getKey(), e.getValue(), indexBase, indexUpdateBaseStack,
+             indexUpdateForkStack);
+        }
+      }
+
+      if (pool != null && viewSet.size() > 1) {
+        updateViewTreesInParallel(pool, viewSet);
+      } else {
+        for (View v: viewSet) {
+          updateViewTree
+            (v, indexBase, indexUpdateBaseStack, indexUpdateForkStack);
+        }
       }
     }
 
@@ -665,6 +977,111 @@ class MyRevisionBuilder implements RevisionBuilder {
     indexBase = result;
   }
 
+  /**
+   * Updates each of the specified indexes in its own task, submitted
+   * to the specified pool.  Each table is diffed once, here, and its
+   * changed rows are shared by the tasks for its indexes, so the
+   * total work is the same as for the serial path.  Each task applies
+   * those rows to a private builder forked from the current result
+   * and returns the resulting index tree, which we then graft into
+   * our own result.  The trees for different indexes are disjoint, so
+   * the tasks need not coordinate.
+   */
+  private void updateIndexTreesInParallel(ForkJoinPool pool,
+                                          Map<Table, List<Index>> indexMap)
+  {
+    final MyRevision fork = result;
+
+    List<Index> indexes = new ArrayList<Index>();
+    List<ForkJoinTask<Node>> tasks = new ArrayList<ForkJoinTask<Node>>();
+    for (Map.Entry<Table, List<Index>> e: indexMap.entrySet()) {
+      final List<RowChange> changes = rowChanges(e.getKey(), indexBase, fork);
+
+      for (final Index index: e.getValue()) {
+        checkArgument(!index.equals(index.table.primaryKey));
+
+        indexes.add(index);
+        tasks.add(pool.submit(new Callable<Node>() {
+          public Node call() {
+            MyRevisionBuilder builder = new MyRevisionBuilder
+              (new Token(), fork, new NodeStack());
+
+            for (RowChange change: changes) {
+              if (change.inserted) {
+                builder.insertIndexEntry(index, change.tree);
+              } else {
+                builder.deleteIndexEntry(index, change.tree);
+              }
+            }
+
+            return builder.detach(index);
+          }
+        }));
+      }
+    }
+
+    for (int i = 0; i < tasks.size(); ++i) {
+      graft(indexes.get(i), tasks.get(i).join());
+    }
+  }
+
+  /**
+   * Like updateIndexTreesInParallel, but for views.
+   */
+  private void updateViewTreesInParallel(ForkJoinPool pool,
+                                         Set<View> viewSet)
+  {
+    final MyRevision base = indexBase;
+    final MyRevision fork = result;
+
+    List<View> views = new ArrayList<View>(viewSet);
+    List<ForkJoinTask<Node>> tasks = new ArrayList<ForkJoinTask<Node>>();
+    for (final View view: views) {
+      tasks.add(pool.submit(new Callable<Node>() {
+        public Node call() {
+          MyRevisionBuilder builder = new MyRevisionBuilder
+            (new Token(), fork, new NodeStack());
+
+          builder.updateViewTree
+            (view, base, new NodeStack(), new NodeStack());
+
+          return builder.detach(view.table.primaryKey);
+        }
+      }));
+    }
+
+    for (int i = 0; i < tasks.size(); ++i) {
+      graft(views.get(i).table.primaryKey, tasks.get(i).join());
+    }
+  }
+
+  /**
+   * Returns the tree for the specified index in this builder's
+   * result, freezing it so that it may be shared with another
+   * builder.  This builder must not be used afterwards.
+   */
+  private Node detach(Index index) {
+    token.frozen = true;
+    token = null;
+
+    return Node.pathFind
+      (result.root, index.table, Compare.TableComparator, index,
+       Compare.IndexComparator);
+  }
+
+  /**
+   * Replaces the tree for the specified index with the specified
+   * tree.
+   */
+  public void graft(Index index, Node tree) {
+    setKey(Constants.TableDataDepth, index.table, Compare.TableComparator);
+    setKey(Constants.IndexDataDepth, index, Compare.IndexComparator);
+
+    if (tree != find(Constants.IndexDataDepth).value) {
+      replace(Constants.IndexDataDepth, tree);
+    }
+  }
+
   public void updateIndex(Index index) {
     if (! Compare.equal
         (index.table.primaryKey, index, Compare.IndexComparator))
@@ -679,12 +1096,21 @@ class MyRevisionBuilder implements RevisionBuilder {
     // common cases were we can avoid creating them, or should we try
     // to recycle them somehow?
 
-    ForeignKeys.checkForeignKeys
-      (new NodeStack(), base, new NodeStack(), this, new NodeStack(),
-       resolver, null);
+    if (bulkForeignKeys) {
+      ForeignKeys.validate(base, this, resolver);
+    } else {
+      ForeignKeys.checkForeignKeys
+        (new NodeStack(), base, new NodeStack(), this, new NodeStack(),
+         resolver, null);
+    }
   }
 
   public void prepareForUpdate(Table table) {
+    checkWritable(table);
+    doPrepareForUpdate(table);
+  }
+
+  private void doPrepareForUpdate(Table table) {
     // since we update non-primary-key indexes lazily, we may need to
     // freeze a copy of the last revision which contained up-to-date
     // indexes so we can do a diff later and use it to update them
@@ -703,7 +1129,7 @@ class MyRevisionBuilder implements RevisionBuilder {
       dirtyIndexes = true;
 
       if (indexBase == result) {
-        setToken(new Object());
+        setToken(new Token());
       }
     }
   }
@@ -750,6 +1176,8 @@ class MyRevisionBuilder implements RevisionBuilder {
 
   private void addIndex(Index index)
   {
+    checkSchemaWritable();
+
     if (index.equals(index.table.primaryKey)
         || Node.pathFind
         (result.root, Constants.IndexTable, Compare.TableComparator,
@@ -776,6 +1204,8 @@ class MyRevisionBuilder implements RevisionBuilder {
 
   private void removeIndex(Index index)
   {
+    checkSchemaWritable();
+
     if (index.equals(index.table.primaryKey)) {
       throw new IllegalArgumentException("cannot remove primary key");
     }
@@ -788,6 +1218,8 @@ class MyRevisionBuilder implements RevisionBuilder {
 
   private void addView(View view)
   {
+    checkSchemaWritable();
+
     addView(view, MyRevision.Empty);
   }
 
@@ -833,6 +1265,8 @@ class MyRevisionBuilder implements RevisionBuilder {
 
   private void removeView(final View view)
   {
+    checkSchemaWritable();
+
     view.query.source.visit(new SourceVisitor() {
         public void visit(Source source) {
           if (source instanceof TableReference) {
@@ -861,6 +1295,8 @@ class MyRevisionBuilder implements RevisionBuilder {
 
   private void addForeignKey(ForeignKey constraint)
   {
+    checkSchemaWritable();
+
     if (Node.pathFind
         (result.root, Constants.ForeignKeyTable, Compare.TableComparator,
          Constants.ForeignKeyTable.primaryKey, Compare.IndexComparator,
@@ -885,6 +1321,8 @@ class MyRevisionBuilder implements RevisionBuilder {
 
   private void removeForeignKey(ForeignKey constraint)
   {
+    checkSchemaWritable();
+
     pathDelete(Constants.ForeignKeyTable, constraint);
 
     if (Node.pathFind
@@ -905,6 +1343,7 @@ class MyRevisionBuilder implements RevisionBuilder {
   private void doDelete(Object[] keys)
   {
     if (keys.length == 0) {
+      checkSchemaWritable();
       deleteAll();
       return;
     }
@@ -914,6 +1353,11 @@ class MyRevisionBuilder implements RevisionBuilder {
     prepareForUpdate(table);
 
     if (keys.length == 1) {
+      if (forkInterval != null && forkInterval != Interval.Unbounded) {
+        throw new IllegalStateException
+          ("forked builder may not modify rows outside its range");
+      }
+
       deleteKey(Constants.TableDataDepth, table, Compare.TableComparator);
       return;
     }
@@ -998,6 +1442,385 @@ class MyRevisionBuilder implements RevisionBuilder {
     }
   }
 
+  private int doLoad(DuplicateKeyResolution duplicateKeyResolution,
+                     Table table,
+                     List<Column<?>> columns,
+                     List<Object[]> rows)
+  {
+    checkWritable(table);
+
+    Map<Column<?>, Integer> positions = new HashMap<Column<?>, Integer>();
+    for (int i = 0; i < columns.size(); ++i) {
+      if (positions.put(columns.get(i), i) != null) {
+        throw new IllegalArgumentException
+          ("duplicate column: " + columns.get(i));
+      }
+    }
+
+    Object[][] sorted = rows.toArray(new Object[rows.size()][]);
+    for (Object[] row: sorted) {
+      if (row.length != columns.size()) {
+        throw new IllegalArgumentException
+          ("wrong number of values (expected " + columns.size() + "; got "
+           + row.length + ")");
+      }
+
+      for (int i = 0; i < row.length; ++i) {
+        Compare.validate(row[i], columns.get(i).type);
+      }
+    }
+
+    Comparator<Object[]> keyComparator = rowComparator
+      (table.primaryKey, positions);
+
+    for (int i = 1; i < sorted.length; ++i) {
+      if (keyComparator.compare(sorted[i - 1], sorted[i]) > 0) {
+        // Arrays.sort is stable, which preserves the order of
+        // duplicates for removeDuplicates
+        Arrays.sort(sorted, keyComparator);
+        break;
+      }
+    }
+
+    int count = removeDuplicates
+      (duplicateKeyResolution, sorted, keyComparator);
+
+    List<Index> indexes = new ArrayList<Index>();
+    for (NodeIterator it = new NodeIterator
+           (new NodeStack(), Node.pathFind
+            (result.root, Constants.IndexTable, Compare.TableComparator,
+             Constants.IndexTable.primaryKey, Compare.IndexComparator,
+             table, Constants.TableColumn.comparator));
+         it.hasNext();)
+    {
+      indexes.add((Index) it.next().key);
+    }
+
+    // a fork which owns only part of a table must write row by row,
+    // so that each row can be checked against its range
+    boolean bulk = (forkInterval == null || forkInterval == Interval.Unbounded)
+      && (! (Constants.IndexTable.equals(table)
+                       || Constants.ViewTable.equals(table)
+                       || Constants.ForeignKeyTable.equals(table)))
+      && Node.find(result.root, table, Compare.TableComparator) == Node.Null;
+
+    for (Index index: indexes) {
+      if (! positions.keySet().containsAll(index.columns)) {
+        // rows lacking a value for an indexed column can't be placed
+        // in that index up front, so let updateIndexTree handle them
+        bulk = false;
+      }
+    }
+
+    if (bulk && count > 0) {
+      return bulkLoad(table, indexes, columns, positions, sorted, count);
+    } else {
+      prepareForUpdate(table);
+
+      Comparator[] keyComparators = comparators(table.primaryKey);
+      int[] keyPositions = positions(table.primaryKey, positions);
+      int[] columnOrder = columnOrder(columns);
+      Column<?>[] sortedColumns = sortedColumns(columns, columnOrder);
+      Object[] scratch = new Object[columns.size()];
+
+      int inserted = 0;
+      for (int i = 0; i < count; ++i) {
+        if (insert(duplicateKeyResolution, table, keyComparators, keyPositions,
+                   sorted[i], makeRowTree(sortedColumns, columnOrder,
+                                          sorted[i], scratch)))
+        {
+          ++ inserted;
+        }
+      }
+      return inserted;
+    }
+  }
+
+  private int bulkLoad(Table table,
+                       List<Index> indexes,
+                       List<Column<?>> columns,
+                       Map<Column<?>, Integer> positions,
+                       Object[][] rows,
+                       int count)
+  {
+    // bring any pending index and view changes up to date, then
+    // freeze the result so we can diff against it when updating
+    // views below
+    updateIndexes();
+    MyRevision before = result;
+    setToken(new Token());
+
+    int[] columnOrder = columnOrder(columns);
+    Column<?>[] sortedColumns = sortedColumns(columns, columnOrder);
+    Object[] scratch = new Object[columns.size()];
+    Node[] trees = new Node[count];
+    for (int i = 0; i < count; ++i) {
+      trees[i] = makeRowTree(sortedColumns, columnOrder, rows[i], scratch);
+    }
+
+    Index[] indexArray = new Index[indexes.size() + 1];
+    indexArray[0] = table.primaryKey;
+    for (int i = 0; i < indexes.size(); ++i) {
+      indexArray[i + 1] = indexes.get(i);
+    }
+    Arrays.sort(indexArray, Compare.IndexComparator);
+
+    Integer[] identity = new Integer[count];
+    for (int i = 0; i < count; ++i) {
+      identity[i] = i;
+    }
+
+    Node[] indexTrees = new Node[indexArray.length];
+    for (int i = 0; i < indexArray.length; ++i) {
+      Index index = indexArray[i];
+      Integer[] order = identity;
+      if (! index.equals(table.primaryKey)) {
+        order = identity.clone();
+        final Comparator<Object[]> comparator = rowComparator
+          (index, positions);
+        final Object[][] myRows = rows;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+              return comparator.compare(myRows[a], myRows[b]);
+            }
+          });
+      }
+
+      indexTrees[i] = makeIndexTree
+        (rows, trees, order, positions(index, positions), comparators(index),
+         0, 0, count);
+    }
+
+    blaze(Constants.TableDataDepth, table, Compare.TableComparator).value
+      = Node.build(token, indexArray, indexTrees, indexArray.length);
+
+    // forget anything cached below the table node, since we just
+    // replaced its whole subtree
+    blazedRoots[Constants.TableDataDepth + 1]
+      = (Node) blazedLeaves[Constants.TableDataDepth].value;
+    max = Constants.TableDataDepth;
+
+    checkStacks();
+    for (NodeIterator views = new NodeIterator
+           (indexUpdateIterateStack, Node.pathFind
+            (result.root, Constants.ViewTable, Compare.TableComparator,
+             Constants.ViewTable.primaryKey, Compare.IndexComparator,
+             table, Constants.TableColumn.comparator));
+         views.hasNext();)
+    {
+      updateViewTree
+        ((View) views.next().key, before, indexUpdateBaseStack,
+         indexUpdateForkStack);
+    }
+
+    dirtyIndexes = false;
+    indexBase = result;
+
+    return count;
+  }
+
+  private Node makeIndexTree(Object[][] rows,
+                             Node[] trees,
+                             Integer[] order,
+                             int[] positions,
+                             Comparator[] comparators,
+                             int depth,
+                             int start,
+                             int end)
+  {
+    Object[] keys = new Object[end - start];
+    Object[] values = new Object[end - start];
+    int position = positions[depth];
+    Comparator comparator = comparators[depth];
+    int count = 0;
+    int i = start;
+    while (i < end) {
+      Object key = rows[order[i]][position];
+      if (key == null) throw new NullPointerException();
+
+      int j = i + 1;
+      while (j < end
+             && Compare.equal(key, rows[order[j]][position], comparator))
+      {
+        ++ j;
+      }
+
+      keys[count] = key;
+      if (depth == positions.length - 1) {
+        checkArgument(j == i + 1);
+
+        values[count] = trees[order[i]];
+      } else {
+        values[count] = makeIndexTree
+          (rows, trees, order, positions, comparators, depth + 1, i, j);
+      }
+      ++ count;
+      i = j;
+    }
+
+    return Node.build(token, keys, values, count);
+  }
+
+  private Node makeRowTree(Column<?>[] sortedColumns,
+                           int[] columnOrder,
+                           Object[] row,
+                           Object[] scratch)
+  {
+    for (int i = 0; i < columnOrder.length; ++i) {
+      scratch[i] = row[columnOrder[i]];
+    }
+
+    return Node.build(token, sortedColumns, scratch, columnOrder.length);
+  }
+
+  private boolean insert(DuplicateKeyResolution duplicateKeyResolution,
+                         Table table,
+                         Comparator[] keyComparators,
+                         int[] keyPositions,
+                         Object[] row,
+                         Node tree)
+  {
+    setKey(Constants.TableDataDepth, table, Compare.TableComparator);
+    setKey(Constants.IndexDataDepth, table.primaryKey,
+           Compare.IndexComparator);
+
+    int i;
+    for (i = 0; i < keyPositions.length - 1; ++i) {
+      setKey(i + Constants.IndexDataBodyDepth, row[keyPositions[i]],
+             keyComparators[i]);
+    }
+
+    Node n = blaze
+      (i + Constants.IndexDataBodyDepth, row[keyPositions[i]],
+       keyComparators[i]);
+
+    if (n.value == Node.Null) {
+      n.value = tree;
+      return true;
+    } else {
+      switch (duplicateKeyResolution) {
+      case Skip:
+        return false;
+
+      case Overwrite:
+        n.value = tree;
+        return true;
+
+      case Throw:
+        throw new DuplicateKeyException();
+
+      default:
+        throw new RuntimeException
+          ("unexpected resolution: " + duplicateKeyResolution);
+      }
+    }
+  }
+
+  private static int removeDuplicates
+    (DuplicateKeyResolution duplicateKeyResolution,
+     Object[][] rows,
+     Comparator<Object[]> comparator)
+  {
+    int count = 0;
+    for (int i = 0; i < rows.length; ++i) {
+      if (count > 0 && comparator.compare(rows[count - 1], rows[i]) == 0) {
+        switch (duplicateKeyResolution) {
+        case Skip:
+          break;
+
+        case Overwrite:
+          rows[count - 1] = rows[i];
+          break;
+
+        case Throw:
+          throw new DuplicateKeyException();
+
+        default:
+          throw new RuntimeException
+            ("unexpected resolution: " + duplicateKeyResolution);
+        }
+      } else {
+        rows[count++] = rows[i];
+      }
+    }
+    return count;
+  }
+
+  private static Column<?>[] sortedColumns(List<Column<?>> columns,
+                                           int[] columnOrder)
+  {
+    Column<?>[] result = new Column<?>[columnOrder.length];
+    for (int i = 0; i < columnOrder.length; ++i) {
+      result[i] = columns.get(columnOrder[i]);
+    }
+    return result;
+  }
+
+  private static int[] columnOrder(final List<Column<?>> columns) {
+    Integer[] order = new Integer[columns.size()];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = i;
+    }
+
+    Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Compare.ColumnComparator.compare
+            (columns.get(a), columns.get(b));
+        }
+      });
+
+    int[] result = new int[order.length];
+    for (int i = 0; i < order.length; ++i) {
+      result[i] = order[i];
+    }
+    return result;
+  }
+
+  private static int[] positions(Index index,
+                                 Map<Column<?>, Integer> positions)
+  {
+    int[] result = new int[index.columns.size()];
+    for (int i = 0; i < result.length; ++i) {
+      Integer position = positions.get(index.columns.get(i));
+      if (position == null) {
+        throw new IllegalArgumentException
+          ("missing value for column " + index.columns.get(i) + " of "
+           + index);
+      }
+      result[i] = position;
+    }
+    return result;
+  }
+
+  private static Comparator[] comparators(Index index) {
+    Comparator[] result = new Comparator[index.columns.size()];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = index.columns.get(i).comparator;
+    }
+    return result;
+  }
+
+  private static Comparator<Object[]> rowComparator
+    (Index index,
+     Map<Column<?>, Integer> positions)
+  {
+    final int[] myPositions = positions(index, positions);
+    final Comparator[] myComparators = comparators(index);
+
+    return new Comparator<Object[]>() {
+      public int compare(Object[] a, Object[] b) {
+        for (int i = 0; i < myPositions.length; ++i) {
+          int d = Compare.compare
+            (a[myPositions[i]], b[myPositions[i]], myComparators[i]);
+          if (d != 0) {
+            return d;
+          }
+        }
+        return 0;
+      }
+    };
+  }
+
   private class MyTableBuilder implements TableBuilder {
     private class MyRowBuilder implements RowBuilder {
       private Object[] path;
@@ -1129,21 +1952,122 @@ class MyRevisionBuilder implements RevisionBuilder {
                    Object ... parameters)
   {
     try {
-      if (parameters.length != template.parameterCount()) {
-        throw new IllegalArgumentException
-          ("wrong number of parameters (expected "
-           + template.parameterCount() + "; got "
-           + parameters.length + ")");
-      }
+      checkParameterCount(template, parameters);
 
       return adapters.get
-        (template.getClass()).apply(this, template, parameters.clone());
+        (template.getClass()).prepare(template).apply(this, parameters, null);
+    } catch (RuntimeException e) {
+      token = null;
+      throw e;
+    }
+  }
+
+  public PreparedPatch prepare(final PatchTemplate template) {
+    try {
+      final PreparedPatchAdapter adapter = adapters.get
+        (template.getClass()).prepare(template);
+
+      return new PreparedPatch() {
+        public int apply(Object ... parameters) {
+          try {
+            checkParameterCount(template, parameters);
+
+            return adapter.apply(MyRevisionBuilder.this, parameters, null);
+          } catch (RuntimeException e) {
+            token = null;
+            throw e;
+          }
+        }
+
+        public PatchTemplate template() {
+          return template;
+        }
+      };
+    } catch (RuntimeException e) {
+      token = null;
+      throw e;
+    }
+  }
+
+  public BatchResult applyBatch(PatchTemplate template,
+                                Iterable<Object[]> parameters)
+  {
+    try {
+      PreparedPatchAdapter adapter = adapters.get
+        (template.getClass()).prepare(template);
+
+      List<Object[]> rows = new ArrayList<Object[]>();
+      final List<Object[]> keys = new ArrayList<Object[]>();
+      boolean sort = true;
+      for (Object[] row: parameters) {
+        checkParameterCount(template, row);
+        rows.add(row);
+
+        if (sort) {
+          Object[] key = adapter.key(this, row);
+          if (key == null) {
+            sort = false;
+          } else {
+            keys.add(key);
+          }
+        }
+      }
+
+      Integer[] order = new Integer[rows.size()];
+      for (int i = 0; i < order.length; ++i) {
+        order[i] = i;
+      }
+
+      if (sort) {
+        // apply the rows in primary key order, so that each write
+        // descends to a neighbor of the previous one, sharing any
+        // levels of the path we've already blazed.  The sort is
+        // stable, so rows with the same key are applied in the order
+        // given, and rows with different keys don't interact.
+        final List<Column<?>> columns
+          = adapter.table().primaryKey.columns;
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+              Object[] left = keys.get(a);
+              Object[] right = keys.get(b);
+              int length = Math.min(left.length, right.length);
+              for (int i = 0; i < length; ++i) {
+                int d = Compare.compare
+                  (left[i], right[i], columns.get(i).comparator);
+                if (d != 0) {
+                  return d;
+                }
+              }
+              return left.length - right.length;
+            }
+          });
+      }
+
+      MyBatchResult result = new MyBatchResult();
+      for (int i: order) {
+        adapter.apply(this, rows.get(i), result);
+        ++ result.rows;
+      }
+
+      return result;
     } catch (RuntimeException e) {
       token = null;
       throw e;
     }
   }
 
+  private static void checkParameterCount(PatchTemplate template,
+                                          Object[] parameters)
+  {
+    if (parameters.length != template.parameterCount()) {
+      throw new IllegalArgumentException
+        ("wrong number of parameters (expected "
+         + template.parameterCount() + "; got "
+         + parameters.length + ")");
+    }
+  }
+
   public RevisionBuilder delete(Object[] path,
                                 int pathOffset,
                                 int pathLength)
@@ -1224,6 +2148,19 @@ class MyRevisionBuilder implements RevisionBuilder {
     return insert(duplicateKeyResolution, path, 0, path.length);
   }
 
+  public int load(DuplicateKeyResolution duplicateKeyResolution,
+                  Table table,
+                  List<Column<?>> columns,
+                  List<Object[]> rows)
+  {
+    try {
+      return doLoad(duplicateKeyResolution, table, columns, rows);
+    } catch (RuntimeException e) {
+      token = null;
+      throw e;
+    }
+  }
+
   public RevisionBuilder add(Index index)
   {
     try {
@@ -1296,6 +2233,202 @@ class MyRevisionBuilder implements RevisionBuilder {
     return this;
   }
 
+  public RevisionBuilder bulkValidateForeignKeys() {
+    bulkForeignKeys = true;
+    return this;
+  }
+
+  public RevisionBuilder fork(Table table) {
+    return fork(table, null, null);
+  }
+
+  public RevisionBuilder fork(Table table, Object low, Object high) {
+    try {
+      return doFork
+        (table, low == null && high == null ? Interval.Unbounded
+         : new Interval
+         (low == null ? Compare.Undefined : low, Interval.BoundType.Inclusive,
+          high == null ? Compare.Undefined : high,
+          Interval.BoundType.Exclusive));
+    } catch (RuntimeException e) {
+      token = null;
+      throw e;
+    }
+  }
+
+  public void join(RevisionBuilder child) {
+    try {
+      doJoin((MyRevisionBuilder) child);
+    } catch (RuntimeException e) {
+      token = null;
+      throw e;
+    }
+  }
+
+  private MyRevisionBuilder doFork(Table table, Interval interval) {
+    if (token == null) {
+      throw new IllegalStateException("builder is no longer usable");
+    }
+
+    if (parent != null) {
+      throw new IllegalStateException("cannot fork a forked builder");
+    }
+
+    Comparator comparator = table.primaryKey.columns.get(0).comparator;
+    for (MyRevisionBuilder fork: forks) {
+      if (fork.forkTable.equals(table)
+          && Compare.compare
+          (interval.low, false, fork.forkInterval.high, true, comparator) < 0
+          && Compare.compare
+          (fork.forkInterval.low, false, interval.high, true, comparator) < 0)
+      {
+        throw new IllegalArgumentException
+          ("range overlaps that of an outstanding fork");
+      }
+    }
+
+    // the child plans its queries using our indexes, so bring them up
+    // to date first, then freeze what we have so it can be shared
+    updateIndexes();
+    setToken(new Token());
+
+    MyRevisionBuilder child = new MyRevisionBuilder
+      (new Token(), result, new NodeStack());
+    child.parent = this;
+    child.forkTable = table;
+    child.forkInterval = interval;
+
+    forks.add(child);
+
+    return child;
+  }
+
+  private void doJoin(MyRevisionBuilder child) {
+    if (child.parent != this || ! forks.contains(child)) {
+      throw new IllegalArgumentException
+        ("not an outstanding fork of this builder");
+    }
+
+    forks.remove(child);
+
+    if (child.token == null) {
+      throw new IllegalStateException
+        ("forked builder failed and cannot be joined");
+    }
+
+    child.token.frozen = true;
+    child.token = null;
+
+    Table table = child.forkTable;
+    Interval interval = child.forkInterval;
+    Comparator comparator = table.primaryKey.columns.get(0).comparator;
+
+    Node original = Node.pathFind
+      (child.base.root, table, Compare.TableComparator, table.primaryKey,
+       Compare.IndexComparator);
+
+    Node tree = Node.pathFind
+      (child.result.root, table, Compare.TableComparator, table.primaryKey,
+       Compare.IndexComparator);
+
+    if (tree == original) {
+      return;
+    }
+
+    // the child was forked from a frozen copy of our result, and we
+    // haven't touched this table since, so we need only swap in its
+    // version of the forked range
+    doPrepareForUpdate(table);
+
+    setKey(Constants.TableDataDepth, table, Compare.TableComparator);
+    setKey(Constants.IndexDataDepth, table.primaryKey,
+           Compare.IndexComparator);
+
+    Node merged;
+    if (interval == Interval.Unbounded) {
+      merged = tree;
+    } else {
+      merged = Node.replaceRange
+        (token, (Node) find(Constants.IndexDataDepth).value, interval,
+         comparator, tree);
+    }
+
+    // as with deleteRange, always replace the tree, since splitting
+    // may have rearranged nodes we own in place
+    replace(Constants.IndexDataDepth, merged);
+  }
+
+  private void checkWritable(Table table) {
+    if (parent != null && ! table.equals(forkTable)) {
+      throw new IllegalStateException
+        ("forked builder may only modify " + forkTable);
+    }
+
+    for (MyRevisionBuilder fork: forks) {
+      if (fork.forkTable.equals(table)) {
+        throw new IllegalStateException
+          ("cannot modify " + table + " until its forks are joined");
+      }
+    }
+  }
+
+  /**
+   * Throws an exception if this is a forked builder and the current
+   * path leads to a row of its table outside of its range.
+   */
+  private void checkInRange(int index) {
+    if (index >= Constants.IndexDataBodyDepth
+        && keys[Constants.TableDataDepth] == forkTable
+        && keys[Constants.IndexDataDepth] == forkTable.primaryKey)
+    {
+      Object key = keys[Constants.IndexDataBodyDepth];
+      Comparator comparator = comparators[Constants.IndexDataBodyDepth];
+      if (Compare.compare
+          (key, forkInterval.low, forkInterval.lowBoundType, false,
+           comparator) < 0
+          || Compare.compare
+          (key, forkInterval.high, forkInterval.highBoundType, true,
+           comparator) > 0)
+      {
+        throw new IllegalStateException
+          ("forked builder may not modify rows outside its range");
+      }
+    }
+  }
+
+  private static boolean contains(Interval outer,
+                                  Interval inner,
+                                  Comparator comparator)
+  {
+    int low = Compare.compare
+      (inner.low, false, outer.low, false, comparator);
+    int high = Compare.compare
+      (inner.high, true, outer.high, true, comparator);
+
+    return (low > 0
+            || (low == 0
+                && (inner.low == Compare.Undefined
+                    || outer.lowBoundType == Interval.BoundType.Inclusive
+                    || inner.lowBoundType == Interval.BoundType.Exclusive)))
+      && (high < 0
+          || (high == 0
+              && (inner.high == Compare.Undefined
+                  || outer.highBoundType == Interval.BoundType.Inclusive
+                  || inner.highBoundType == Interval.BoundType.Exclusive)));
+  }
+
+  private void checkSchemaWritable() {
+    if (parent != null) {
+      throw new IllegalStateException
+        ("forked builder may not modify the schema");
+    }
+
+    if (! forks.isEmpty()) {
+      throw new IllegalStateException
+        ("cannot modify the schema until all forks are joined");
+    }
+  }
+
   public boolean committed() {
     return token != null;
   }
@@ -1309,20 +2442,48 @@ class MyRevisionBuilder implements RevisionBuilder {
       return result;
     }
 
+    if (parent != null) {
+      throw new IllegalStateException
+        ("forked builders must be joined, not committed");
+    }
+
+    if (! forks.isEmpty()) {
+      throw new IllegalStateException
+        ("cannot commit until all forks are joined");
+    }
+
     updateIndexes();
 
     checkForeignKeys(foreignKeyResolver);
 
     updateIndexes();
 
-    setToken(new Object());
+    setToken(new Token());
+
+    // now that the result is frozen, cache hashes for any new nodes
+    // so later comparisons against it are cheap
+    result.hash();
 
     base = indexBase = result;
 
+    // drop references to the nodes we visited on the way here, which
+    // may belong to older revisions that would otherwise be garbage
+    Arrays.fill(keys, null);
+    max = -1;
+    appendCursor.root = null;
+    Arrays.fill(appendCursor.spine, null);
+    stack.release();
+    indexUpdateIterateStack = null;
+    indexUpdateBaseStack = null;
+    indexUpdateForkStack = null;
+    // column lists are usually template constants, but callers may
+    // pass a fresh one with each insert, so don't let them accumulate
+    columnOrders.clear();
+
     return result;
   }
 
-  private static MyRevision getRevision(Object token,
+  private static MyRevision getRevision(Token token,
                                         MyRevision basis,
                                         Node root)
   {
@@ -14,11 +14,14 @@ import java.util.Comparator;
 import javax.annotation.Nullable;
 
 import com.google.common.collect.Lists;
+import com.readytalk.revori.Comparators;
 
 class Node {
   private static final boolean Debug = false;
 
-  public static final Node Null = new Node(new Object(), null);
+  public static final Node Null = new Node(new Token(), null);
+
+  private static final int HashBase = 0x01000193;
 
   static {
     Null.left = Null;
@@ -26,14 +29,19 @@ class Node {
     Null.value = Null;
   }
 
-  public final Object token;
+  public final Token token;
   public Object key;
   public Object value;
   public Node left;
   public Node right;
   public boolean red;
+  // number of nodes in the subtree rooted here, including this one
+  public int size;
+  // cached result of hash(this, levels), or zero if not yet known;
+  // only set once this subtree can no longer change
+  public int hash;
     
-  public Node(Object token, @Nullable Node basis) {
+  public Node(Token token, @Nullable Node basis) {
     this.token = token;
 
     if (basis != null) {
@@ -42,10 +50,84 @@ class Node {
       left = basis.left;
       right = basis.right;
       red = basis.red;
+      size = basis.size;
+    }
+  }
+
+  public static boolean frozen(Node n) {
+    return n == Null || n.token.frozen;
+  }
+
+  private static boolean hashed(Node n) {
+    return n == Null || n.hash != 0;
+  }
+
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  private static int power(int exponent) {
+    int base = HashBase;
+    int result = 1;
+    while (exponent != 0) {
+      if ((exponent & 1) != 0) {
+        result *= base;
+      }
+      base *= base;
+      exponent >>>= 1;
+    }
+    return result;
+  }
+
+  /**
+   * Returns a hash of the contents of the specified tree, which is
+   * levels deep counting the row (i.e. column-keyed) trees at the
+   * bottom.  Trees with equal contents have equal hashes regardless
+   * of their shape, so unequal hashes prove two trees differ.  Equal
+   * hashes prove nothing, since keys above the row level only
+   * contribute their positions, and hashes may collide anyway.<p>
+   *
+   * Row trees are hashed as a sum over their (column, value) entries,
+   * while higher levels use a polynomial over the in-order sequence of
+   * their subtree hashes, which subtree sizes let us compose
+   * incrementally.  Results are cached in nodes which can no longer
+   * change, so rehashing a mostly-frozen revision is cheap.
+   */
+  public static int hash(Node n, int levels) {
+    if (n == Null) {
+      return 0;
+    }
+
+    int h = n.hash;
+    if (h != 0) {
+      return h;
     }
+
+    if (levels == 1) {
+      h = hash(n.left, levels) + hash(n.right, levels)
+        + mix((n.key.hashCode() * 31)
+              + (n.value == null ? 0 : n.value.hashCode()));
+    } else {
+      h = (hash(n.left, levels) * power(n.right.size + 1))
+        + (mix(hash((Node) n.value, levels - 1)) * power(n.right.size))
+        + hash(n.right, levels);
+    }
+
+    if (n.token.frozen && hashed(n.left) && hashed(n.right)
+        && (levels == 1 || hashed((Node) n.value)))
+    {
+      n.hash = h;
+    }
+
+    return h;
   }
 
-  public static Node getNode(Object token, Node basis) {
+  public static Node getNode(Token token, Node basis) {
     if (basis.token == token) {
       return basis;
     } else {
@@ -61,6 +143,12 @@ class Node {
   }
 
   public static Node find(Node n, Object key, Comparator comparator) {
+    if (comparator == Comparators.Ascending
+        && (key instanceof Integer || key instanceof Long))
+    {
+      return find(n, key, ((Number) key).longValue());
+    }
+
     while (n != Null) {
       int difference = Compare.compare(key, n.key, comparator);
       if (difference < 0) {
@@ -74,19 +162,125 @@ class Node {
     return Null;
   }
 
-  private static Node leftRotate(Object token, Node n) {
+  /**
+   * Specialization of find(Node, Object, Comparator) for Integer or
+   * Long keys in ascending order, which compares unboxed values
+   * directly rather than via Comparator.compare and
+   * Comparable.compareTo.  Tree keys of some other class (possible
+   * for columns of a more general type) fall back to the general
+   * comparison.
+   */
+  private static Node find(Node n, Object key, long value) {
+    Class keyClass = key.getClass();
+    while (n != Null) {
+      int difference = n.key.getClass() == keyClass
+        ? Compare.compare(value, ((Number) n.key).longValue())
+        : ((Comparable) key).compareTo(n.key);
+
+      if (difference < 0) {
+        n = n.left;
+      } else if (difference > 0) {
+        n = n.right;
+      } else {
+        return n;
+      }
+    }
+    return Null;
+  }
+
+  /**
+   * Returns the number of keys in the specified tree which are less
+   * than the specified key.
+   */
+  public static int rank(Node n, Object key, Comparator comparator) {
+    int rank = 0;
+    while (n != Null) {
+      int difference = Compare.compare(key, n.key, comparator);
+      if (difference < 0) {
+        n = n.left;
+      } else if (difference > 0) {
+        rank += n.left.size + 1;
+        n = n.right;
+      } else {
+        return rank + n.left.size;
+      }
+    }
+    return rank;
+  }
+
+  /**
+   * Pushes the path from the specified root to the node at the
+   * specified zero-based position (in key order) onto the specified
+   * stack, leaving that node on top so that NodeStack.next may be
+   * used to visit its successors.
+   */
+  public static void seek(NodeStack stack, Node n, int position) {
+    checkArgument(position >= 0 && position < n.size);
+
+    while (true) {
+      stack.push(n);
+      if (position < n.left.size) {
+        n = n.left;
+      } else if (position > n.left.size) {
+        position -= n.left.size + 1;
+        n = n.right;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the node at the specified zero-based position (in key
+   * order) in the specified tree.
+   */
+  public static Node select(Node n, int position) {
+    checkArgument(position >= 0 && position < n.size);
+
+    while (true) {
+      if (position < n.left.size) {
+        n = n.left;
+      } else if (position > n.left.size) {
+        position -= n.left.size + 1;
+        n = n.right;
+      } else {
+        return n;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of entries in the bottom level of a tree of
+   * trees the specified number of levels deep, where the value of
+   * each node above the bottom level is the root of the next level
+   * down.  This is just n.size for a single level.
+   */
+  public static int count(Node n, int levels) {
+    if (levels == 1 || n == Null) {
+      return n.size;
+    } else {
+      return count(n.left, levels) + count((Node) n.value, levels - 1)
+        + count(n.right, levels);
+    }
+  }
+
+  private static Node leftRotate(Token token, Node n) {
     if (Debug) checkArgument(n.token == token);
     Node child = getNode(token, n.right);
     n.right = child.left;
     child.left = n;
+    child.size = n.size;
+    n.size = n.left.size + n.right.size + 1;
     return child;
   }
 
-  private static Node rightRotate(Object token, Node n) {
+  private static Node rightRotate(Token token, Node n) {
     if (Debug) checkArgument(n.token == token);
     Node child = getNode(token, n.left);
     n.left = child.right;
     child.right = n;
+    child.size = n.size;
+    n.size = n.left.size + n.right.size + 1;
     return child;
   }
 
@@ -95,7 +289,7 @@ class Node {
   }
 
   public static Node blaze(BlazeResult result,
-                           Object token,
+                           Token token,
                            NodeStack stack,
                            Node root,
                            Object key,
@@ -108,7 +302,7 @@ class Node {
     }
 
     if (Debug) {
-      token = new Object();
+      token = new Token();
       validate(null, root);
     }
 
@@ -138,8 +332,11 @@ class Node {
     }
 
     new_.key = key;
+    new_.size = 1;
     result.node = new_;
 
+    adjustSizes(stack, 1);
+
     // rebalance
     new_.red = true;
 
@@ -225,7 +422,206 @@ class Node {
     return newRoot;
   }
 
-  private static void minimum(Object token,
+  /**
+   * Caches the right spine of a tree, from the root down to the node
+   * with the greatest key, so that greater keys may be appended
+   * without searching from the root.  The spine is owned by token,
+   * and is only valid as long as the tree is modified exclusively
+   * via append.
+   */
+  public static class AppendCursor {
+    public Token token;
+    public Node root;
+    public Node[] spine = new Node[32];
+    public int length;
+  }
+
+  /**
+   * Returns the node with the greatest key in the specified tree, or
+   * Null if it is empty.
+   */
+  public static Node last(Node root) {
+    Node n = root;
+    if (n != Null) {
+      while (n.right != Null) {
+        n = n.right;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Prepares the specified cursor to append to the specified tree,
+   * copying the right spine of the tree into the specified token if
+   * necessary.  The possibly new root is stored in cursor.root.
+   */
+  public static void startAppend(AppendCursor cursor,
+                                 Token token,
+                                 Node root)
+  {
+    cursor.token = token;
+    cursor.length = 0;
+
+    if (root == Null) {
+      cursor.root = Null;
+      return;
+    }
+
+    Node n = getNode(token, root);
+    cursor.root = n;
+    push(cursor, n);
+
+    while (n.right != Null) {
+      n = n.right = getNode(token, n.right);
+      push(cursor, n);
+    }
+  }
+
+  private static void push(AppendCursor cursor, Node n) {
+    if (cursor.length == cursor.spine.length) {
+      Node[] spine = new Node[cursor.spine.length * 2];
+      System.arraycopy(cursor.spine, 0, spine, 0, cursor.length);
+      cursor.spine = spine;
+    }
+    cursor.spine[cursor.length++] = n;
+  }
+
+  /**
+   * Adds a node for the specified key, which must be greater than
+   * any already in the cursor's tree, returning the new node and
+   * storing the possibly new root in cursor.root.  Since the new node
+   * always lands at the bottom of the spine, rebalancing never needs
+   * to look beyond the spine and the left children hanging off it,
+   * and takes amortized constant time.  The subtree sizes along the
+   * spine must each grow by one, but that is a tight loop over the
+   * cached spine rather than a search.
+   */
+  public static Node append(AppendCursor cursor, Object key) {
+    Token token = cursor.token;
+    Node n = getNode(token, Null);
+    n.key = key;
+    n.size = 1;
+
+    int length = cursor.length;
+    Node[] spine = cursor.spine;
+
+    for (int i = 0; i < length; ++i) {
+      ++ spine[i].size;
+    }
+
+    if (length == 0) {
+      cursor.root = n;
+      push(cursor, n);
+      return n;
+    }
+
+    spine[length - 1].right = n;
+    n.red = true;
+    push(cursor, n);
+    spine = cursor.spine;
+
+    int i = cursor.length - 1;
+    while (i > 1 && spine[i - 1].red) {
+      Node parent = spine[i - 1];
+      Node grandparent = spine[i - 2];
+
+      if (grandparent.left.red) {
+        parent.red = false;
+        grandparent.left = getNode(token, grandparent.left);
+        grandparent.left.red = false;
+        grandparent.red = true;
+        i -= 2;
+      } else {
+        // the new node and its parent are both right children, so a
+        // single rotation at the grandparent suffices, and it drops
+        // out of the spine
+        grandparent.right = parent.left;
+        parent.left = grandparent;
+        grandparent.red = true;
+        parent.red = false;
+        grandparent.size = grandparent.left.size + grandparent.right.size + 1;
+        parent.size = parent.left.size + parent.right.size + 1;
+
+        if (i > 2) {
+          spine[i - 3].right = parent;
+        } else {
+          cursor.root = parent;
+        }
+
+        System.arraycopy(spine, i - 1, spine, i - 2, cursor.length - i + 1);
+        -- cursor.length;
+        break;
+      }
+    }
+
+    cursor.root.red = false;
+
+    if (Debug) {
+      validate(null, cursor.root);
+    }
+
+    return n;
+  }
+
+  /**
+   * Builds a balanced tree from the first length elements of the
+   * specified arrays, which must be sorted by key and free of
+   * duplicates.  This takes linear time, versus n log n for the
+   * equivalent series of calls to blaze.
+   */
+  public static Node build(Token token,
+                           Object[] keys,
+                           Object[] values,
+                           int length)
+  {
+    // splitting at the midpoint fills every level but the deepest,
+    // so coloring that level red (and nothing else) keeps the black
+    // height uniform
+    Node root = build
+      (token, keys, values, 0, length, 0,
+       31 - Integer.numberOfLeadingZeros(length + 1));
+
+    if (Debug) {
+      validate(null, root);
+    }
+
+    return root;
+  }
+
+  private static Node build(Token token,
+                            Object[] keys,
+                            Object[] values,
+                            int start,
+                            int end,
+                            int depth,
+                            int redDepth)
+  {
+    if (start == end) {
+      return Null;
+    }
+
+    int middle = (start + end) >>> 1;
+    Node n = new Node(token, null);
+    n.key = keys[middle];
+    n.value = values[middle];
+    n.left = build(token, keys, values, start, middle, depth + 1, redDepth);
+    n.right = build
+      (token, keys, values, middle + 1, end, depth + 1, redDepth);
+    n.red = depth == redDepth;
+    n.size = end - start;
+    return n;
+  }
+
+  private static void adjustSizes(NodeStack stack, int delta) {
+    if (stack.top != null) {
+      stack.top.size += delta;
+    }
+    for (int i = stack.base; i < stack.index; ++i) {
+      stack.array[i].size += delta;
+    }
+  }
+
+  private static void minimum(Token token,
                               Node n,
                               NodeStack stack)
   {
@@ -238,7 +634,7 @@ class Node {
     stack.push(n);
   }
 
-  private static void successor(Object token,
+  private static void successor(Token token,
                                 Node n,
                                 NodeStack stack)
   {
@@ -254,14 +650,14 @@ class Node {
     }
   }
 
-  public static Node delete(Object token,
+  public static Node delete(Token token,
                             NodeStack stack,
                             Node root,
                             Object key,
                             Comparator comparator)
   {
     if (Debug) {
-      token = new Object();
+      token = new Token();
       validate(null, root);
     }
 
@@ -275,38 +671,47 @@ class Node {
       }
     }
 
-    stack = new NodeStack(stack);
-    Node newRoot = getNode(token, root);
+    if (key == null) throw new NullPointerException();
 
+    // find the node to delete before copying anything, remembering
+    // the path as a bit per level (the height of a red-black tree
+    // never approaches 64 in practice), so that deleting an absent
+    // key neither allocates nor compares twice
+    long directions = 0;
+    int length = 0;
     Node old = root;
-    Node new_ = newRoot;
     while (old != Null) {
-      if (key == null) throw new NullPointerException();
       if (old.key == null) {
         throw new NullPointerException();
       }
       int difference = Compare.compare(key, old.key, comparator);
       if (difference < 0) {
-        stack.push(new_);
         old = old.left;
-        new_ = new_.left = getNode(token, old);
+        ++ length;
       } else if (difference > 0) {
-        stack.push(new_);
+        directions |= 1L << length;
         old = old.right;
-        new_ = new_.right = getNode(token, old);
+        ++ length;
       } else {
         break;
       }
     }
 
     if (old == Null) {
-      if (stack.top.left == new_) {
-        stack.top.left = Null;
+      return root;
+    }
+
+    stack = new NodeStack(stack);
+    Node newRoot = getNode(token, root);
+
+    Node new_ = newRoot;
+    for (int i = 0; i < length; ++i) {
+      stack.push(new_);
+      if ((directions & (1L << i)) == 0) {
+        new_ = new_.left = getNode(token, new_.left);
       } else {
-        stack.top.right = Null;
+        new_ = new_.right = getNode(token, new_.right);
       }
-      stack.popStack();
-      return root;
     }
 
     Node dead;
@@ -340,6 +745,8 @@ class Node {
       stack.top.right = child;
     }
 
+    adjustSizes(stack, -1);
+
     if (dead != new_) {
       new_.key = dead.key;
       new_.value = dead.value;
@@ -484,6 +891,339 @@ class Node {
     return newRoot;
   }
 
+  public static class SplitResult {
+    // entries with keys less than the split key
+    public Node left;
+    // the entry whose key equals the split key, or Null if none
+    public Node node;
+    // entries with keys greater than the split key
+    public Node right;
+  }
+
+  private static Node makeNode(Token token,
+                               Object key,
+                               Object value,
+                               Node left,
+                               Node right,
+                               boolean red)
+  {
+    Node n = new Node(token, null);
+    n.key = key;
+    n.value = value;
+    n.left = left;
+    n.right = right;
+    n.red = red;
+    n.size = left.size + right.size + 1;
+    return n;
+  }
+
+  private static Node blacken(Token token, Node n) {
+    if (n.red) {
+      n = getNode(token, n);
+      n.red = false;
+    }
+    return n;
+  }
+
+  /**
+   * Returns the number of black nodes on each path from the specified
+   * node down to (but not including) Null.
+   */
+  private static int blackHeight(Node n) {
+    int height = 0;
+    for (; n != Null; n = n.left) {
+      if (! n.red) {
+        ++ height;
+      }
+    }
+    return height;
+  }
+
+  /**
+   * Returns a tree containing the entries of left, then an entry for
+   * the specified key and value, then the entries of right, which
+   * must be in that order.  This takes time proportional to the
+   * difference in the heights of the two trees.
+   */
+  public static Node join(Token token,
+                          Node left,
+                          Object key,
+                          Object value,
+                          Node right)
+  {
+    left = blacken(token, left);
+    right = blacken(token, right);
+
+    int leftHeight = blackHeight(left);
+    int rightHeight = blackHeight(right);
+
+    Node n;
+    if (leftHeight > rightHeight) {
+      n = joinRight(token, left, leftHeight, key, value, right, rightHeight);
+    } else if (leftHeight < rightHeight) {
+      n = joinLeft(token, left, leftHeight, key, value, right, rightHeight);
+    } else {
+      n = makeNode(token, key, value, left, right, false);
+    }
+
+    return blacken(token, n);
+  }
+
+  /**
+   * Descends the right spine of the specified tree until it finds a
+   * black node with the same black height as right, replaces it with
+   * a red node joining the two, and fixes any resulting red-red
+   * violation on the way back up.
+   */
+  private static Node joinRight(Token token,
+                                Node n,
+                                int height,
+                                Object key,
+                                Object value,
+                                Node right,
+                                int rightHeight)
+  {
+    if ((! n.red) && height == rightHeight) {
+      return makeNode(token, key, value, n, right, true);
+    }
+
+    n = getNode(token, n);
+    n.right = joinRight
+      (token, n.right, n.red ? height : height - 1, key, value, right,
+       rightHeight);
+    n.size = n.left.size + n.right.size + 1;
+
+    if ((! n.red) && n.right.red && n.right.right.red) {
+      n.right.right = getNode(token, n.right.right);
+      n.right.right.red = false;
+      n = leftRotate(token, n);
+    }
+
+    return n;
+  }
+
+  private static Node joinLeft(Token token,
+                               Node left,
+                               int leftHeight,
+                               Object key,
+                               Object value,
+                               Node n,
+                               int height)
+  {
+    if ((! n.red) && height == leftHeight) {
+      return makeNode(token, key, value, left, n, true);
+    }
+
+    n = getNode(token, n);
+    n.left = joinLeft
+      (token, left, leftHeight, key, value, n.left,
+       n.red ? height : height - 1);
+    n.size = n.left.size + n.right.size + 1;
+
+    if ((! n.red) && n.left.red && n.left.left.red) {
+      n.left.left = getNode(token, n.left.left);
+      n.left.left.red = false;
+      n = rightRotate(token, n);
+    }
+
+    return n;
+  }
+
+  /**
+   * Splits the specified tree around the specified key, storing the
+   * result in the specified SplitResult.  This takes time
+   * logarithmic in the size of the tree, as opposed to the linear
+   * time needed to build the pieces entry by entry.  Nodes owned by
+   * the specified token may be reused by the result, so the original
+   * tree must not be used afterward unless it is frozen.
+   */
+  public static void split(Token token,
+                           Node root,
+                           Object key,
+                           Comparator comparator,
+                           SplitResult result)
+  {
+    splitTree(token, root, key, comparator, result);
+
+    result.left = blacken(token, result.left);
+    result.right = blacken(token, result.right);
+
+    if (Debug) {
+      validate(null, result.left);
+      validate(null, result.right);
+    }
+  }
+
+  private static void splitTree(Token token,
+                                Node n,
+                                Object key,
+                                Comparator comparator,
+                                SplitResult result)
+  {
+    if (n == Null) {
+      result.left = Null;
+      result.node = Null;
+      result.right = Null;
+      return;
+    }
+
+    int difference = Compare.compare(key, n.key, comparator);
+    if (difference < 0) {
+      splitTree(token, n.left, key, comparator, result);
+      result.right = join(token, result.right, n.key, n.value, n.right);
+    } else if (difference > 0) {
+      splitTree(token, n.right, key, comparator, result);
+      result.left = join(token, n.left, n.key, n.value, result.left);
+    } else {
+      result.left = n.left;
+      result.node = n;
+      result.right = n.right;
+    }
+  }
+
+  /**
+   * Returns a tree containing the entries of left followed by those
+   * of right, which must be in that order.
+   */
+  public static Node concatenate(Token token,
+                                 Node left,
+                                 Node right,
+                                 Comparator comparator)
+  {
+    if (right == Null) {
+      return left;
+    } else if (left == Null) {
+      return right;
+    }
+
+    Node first = right;
+    while (first.left != Null) {
+      first = first.left;
+    }
+
+    SplitResult result = new SplitResult();
+    split(token, right, first.key, comparator, result);
+    return join(token, left, first.key, first.value, result.right);
+  }
+
+  /**
+   * Splits the specified tree into the entries before, within, and
+   * after the specified interval, storing them in result.left,
+   * result.node, and result.right respectively.  As with split, the
+   * original tree must not be used afterward unless it is frozen.
+   */
+  private static void splitRange(Token token,
+                                 Node root,
+                                 Interval interval,
+                                 Comparator comparator,
+                                 SplitResult result)
+  {
+    Node before;
+    Node rest;
+    if (interval.low == Compare.Undefined) {
+      before = Null;
+      rest = root;
+    } else {
+      split(token, root, interval.low, comparator, result);
+      before = result.left;
+      rest = result.right;
+      if (result.node != Null) {
+        if (interval.lowBoundType == Interval.BoundType.Inclusive) {
+          rest = join(token, Null, result.node.key, result.node.value, rest);
+        } else {
+          before = join
+            (token, before, result.node.key, result.node.value, Null);
+        }
+      }
+    }
+
+    Node middle;
+    Node after;
+    if (interval.high == Compare.Undefined) {
+      middle = rest;
+      after = Null;
+    } else {
+      split(token, rest, interval.high, comparator, result);
+      middle = result.left;
+      after = result.right;
+      if (result.node != Null) {
+        if (interval.highBoundType == Interval.BoundType.Inclusive) {
+          middle = join
+            (token, middle, result.node.key, result.node.value, Null);
+        } else {
+          after = join(token, Null, result.node.key, result.node.value, after);
+        }
+      }
+    }
+
+    result.left = before;
+    result.node = middle;
+    result.right = after;
+  }
+
+  /**
+   * Removes from the specified tree every entry whose key lies within
+   * the specified interval, returning what remains and storing a tree
+   * of the removed entries in removed.node.  This takes time
+   * logarithmic in the size of the tree, regardless of how many
+   * entries are removed.  As with split, the original tree must not
+   * be used afterward unless it is frozen.
+   */
+  public static Node removeRange(Token token,
+                                 Node root,
+                                 Interval interval,
+                                 Comparator comparator,
+                                 BlazeResult removed)
+  {
+    if (Debug) {
+      validate(null, root);
+    }
+
+    SplitResult result = new SplitResult();
+    splitRange(token, root, interval, comparator, result);
+
+    removed.node = result.node;
+
+    Node n = concatenate(token, result.left, result.right, comparator);
+
+    if (Debug) {
+      validate(null, n);
+      validate(null, removed.node);
+    }
+
+    return n;
+  }
+
+  /**
+   * Returns a tree containing the entries of root which lie outside
+   * the specified interval and the entries of replacement which lie
+   * within it.  Like removeRange, this takes time logarithmic in the
+   * sizes of the trees, and neither tree may be used afterward unless
+   * it is frozen.
+   */
+  public static Node replaceRange(Token token,
+                                  Node root,
+                                  Interval interval,
+                                  Comparator comparator,
+                                  Node replacement)
+  {
+    SplitResult result = new SplitResult();
+    splitRange(token, replacement, interval, comparator, result);
+    Node middle = result.node;
+
+    splitRange(token, root, interval, comparator, result);
+
+    Node n = concatenate
+      (token, concatenate(token, result.left, middle, comparator),
+       result.right, comparator);
+
+    if (Debug) {
+      validate(null, n);
+    }
+
+    return n;
+  }
+
   private static void trouble(Node original, Node n, RuntimeException e) {
     System.err.println("before:");
     if (original != null) dump(original, System.err, 0);
@@ -531,6 +1271,10 @@ class Node {
         validate(original, (Node) x.value);
       }
 
+      if (x.size != x.left.size + x.right.size + 1) {
+        trouble(original, n, new RuntimeException("inconsistent size!"));
+      }
+
       if (x.red && (x.left.red || x.right.red)) {
         trouble(original, n, new RuntimeException
                 ("red node has red child(ren)!"));
@@ -575,6 +1319,12 @@ class Node {
       return fork == Node.Null;
     } else if (fork == Node.Null) {
       return base == Node.Null;
+    } else if (frozen(base) && frozen(fork)
+               && hash(base, 1) != hash(fork, 1))
+    {
+      // only trust hashes we can cache; otherwise computing them
+      // would cost more than the comparison they might save
+      return false;
     } else {
       DiffIterator iterator = new DiffIterator
         (base, baseStack = new NodeStack(baseStack),
@@ -7,6 +7,8 @@
 
 package com.readytalk.revori.imp;
 
+import java.util.Arrays;
+
 import javax.annotation.Nullable;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -103,6 +105,21 @@ class NodeStack {
     index = base;
   }
 
+  /**
+   * Clears this stack and drops any node references left behind in
+   * its array by earlier use.  Otherwise, a long-lived stack may keep
+   * the nodes (and hence whole subtrees) of long-dead revisions
+   * reachable.
+   */
+  public void release() {
+    checkArgument(previous == null);
+
+    clear();
+    if (array != null) {
+      Arrays.fill(array, base, array.length, null);
+    }
+  }
+
   public void descend(int oppositeDirection) {
     if (oppositeDirection > 0) {
       push(top.left);
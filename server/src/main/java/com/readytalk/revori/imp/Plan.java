@@ -7,12 +7,24 @@
 
 package com.readytalk.revori.imp;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 import com.google.common.collect.Lists;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.Index;
 import com.readytalk.revori.TableReference;
 
 class Plan {
+  /**
+   * Cost of visiting an entry above the bottom level of an index,
+   * relative to that of visiting a row, which must also be tested.
+   */
+  private static final double BranchCost = 0.5;
+
   public final Index index;
   public final int size;
   public final ColumnReferenceAdapter[] references;
@@ -20,6 +32,7 @@ class Plan {
   public final DiffIterator[] iterators;
   public boolean match;
   public boolean complete = true;
+  public double cost;
 
   public Plan(Index index) {
     this.index = index;
@@ -29,6 +42,50 @@ class Plan {
     this.iterators = new DiffIterator[size];
   }
 
+  /**
+   * Returns the values to which this plan's scans restrict the
+   * leading columns of its index, as evaluated using the current
+   * values of any parameters, stopping at the first column which is
+   * not restricted to a single value.  Returns null if even the first
+   * column is unrestricted.
+   */
+  public Object[] pointPrefix() {
+    Object[] values = new Object[size];
+    int count = 0;
+    for (; count < size; ++count) {
+      List<Interval> intervals = scans[count].evaluate();
+      if (intervals.size() != 1) {
+        break;
+      }
+
+      Interval interval = intervals.get(0);
+      if (interval.low == null
+          || interval.low == Compare.Undefined
+          || interval.low == Compare.Dummy
+          || interval.high == null
+          || interval.high == Compare.Undefined
+          || interval.high == Compare.Dummy
+          || interval.lowBoundType != Interval.BoundType.Inclusive
+          || interval.highBoundType != Interval.BoundType.Inclusive
+          || (! Compare.equal
+              (interval.low, interval.high,
+               index.columns.get(count).comparator)))
+      {
+        break;
+      }
+
+      values[count] = interval.low;
+    }
+
+    if (count == 0) {
+      return null;
+    } else if (count < size) {
+      return Arrays.copyOf(values, count);
+    } else {
+      return values;
+    }
+  }
+
   private static ColumnReferenceAdapter findColumnReference
     (ExpressionAdapter expression,
      TableReference tableReference,
@@ -83,14 +140,23 @@ class Plan {
       }
     }
             
+    return improvePlan(best, plan);
+  }
+
+  /**
+   * Returns whichever of the specified plans is preferable based on
+   * the structure of the test alone, i.e. without regard to the
+   * contents of the indexes.
+   */
+  private static Plan improvePlan(Plan best, Plan plan) {
     if (best == null
         || (plan.match && (! best.match))
         || (plan.complete && (! best.complete)))
     {
-      best = plan;
+      return plan;
+    } else {
+      return best;
     }
-    
-    return best;
   }
 
   public static Plan choosePlan(MyRevision base,
@@ -100,20 +166,35 @@ class Plan {
                                 ExpressionAdapter test,
                                 TableReference tableReference)
   {
-    Plan best = improvePlan
-      (null, tableReference.table.primaryKey, test, tableReference);
+    return choosePlan
+      (base, baseStack, fork, forkStack, test, tableReference, null);
+  }
 
-    DiffIterator indexIterator = new DiffIterator
-      (Node.pathFind(base.root, Constants.IndexTable, Compare.TableComparator,
-                     Constants.IndexTable.primaryKey, Compare.IndexComparator,
-                     tableReference.table, Constants.TableColumn.comparator),
-       baseStack = new NodeStack(baseStack),
-       Node.pathFind(fork.root, Constants.IndexTable, Compare.TableComparator,
-                     Constants.IndexTable.primaryKey, Compare.IndexComparator,
-                     tableReference.table, Constants.TableColumn.comparator),
-       forkStack = new NodeStack(forkStack),
-       Lists.newArrayList(Interval.Unbounded).iterator(),
-       true, Compare.IndexComparator);
+  /**
+   * Like choosePlan(MyRevision, NodeStack, MyRevision, NodeStack,
+   * ExpressionAdapter, TableReference), but consults and updates the
+   * specified cache (if non-null) so that repeated planning against
+   * the same index metadata (e.g. once per outer row of a nested
+   * loop join) neither rescans that metadata nor reconsiders indexes
+   * which have already lost.
+   */
+  public static Plan choosePlan(MyRevision base,
+                                NodeStack baseStack,
+                                MyRevision fork,
+                                NodeStack forkStack,
+                                ExpressionAdapter test,
+                                TableReference tableReference,
+                                Cache cache)
+  {
+    Node baseIndexes = Node.pathFind
+      (base.root, Constants.IndexTable, Compare.TableComparator,
+       Constants.IndexTable.primaryKey, Compare.IndexComparator,
+       tableReference.table, Constants.TableColumn.comparator);
+
+    Node forkIndexes = Node.pathFind
+      (fork.root, Constants.IndexTable, Compare.TableComparator,
+       Constants.IndexTable.primaryKey, Compare.IndexComparator,
+       tableReference.table, Constants.TableColumn.comparator);
 
     boolean baseEmpty
       = Node.find(base.root, tableReference.table, Compare.TableComparator)
@@ -123,6 +204,69 @@ class Plan {
       = Node.find(fork.root, tableReference.table, Compare.TableComparator)
       == Node.Null;
 
+    if (cache != null
+        && cache.indexes != null
+        && cache.base == baseIndexes
+        && cache.fork == forkIndexes
+        && cache.baseEmpty == baseEmpty
+        && cache.forkEmpty == forkEmpty)
+    {
+      if (cache.test == test) {
+        return improvePlan(null, cache.best, test, tableReference);
+      }
+    } else {
+      List<Index> indexes = indexes
+        (baseIndexes, baseStack, forkIndexes, forkStack, baseEmpty,
+         forkEmpty, tableReference);
+
+      if (cache == null) {
+        return choosePlan(indexes, test, tableReference, base, fork);
+      }
+
+      // index metadata which may still be modified in place can't be
+      // identified by the nodes which hold it, so don't remember
+      // anything about it:
+      if (Node.frozen(baseIndexes) && Node.frozen(forkIndexes)) {
+        cache.base = baseIndexes;
+        cache.fork = forkIndexes;
+        cache.baseEmpty = baseEmpty;
+        cache.forkEmpty = forkEmpty;
+        cache.indexes = indexes;
+      } else {
+        cache.indexes = null;
+        return choosePlan(indexes, test, tableReference, base, fork);
+      }
+    }
+
+    Plan best = choosePlan
+      (cache.indexes, test, tableReference, base, fork);
+    cache.test = test;
+    cache.best = best.index;
+    return best;
+  }
+
+  /**
+   * Returns the indexes (other than the primary key) which are
+   * available for the specified table reference in both of the
+   * specified revisions, ignoring a revision in which the table is
+   * empty.
+   */
+  private static List<Index> indexes(Node baseIndexes,
+                                     NodeStack baseStack,
+                                     Node forkIndexes,
+                                     NodeStack forkStack,
+                                     boolean baseEmpty,
+                                     boolean forkEmpty,
+                                     TableReference tableReference)
+  {
+    List<Index> indexes = new ArrayList<Index>();
+
+    DiffIterator indexIterator = new DiffIterator
+      (baseIndexes, baseStack = new NodeStack(baseStack),
+       forkIndexes, forkStack = new NodeStack(forkStack),
+       Lists.newArrayList(Interval.Unbounded).iterator(),
+       true, Constants.IndexColumn.comparator);
+
     DiffIterator.DiffPair pair = new DiffIterator.DiffPair();
     while (indexIterator.next(pair)) {
       if ((pair.base == null && ! baseEmpty)
@@ -135,16 +279,252 @@ class Plan {
         (pair.base == null ? pair.fork.key : pair.base.key);
 
       if (! index.equals(tableReference.table.primaryKey)) {
-        best = improvePlan(best, index, test, tableReference);
+        indexes.add(index);
       }
     }
 
     baseStack.popStack();
     forkStack.popStack();
 
+    return indexes;
+  }
+
+  /**
+   * Returns an index available for the specified table reference in
+   * both of the specified revisions whose first column is the
+   * specified column, preferring the primary key, or null if there
+   * is no such index.  Iterating over a table using such an index
+   * visits rows in order of their values for that column.
+   */
+  public static Index orderedIndex(MyRevision base,
+                                   NodeStack baseStack,
+                                   MyRevision fork,
+                                   NodeStack forkStack,
+                                   TableReference tableReference,
+                                   Column<?> column)
+  {
+    return orderedIndex
+      (base, baseStack, fork, forkStack, tableReference,
+       Collections.<Column<?>>singletonList(column));
+  }
+
+  /**
+   * Like orderedIndex(MyRevision, NodeStack, MyRevision, NodeStack,
+   * TableReference, Column), but finds an index whose leading columns
+   * are the specified columns, in the specified order.
+   */
+  public static Index orderedIndex(MyRevision base,
+                                   NodeStack baseStack,
+                                   MyRevision fork,
+                                   NodeStack forkStack,
+                                   TableReference tableReference,
+                                   List<Column<?>> columns)
+  {
+    Index primaryKey = tableReference.table.primaryKey;
+    if (startsWith(primaryKey, columns)) {
+      return primaryKey;
+    }
+
+    List<Index> indexes = indexes
+      (Node.pathFind
+       (base.root, Constants.IndexTable, Compare.TableComparator,
+        Constants.IndexTable.primaryKey, Compare.IndexComparator,
+        tableReference.table, Constants.TableColumn.comparator),
+       baseStack,
+       Node.pathFind
+       (fork.root, Constants.IndexTable, Compare.TableComparator,
+        Constants.IndexTable.primaryKey, Compare.IndexComparator,
+        tableReference.table, Constants.TableColumn.comparator),
+       forkStack,
+       Node.find(base.root, tableReference.table, Compare.TableComparator)
+       == Node.Null,
+       Node.find(fork.root, tableReference.table, Compare.TableComparator)
+       == Node.Null,
+       tableReference);
+
+    for (Index index: indexes) {
+      if (startsWith(index, columns)) {
+        return index;
+      }
+    }
+
+    return null;
+  }
+
+  private static boolean startsWith(Index index, List<Column<?>> columns) {
+    return index.columns.size() >= columns.size()
+      && index.columns.subList(0, columns.size()).equals(columns);
+  }
+
+  /**
+   * Returns a plan which uses the specified index, restricted as far
+   * as possible by the specified test.
+   */
+  public static Plan choosePlan(Index index,
+                                ExpressionAdapter test,
+                                TableReference tableReference)
+  {
+    return improvePlan(null, index, test, tableReference);
+  }
+
+  /**
+   * Like choosePlan(Index, ExpressionAdapter, TableReference), but
+   * also estimates the cost of the plan for the specified revisions.
+   */
+  public static Plan choosePlan(Index index,
+                                ExpressionAdapter test,
+                                TableReference tableReference,
+                                MyRevision base,
+                                MyRevision fork)
+  {
+    Plan plan = improvePlan(null, index, test, tableReference);
+    plan.cost = cost
+      (plan, Node.pathFind
+       (base.root, tableReference.table, Compare.TableComparator),
+       Node.pathFind
+       (fork.root, tableReference.table, Compare.TableComparator));
+    return plan;
+  }
+
+  private static Plan choosePlan(List<Index> indexes,
+                                 ExpressionAdapter test,
+                                 TableReference tableReference,
+                                 MyRevision base,
+                                 MyRevision fork)
+  {
+    Node baseTable = Node.pathFind
+      (base.root, tableReference.table, Compare.TableComparator);
+    Node forkTable = Node.pathFind
+      (fork.root, tableReference.table, Compare.TableComparator);
+
+    Plan best = improvePlan
+      (null, tableReference.table.primaryKey, test, tableReference);
+    best.cost = cost(best, baseTable, forkTable);
+
+    for (Index index: indexes) {
+      Plan plan = improvePlan(null, index, test, tableReference);
+
+      // an index which the test doesn't restrict can be no better
+      // than the primary key, and it might not even be up to date if
+      // we're in the middle of building a revision:
+      if (plan.match) {
+        plan.cost = cost(plan, baseTable, forkTable);
+
+        if (plan.cost < best.cost
+            || (plan.cost == best.cost && improvePlan(best, plan) == plan))
+        {
+          best = plan;
+        }
+      }
+    }
+
     return best;
   }
 
+  /**
+   * Estimates the cost of iterating over the specified table trees
+   * using the specified plan, given the current values of any
+   * parameters and column references from other tables.  The unit
+   * of cost is a row visited (and tested) at the bottom level of the
+   * index, with entries visited at higher levels costing BranchCost
+   * each.
+   *
+   * Rather than relying on separately maintained statistics, this
+   * consults the indexes themselves: every node tracks the size of
+   * its subtree, so the number of keys in an interval at any level
+   * of an index is available in logarithmic time via Node.rank.
+   * Below the first level which is not restricted to a single value,
+   * we extrapolate from a sample subtree taken from the middle of
+   * each interval.
+   */
+  private static double cost(Plan plan, Node baseTable, Node forkTable) {
+    return cost(plan, Node.pathFind
+                (baseTable, plan.index, Compare.IndexComparator), 0)
+      + cost(plan, Node.pathFind
+             (forkTable, plan.index, Compare.IndexComparator), 0);
+  }
+
+  private static double cost(Plan plan, Node tree, int level) {
+    if (tree == Node.Null) {
+      return 0;
+    }
+
+    Comparator comparator = plan.index.columns.get(level).comparator;
+    boolean bottom = level == plan.size - 1;
+    double cost = 0;
+
+    for (Interval interval: plan.scans[level].evaluate()) {
+      if (interval.low != Compare.Undefined
+          && interval.high != Compare.Undefined
+          && interval.lowBoundType == Interval.BoundType.Inclusive
+          && interval.highBoundType == Interval.BoundType.Inclusive
+          && Compare.equal(interval.low, interval.high, comparator))
+      {
+        Node n = Node.find(tree, interval.low, comparator);
+        if (n != Node.Null) {
+          cost += bottom ? 1
+            : BranchCost + cost(plan, (Node) n.value, level + 1);
+        }
+      } else {
+        int low = position(tree, interval.low, interval.lowBoundType,
+                           false, comparator);
+        int high = position(tree, interval.high, interval.highBoundType,
+                            true, comparator);
+
+        if (high > low) {
+          cost += bottom ? high - low : (high - low) * (BranchCost + cost
+            (plan, (Node) Node.select(tree, (low + high) / 2).value,
+             level + 1));
+        }
+      }
+    }
+
+    return cost;
+  }
+
+  /**
+   * Returns the position in the specified tree at which an interval
+   * bounded by the specified value starts (if high is false) or just
+   * past which it ends (if high is true).
+   */
+  private static int position(Node tree,
+                              Object value,
+                              Interval.BoundType boundType,
+                              boolean high,
+                              Comparator comparator)
+  {
+    if (value == Compare.Undefined) {
+      return high ? tree.size : 0;
+    }
+
+    int rank = Node.rank(tree, value, comparator);
+    if ((high == (boundType == Interval.BoundType.Inclusive))
+        && Node.find(tree, value, comparator) != Node.Null)
+    {
+      ++ rank;
+    }
+    return rank;
+  }
+
+  /**
+   * Remembers which indexes were available for a table reference the
+   * last time a plan was chosen for it, and which of those was best
+   * for a given test (as estimated using whatever parameter and
+   * column reference values were in effect at the time).  Indexes are identified by the (frozen) index
+   * metadata nodes of the revisions being compared, so a cache
+   * remains valid for as long as those nodes do.  A cache must not
+   * be shared between threads.
+   */
+  public static class Cache {
+    private Node base;
+    private Node fork;
+    private boolean baseEmpty;
+    private boolean forkEmpty;
+    private List<Index> indexes;
+    private ExpressionAdapter test;
+    private Index best;
+  }
+
   private static class ColumnReferenceFinder
     implements ExpressionAdapterVisitor
   {
@@ -0,0 +1,44 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import javax.annotation.Nullable;
+
+import com.readytalk.revori.Table;
+
+/**
+ * A patch template whose expression adapters have been built once so
+ * that it may be applied repeatedly, rebinding only its parameters
+ * each time.  Instances are not thread safe.
+ */
+interface PreparedPatchAdapter {
+  /**
+   * Applies this patch using the specified parameters, adding the
+   * outcome to the specified statistics, if any, and returning the
+   * number of rows affected.
+   */
+  public int apply(MyRevisionBuilder builder,
+                   Object[] parameters,
+                   @Nullable MyBatchResult statistics);
+
+  /**
+   * Returns the leading primary key values of the row(s) this patch
+   * would affect if applied with the specified parameters, or null if
+   * they cannot be determined without applying it, or if applying it
+   * might affect other rows in some order-dependent way (e.g. by
+   * moving rows to new primary keys).  Patches whose keys are known
+   * may be applied in key order rather than the order given.
+   */
+  @Nullable
+  public Object[] key(MyRevisionBuilder builder, Object[] parameters);
+
+  /**
+   * Returns the table this patch modifies.
+   */
+  public Table table();
+}
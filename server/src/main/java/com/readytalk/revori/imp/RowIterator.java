@@ -0,0 +1,86 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Visits the bottom-level nodes of a tree of trees (e.g. the body of
+ * an index, whose bottom-level values are rows) in key order,
+ * starting at a given position and using subtree sizes to skip what
+ * comes before it.
+ */
+class RowIterator {
+  private final NodeStack[] stacks;
+
+  public RowIterator(Node root, int levels, int offset) {
+    stacks = new NodeStack[levels];
+    for (int i = 0; i < levels; ++i) {
+      stacks[i] = new NodeStack();
+    }
+
+    Node tree = root;
+    for (int i = 0; i < levels - 1; ++i) {
+      // skip whole groups until we reach the one containing offset
+      NodeStack s = stacks[i];
+      if (tree != Node.Null) {
+        s.push(tree);
+        s.descendToLeftmost();
+      }
+
+      while (s.top != null) {
+        int count = Node.count((Node) s.top.value, levels - i - 1);
+        if (offset < count) {
+          break;
+        }
+        offset -= count;
+        s.next();
+      }
+
+      if (s.top == null) {
+        return;
+      }
+
+      tree = (Node) s.top.value;
+    }
+
+    if (offset < tree.size) {
+      Node.seek(stacks[levels - 1], tree, offset);
+    }
+  }
+
+  public boolean hasNext() {
+    return stacks[stacks.length - 1].top != null;
+  }
+
+  public Node next() {
+    Node n = stacks[stacks.length - 1].top;
+    if (n == null) {
+      throw new NoSuchElementException();
+    }
+
+    int i = stacks.length - 1;
+    stacks[i].next();
+    while (stacks[i].top == null) {
+      if (i == 0) {
+        return n;
+      }
+      stacks[--i].next();
+    }
+
+    // descend to the leftmost entry of each level below the one we
+    // just advanced
+    for (++i; i < stacks.length; ++i) {
+      stacks[i].clear();
+      stacks[i].push((Node) stacks[i - 1].top.value);
+      stacks[i].descendToLeftmost();
+    }
+
+    return n;
+  }
+}
@@ -0,0 +1,78 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.readytalk.revori.ColumnReference;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Comparators;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Source;
+import com.readytalk.revori.SourceVisitor;
+import com.readytalk.revori.TableReference;
+
+/**
+ * Query result for a template with order-by expressions or a limit,
+ * but no aggregates, which sorts the rows of the diff in memory.  Rows are
+ * ordered by the order-by expressions and then by the primary keys of
+ * the tables in the template's source, which is the same order in
+ * which a temporary view of the query would have been visited.  If a
+ * capacity is given, only that many of the first rows in that order
+ * are kept.
+ */
+class SortedQueryResult extends BufferedQueryResult {
+  public SortedQueryResult(MyRevision base,
+                           MyRevision fork,
+                           QueryTemplate template,
+                           Object[] parameters,
+                           int capacity)
+  {
+    final List<Expression> expressions = new ArrayList<Expression>
+      (template.expressions);
+    final List<Comparator> comparators = new ArrayList<Comparator>();
+
+    for (QueryTemplate.OrderExpression e: template.orderByExpressions) {
+      expressions.add(e.expression);
+      comparators.add(e.comparator);
+    }
+
+    template.source.visit(new SourceVisitor() {
+        public void visit(Source source) {
+          if (source instanceof TableReference) {
+            TableReference tableReference = (TableReference) source;
+            for (Column<?> c: tableReference.table.primaryKey.columns) {
+              expressions.add(new ColumnReference(tableReference, c));
+              comparators.add(Comparators.Ascending);
+            }
+          }
+        }
+      });
+
+    MyQueryResult result = new MyQueryResult
+      (base, null, fork, null, new QueryTemplate
+       (expressions, template.source, template.test), parameters);
+
+    order(comparators, capacity);
+
+    int size = template.expressions.size();
+    while (true) {
+      QueryResult.Type type = result.nextRow();
+      if (type == QueryResult.Type.End) {
+        break;
+      }
+
+      add(type, evaluate(result.expressions, 0, size),
+          evaluate(result.expressions, size, comparators.size()));
+    }
+  }
+}
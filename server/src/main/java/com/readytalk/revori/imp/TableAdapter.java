@@ -7,13 +7,27 @@
 
 package com.readytalk.revori.imp;
 
+import javax.annotation.Nullable;
+
+import com.readytalk.revori.Index;
 import com.readytalk.revori.TableReference;
 
 class TableAdapter implements SourceAdapter {
   public final TableReference tableReference;
+  public final Index index;
+  private final Plan.Cache planCache = new Plan.Cache();
 
   public TableAdapter(TableReference tableReference) {
+    this(tableReference, null);
+  }
+
+  /**
+   * Creates an adapter which always iterates using the specified
+   * index (if non-null), and thus visits rows in that index's order.
+   */
+  public TableAdapter(TableReference tableReference, @Nullable Index index) {
     this.tableReference = tableReference;
+    this.index = index;
   }
 
   public TableIterator iterator(MyRevision base,
@@ -26,7 +40,26 @@ class TableAdapter implements SourceAdapter {
   {
     return new TableIterator
       (tableReference, base, baseStack, fork, forkStack, test,
-       expressionContext, visitUnchanged);
+       expressionContext, index == null
+       ? Plan.choosePlan
+       (base, baseStack, fork, forkStack, test, tableReference, planCache)
+       : Plan.choosePlan(index, test, tableReference),
+       visitUnchanged);
+  }
+
+  /**
+   * Estimates the number of index entries which an iterator over
+   * this table would visit given the current values of any
+   * parameters and column references from other tables.
+   */
+  public double estimate(MyRevision base,
+                         NodeStack baseStack,
+                         MyRevision fork,
+                         NodeStack forkStack,
+                         ExpressionAdapter test)
+  {
+    return Plan.choosePlan
+      (base, baseStack, fork, forkStack, test, tableReference).cost;
   }
 
   public void visit(SourceAdapterVisitor visitor) {
@@ -10,7 +10,6 @@ package com.readytalk.revori.imp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
 import com.readytalk.revori.QueryResult;
 import com.readytalk.revori.TableReference;
@@ -121,7 +120,7 @@ class TableIterator implements SourceIterator {
                                             forkStack, (Node) pair.fork.value,
                                             plan.iterators[depth].comparator)
                            : valuesEqual(expressionContext.queryExpressions,
-                                         expressionContext.columnReferences,
+                                         columnReferences,
                                          (Node) pair.base.value,
                                          (Node) pair.fork.value)))
                        
@@ -191,7 +190,7 @@ class TableIterator implements SourceIterator {
     return v;
   }
 
-  private static void setValue(ColumnReferenceAdapter r, Node tree) {
+  static void setValue(ColumnReferenceAdapter r, Node tree) {
     Object v = Node.find(tree, r.column, Compare.ColumnComparator).value();
     if (v != null && ! r.column.type.isInstance(v)) {
       throw new ClassCastException
@@ -203,7 +202,7 @@ class TableIterator implements SourceIterator {
 
   private static Object[] evaluate
     (List<ExpressionAdapter> expressions,
-     Set<ColumnReferenceAdapter> columnReferences, Node tree)
+     List<ColumnReferenceAdapter> columnReferences, Node tree)
   {
     for (ColumnReferenceAdapter r: columnReferences) {
       setValue(r, tree);
@@ -220,7 +219,7 @@ class TableIterator implements SourceIterator {
 
   private static boolean valuesEqual
     (List<ExpressionAdapter> expressions,
-     Set<ColumnReferenceAdapter> columnReferences, Node base, Node fork)
+     List<ColumnReferenceAdapter> columnReferences, Node base, Node fork)
   {
     Object[] forkValues = evaluate(expressions, columnReferences, fork);
     Object[] baseValues = evaluate(expressions, columnReferences, base);
@@ -0,0 +1,18 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.imp;
+
+/**
+ * Identifies the owner of a set of nodes, which only that owner may
+ * modify in place.  Once a token is frozen, nothing will modify its
+ * nodes again, so values derived from them (e.g. Node.hash) may be
+ * cached in them.
+ */
+class Token {
+  public boolean frozen;
+}
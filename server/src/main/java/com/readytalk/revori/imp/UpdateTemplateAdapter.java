@@ -10,6 +10,8 @@ package com.readytalk.revori.imp;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import com.readytalk.revori.Column;
 import com.readytalk.revori.DuplicateKeyException;
 import com.readytalk.revori.Expression;
@@ -20,57 +22,42 @@ import com.readytalk.revori.Table;
 import com.readytalk.revori.UpdateTemplate;
 
 class UpdateTemplateAdapter implements PatchTemplateAdapter {
-  public int apply(MyRevisionBuilder builder,
-                   PatchTemplate template,
-                   Object[] parameters)
-  {
-    UpdateTemplate update = (UpdateTemplate) template;
-
-    ExpressionContext expressionContext = new ExpressionContext(parameters, null);
-
-    ExpressionAdapter test = ExpressionAdapterFactory.makeAdapter
-      (expressionContext, update.test);
-
-    List<ExpressionAdapter> valueAdapters = new ArrayList<ExpressionAdapter>
-      (update.values.size());
-
-    for (Expression e: update.values) {
-      valueAdapters.add
-        (ExpressionAdapterFactory.makeAdapter(expressionContext, e));
-    }
-
-    Table table = update.tableReference.table;
-
-    builder.setKey(Constants.TableDataDepth, table, Compare.TableComparator);
+  public PreparedPatchAdapter prepare(PatchTemplate template) {
+    return new Prepared((UpdateTemplate) template);
+  }
 
-    Plan plan = Plan.choosePlan
-      (MyRevision.Empty, NodeStack.Null, builder.result, builder.stack, test,
-       update.tableReference);
+  private static class Prepared implements PreparedPatchAdapter {
+    private final UpdateTemplate update;
+    private final ExpressionContext expressionContext;
+    private final ExpressionAdapter test;
+    private final ExpressionAdapter[] valueAdapters;
+    private final int[] keyColumnsUpdated;
+    private final Object[] values;
+    private final Node.BlazeResult result = new Node.BlazeResult();
 
-    builder.updateIndex(plan.index);
+    public Prepared(UpdateTemplate update) {
+      this.update = update;
 
-    Object[] values = new Object[update.columns.size()];
-    Node.BlazeResult result = new Node.BlazeResult();
-    int count = 0;
-    MyRevision revision = builder.result;
+      expressionContext = new ExpressionContext
+        (new Object[update.parameterCount()], null);
 
-    Index index = table.primaryKey;
+      test = ExpressionAdapterFactory.makeAdapter
+        (expressionContext, update.test);
 
-    builder.setKey(Constants.IndexDataDepth, index, Compare.IndexComparator);
+      valueAdapters = new ExpressionAdapter[update.values.size()];
+      for (int i = 0; i < valueAdapters.length; ++i) {
+        valueAdapters[i] = ExpressionAdapterFactory.makeAdapter
+          (expressionContext, update.values.get(i));
+      }
 
-    TableIterator iterator = new TableIterator
-      (update.tableReference, MyRevision.Empty, NodeStack.Null, revision,
-       new NodeStack(), test, expressionContext, plan, false);
+      values = new Object[update.columns.size()];
 
-    List<Column<?>> keyColumns = index.columns;
+      List<Column<?>> keyColumns
+        = update.tableReference.table.primaryKey.columns;
 
-    int[] keyColumnsUpdated;
-    { List<Column<?>> columnList = new ArrayList<Column<?>>();
+      List<Column<?>> columnList = new ArrayList<Column<?>>();
       for (Column<?> c: keyColumns) {
         if (update.columns.contains(c)) {
-          if (columnList == null) {
-            columnList = new ArrayList<Column<?>>();
-          }
           columnList.add(c);
         }
       }
@@ -84,113 +71,172 @@ class UpdateTemplateAdapter implements PatchTemplateAdapter {
         }
       }
     }
+
+    private Plan plan(MyRevisionBuilder builder) {
+      // the best index depends on the parameter values just bound as
+      // well as on which indexes exist, so cost the candidates afresh
+      // each time rather than reusing a plan chosen for an earlier
+      // parameter set
+      return Plan.choosePlan
+        (MyRevision.Empty, NodeStack.Null, builder.result, builder.stack,
+         test, update.tableReference);
+    }
+
+    public Table table() {
+      return update.tableReference.table;
+    }
+
+    public Object[] key(MyRevisionBuilder builder, Object[] parameters) {
+      expressionContext.bind(parameters);
+
+      Plan plan = plan(builder);
+      if (keyColumnsUpdated == null
+          && plan.index.equals(update.tableReference.table.primaryKey))
+      {
+        return plan.pointPrefix();
+      } else {
+        return null;
+      }
+    }
+
+    public int apply(MyRevisionBuilder builder,
+                     Object[] parameters,
+                     @Nullable MyBatchResult statistics)
+    {
+      expressionContext.bind(parameters);
+
+      Table table = update.tableReference.table;
+
+      builder.setKey
+        (Constants.TableDataDepth, table, Compare.TableComparator);
+
+      Plan plan = plan(builder);
+
+      builder.updateIndex(plan.index);
+
+      int count = 0;
+      MyRevision revision = builder.result;
+
+      Index index = table.primaryKey;
+
+      builder.setKey
+        (Constants.IndexDataDepth, index, Compare.IndexComparator);
+
+      TableIterator iterator = new TableIterator
+        (update.tableReference, MyRevision.Empty, NodeStack.Null, revision,
+         new NodeStack(), test, expressionContext, plan, false);
+
+      List<Column<?>> keyColumns = index.columns;
         
-    Object updateToken = index.equals(plan.index) ? null : builder.token;
-
-    count = 0;
-    boolean done = false;
-    while (! done) {
-      QueryResult.Type type = iterator.nextRow();
-      switch (type) {
-      case End:
-        done = true;
-        break;
+      Token updateToken = index.equals(plan.index) ? null : builder.token;
+
+      count = 0;
+      boolean done = false;
+      while (! done) {
+        QueryResult.Type type = iterator.nextRow();
+        switch (type) {
+        case End:
+          done = true;
+          break;
       
-      case Inserted: {
-        builder.prepareForUpdate(table);
+        case Inserted: {
+          builder.prepareForUpdate(table);
 
-        ++ count;
+          ++ count;
 
-        for (int i = 0; i < update.columns.size(); ++i) {
-          values[i] = valueAdapters.get(i).evaluate(false);
-        }
+          for (int i = 0; i < update.columns.size(); ++i) {
+            values[i] = valueAdapters[i].evaluate(false);
+          }
+
+          Node original = (Node) iterator.pair.fork.value;
+
+          boolean keyValuesChanged = false;
+          if (keyColumnsUpdated != null) {
+            // some of the columns in the current index are being
+            // updated, but we don't need to remove and reinsert the
+            // row unless at least one is actually changing to a new
+            // value
+            for (int columnIndex: keyColumnsUpdated) {
+              Column c = keyColumns.get(columnIndex);
+              if (! Compare.equal
+                  (values[columnIndex], Node.find
+                   (original, c, Compare.ColumnComparator).value, c.comparator))
+              {
+                keyValuesChanged = true;
+                break;
+              }
+            }
 
-        Node original = (Node) iterator.pair.fork.value;
-
-        boolean keyValuesChanged = false;
-        if (keyColumnsUpdated != null) {
-          // some of the columns in the current index are being
-          // updated, but we don't need to remove and reinsert the
-          // row unless at least one is actually changing to a new
-          // value
-          for (int columnIndex: keyColumnsUpdated) {
-            Column c = keyColumns.get(columnIndex);
-            if (! Compare.equal
-                (values[columnIndex], Node.find
-                 (original, c, Compare.ColumnComparator).value, c.comparator))
-            {
-              keyValuesChanged = true;
+            if (! keyValuesChanged) {
               break;
             }
-          }
 
-          if (! keyValuesChanged) {
-            break;
+            if (updateToken == null) {
+              builder.setToken(updateToken = new Token());
+            }
+
+            int i = 0;
+            for (; i < keyColumns.size() - 1; ++i) {
+              Column c = keyColumns.get(i);
+              builder.setKey
+                (i + Constants.IndexDataBodyDepth,
+                 Node.find(original, c, Compare.ColumnComparator).value,
+                 c.comparator);
+            }
+
+            Column c = keyColumns.get(i);
+            builder.deleteKey
+              (i + Constants.IndexDataBodyDepth,
+               Node.find(original, c, Compare.ColumnComparator).value,
+               c.comparator);
           }
 
-          if (updateToken == null) {
-            builder.setToken(updateToken = new Object());
+          Node tree = original;
+
+          for (int i = 0; i < update.columns.size(); ++i) {
+            Column<?> column = update.columns.get(i);
+            Object value = Compare.validate(values[i], column.type);
+
+            if (value == null) {
+              tree = Node.delete
+                (builder.token, builder.stack, tree, column,
+                 Compare.ColumnComparator);
+            } else {
+              tree = Node.blaze
+                (result, builder.token, builder.stack, tree, column,
+                 Compare.ColumnComparator);
+              result.node.value = value;
+            }
           }
 
           int i = 0;
           for (; i < keyColumns.size() - 1; ++i) {
-            Column c = keyColumns.get(i);
+              Column c = keyColumns.get(i);
             builder.setKey
               (i + Constants.IndexDataBodyDepth,
-               Node.find(original, c, Compare.ColumnComparator).value,
-               c.comparator);
+               Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
           }
 
           Column c = keyColumns.get(i);
-          builder.deleteKey
+          Node n = builder.blaze
             (i + Constants.IndexDataBodyDepth,
-             Node.find(original, c, Compare.ColumnComparator).value,
-             c.comparator);
-        }
-
-        Node tree = original;
-
-        for (int i = 0; i < update.columns.size(); ++i) {
-          Column<?> column = update.columns.get(i);
-          Object value = Compare.validate(values[i], column.type);
+             Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
 
-          if (value == null) {
-            tree = Node.delete
-              (builder.token, builder.stack, tree, column,
-               Compare.ColumnComparator);
+          if (n.value == Node.Null || (! keyValuesChanged)) {
+            n.value = tree;
           } else {
-            tree = Node.blaze
-              (result, builder.token, builder.stack, tree, column,
-               Compare.ColumnComparator);
-            result.node.value = value;
+            throw new DuplicateKeyException();
           }
-        }
+        } break;
 
-        int i = 0;
-        for (; i < keyColumns.size() - 1; ++i) {
-            Column c = keyColumns.get(i);
-          builder.setKey
-            (i + Constants.IndexDataBodyDepth,
-             Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+        default:
+          throw new RuntimeException("unexpected result type: " + type);
         }
+      }
 
-        Column c = keyColumns.get(i);
-        Node n = builder.blaze
-          (i + Constants.IndexDataBodyDepth,
-           Node.find(tree, c, Compare.ColumnComparator).value, c.comparator);
+      if (statistics != null) statistics.updated += count;
 
-        if (n.value == Node.Null || (! keyValuesChanged)) {
-          n.value = tree;
-        } else {
-          throw new DuplicateKeyException();
-        }
-      } break;
-
-      default:
-        throw new RuntimeException("unexpected result type: " + type);
-      }
+      return count;
     }
-      
-    return count;
   }
 }
@@ -434,22 +434,20 @@ public class SQLServer implements RevisionServer {
   }
 
   private static class CopyContext {
-    public final RevisionBuilder builder;
-    public final PatchTemplate template;
+    public final Revision base;
+    public final InsertTemplate template;
     public final List<Class> columnTypes;
     public final StringBuilder stringBuilder = new StringBuilder();
-    public final Object[] parameters;
-    public int count;
+    public final List<Object[]> rows = new ArrayList<Object[]>();
     public boolean trouble;
 
-    public CopyContext(RevisionBuilder builder,
-                       PatchTemplate template,
+    public CopyContext(Revision base,
+                       InsertTemplate template,
                        List<Class> columnTypes)
     {
-      this.builder = builder;
+      this.base = base;
       this.template = template;
       this.columnTypes = columnTypes;
-      this.parameters = new Object[columnTypes.size()];
     }
   }
 
@@ -1054,7 +1052,17 @@ public class SQLServer implements RevisionServer {
            makeExpressionFromWhere(client.server, tree.get(4), tableReferences),
            tests)),
          makeExpressionsFromGroupBy(client.server, tree.get(5), tableReferences),
-         makeOrderExpressionsFromOrderBy(client.server, tree.get(6), tableReferences));
+         makeOrderExpressionsFromOrderBy(client.server, tree.get(6), tableReferences),
+         makeNumber(tree.get(7), QueryTemplate.Unlimited),
+         makeNumber(tree.get(8), 0));
+  }
+
+  private static int makeNumber(Tree tree, int defaultValue) {
+    if (tree == Nothing) {
+      return defaultValue;
+    } else {
+      return Integer.parseInt(((Literal) tree.get(1)).value);
+    }
   }
 
   private static MyColumn findColumn(MyTable table,
@@ -1165,7 +1173,7 @@ public class SQLServer implements RevisionServer {
     throw new RuntimeException();
   }
 
-  private static PatchTemplate makeCopyTemplate(Client client,
+  private static InsertTemplate makeCopyTemplate(Client client,
                                                 Tree tree,
                                                 List<Class> columnTypes)
   {
@@ -1487,14 +1495,12 @@ public class SQLServer implements RevisionServer {
     }
   }
 
-  private static void copy(RevisionBuilder builder,
-                           PatchTemplate template,
-                           List<Class> columnTypes,
-                           StringBuilder sb,
-                           Object[] parameters,
-                           String line)
+  private static Object[] copy(List<Class> columnTypes,
+                               StringBuilder sb,
+                               String line)
     throws IOException
   {
+    Object[] parameters = new Object[columnTypes.size()];
     boolean sawEscape = false;
     int index = 0;
     for (int i = 0; i < line.length(); ++i) {
@@ -1536,7 +1542,23 @@ public class SQLServer implements RevisionServer {
 
     parameters[index] = convert(columnTypes.get(index), sb.toString());
     sb.setLength(0);
-    builder.apply(template, parameters);
+    return parameters;
+  }
+
+  private static int copy(RevisionBuilder builder,
+                          PatchTemplate template,
+                          List<Object[]> rows)
+  {
+    int count = 0;
+    try {
+      for (Object[] row: rows) {
+        builder.apply(template, row);
+        ++ count;
+      }
+    } catch (Exception e) {
+      log.log(Level.WARNING, null, e);
+    }
+    return count;
   }
 
   private static void applyCopy(Client client,
@@ -1546,17 +1568,30 @@ public class SQLServer implements RevisionServer {
   {
     CopyContext c = client.copyContext;
     if ("\\.".equals(line)) {
-      setTag(client, new Tag("head", c.builder.commit()));
+      RevisionBuilder builder = c.base.builder();
+      int count;
+      try {
+        count = builder.load
+          (c.template.duplicateKeyResolution, c.template.table,
+           c.template.columns, c.rows);
+      } catch (Exception e) {
+        log.log(Level.WARNING, null, e);
+
+        // keep the rows preceding the first one which can't be
+        // inserted, just as if we had inserted each row as we read it
+        builder = c.base.builder();
+        count = copy(builder, c.template, c.rows);
+      }
+
+      setTag(client, new Tag("head", builder.commit()));
       commitTransaction(client);
       popTransaction(client);
       out.write(Response.Success.ordinal());
-      writeString(out, "inserted " + c.count + " row(s)");
+      writeString(out, "inserted " + count + " row(s)");
       client.copyContext = null;
     } else if (! c.trouble) {
       try {
-        copy(c.builder, c.template, c.columnTypes,
-             c.stringBuilder, c.parameters, line);
-        ++ c.count;
+        c.rows.add(copy(c.columnTypes, c.stringBuilder, line));
       } catch (Exception e) {
         c.trouble = true;
         log.log(Level.WARNING, null, e);
@@ -2125,7 +2160,9 @@ public class SQLServer implements RevisionServer {
           optional(sequence(terminal("group"), terminal("by"),
               list(expression()))),
           optional(sequence(terminal("order"), terminal("by"),
-              list(sequence(expression(), optional(or(terminal("desc"), terminal("asc")))))))),
+              list(sequence(expression(), optional(or(terminal("desc"), terminal("asc"))))))),
+          optional(sequence(terminal("limit"), numberLiteral())),
+          optional(sequence(terminal("offset"), numberLiteral()))),
          new Task() {
            public void run(Client client,
                            Tree tree,
@@ -2265,7 +2302,7 @@ public class SQLServer implements RevisionServer {
            {
              List<Class> columnTypes = new ArrayList<Class>();
              client.copyContext = new CopyContext
-               (head(client).builder(), makeCopyTemplate
+               (head(client), makeCopyTemplate
                 (client, tree, columnTypes), columnTypes);
 
              pushTransaction(client);
@@ -9,16 +9,24 @@ package com.readytalk.revori.server;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import com.readytalk.revori.ConflictResolver;
+import com.readytalk.revori.ConflictResolvers;
 import com.readytalk.revori.ForeignKeyResolver;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Index;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.Revisions;
 import com.readytalk.revori.server.protocol.Readable;
 import com.readytalk.revori.subscribe.Subscription;
 
 public class Servers {
+  private static final int MaxCatchUpRounds = 8;
+
   public static RevisionServer asynchronousRevisionServer
     (final RevisionServer server,
      ConflictResolver conflictResolver,
@@ -68,6 +76,57 @@ public class Servers {
     };
   }
 
+  /**
+   * Adds the specified index to the specified server without making
+   * writers wait while its data tree is built.<p>
+   *
+   * The tree is built by the specified handler from a snapshot of the
+   * server's head.  Any changes merged into the server meanwhile are
+   * then applied to the new tree incrementally, after which the index
+   * is merged into the server in one step.  Until then, the head
+   * revision does not contain the index, so queries continue to be
+   * planned as before.<p>
+   *
+   * The returned future yields the server's head as of the moment the
+   * index became visible.
+   */
+  public static ListenableFuture<Revision> addIndex
+    (final RevisionServer server,
+     final Index index,
+     TaskHandler handler)
+  {
+    ListenableFutureTask<Revision> task = ListenableFutureTask.create
+      (new Callable<Revision>() {
+        public Revision call() {
+          Revision base = server.head();
+          Revision fork = base.builder().add(index).commit();
+
+          // catch up with whatever was merged while we were building,
+          // repeating in case more arrives while we do so, so that the
+          // final merge into the server has little left to do
+          for (int i = 0; i < MaxCatchUpRounds; ++i) {
+            Revision head = server.head();
+            if (head == base) {
+              break;
+            }
+
+            fork = base.merge
+              (fork, head, ConflictResolvers.Restrict,
+               ForeignKeyResolvers.Restrict);
+            base = head;
+          }
+
+          server.merge(base, fork);
+
+          return server.head();
+        }
+      });
+
+    handler.handleTask(task);
+
+    return task;
+  }
+
   private static class AsynchronousRevisionServer implements RevisionServer {
     protected final RevisionServer server;
     private final ConflictResolver conflictResolver;
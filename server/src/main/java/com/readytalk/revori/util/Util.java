@@ -19,6 +19,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.DiffResult;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
 import com.readytalk.revori.Revision;
 import com.readytalk.revori.Table;
 import com.readytalk.revori.imp.Constants;
@@ -147,6 +149,27 @@ public class Util {
     }
   }
 
+  // one "<type> <value> <value> ..." string per row of the query
+  // diff, in the order the query produces them
+  public static List<String> toStrings(Revision base, Revision fork,
+                                       QueryTemplate template)
+  {
+    List<String> list = new ArrayList<String>();
+    QueryResult result = base.diff(fork, template);
+    while (true) {
+      QueryResult.Type type = result.nextRow();
+      if (type == QueryResult.Type.End) {
+        return list;
+      }
+
+      StringBuilder sb = new StringBuilder().append(type);
+      for (int i = 0; i < template.expressions.size(); ++i) {
+        sb.append(" ").append(result.nextItem());
+      }
+      list.add(sb.toString());
+    }
+  }
+
   public static Object convert(Class<?> type,
                                 String value)
   {
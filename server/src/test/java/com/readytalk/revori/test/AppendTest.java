@@ -0,0 +1,142 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+public class AppendTest {
+  private static Revision shuffled(Table events, Column<String> name,
+                                   Index byName, Map<Long, String> model,
+                                   Random random)
+  {
+    List<Long> keys = new ArrayList<Long>(model.keySet());
+    Collections.shuffle(keys, random);
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byName);
+    for (Long key: keys) {
+      builder.insert(Overwrite, events, key, name, model.get(key));
+    }
+    return builder.commit();
+  }
+
+  @Test
+  public void testAscendingKeys() {
+    Column<Long> time = new Column<Long>(Long.class);
+    Column<String> name = new Column<String>(String.class);
+    Table events = new Table(cols(time));
+    Index byName = new Index(events, cols(name, time));
+    Random random = new Random(42);
+    Map<Long, String> model = new TreeMap<Long, String>();
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byName);
+    for (long key = 0; key < 5000; ++key) {
+      builder.insert(Overwrite, events, key, name, "event" + key);
+      model.put(key, "event" + key);
+    }
+    Revision head = builder.commit();
+
+    assertEquals(shuffled(events, name, byName, model, random), head);
+    assertEquals(5000, head.count(events.primaryKey));
+    assertEquals("event1234", head.query(name, events.primaryKey, 1234L));
+    assertEquals(Long.valueOf(4999L),
+                 head.query(time, byName, "event4999", 4999L));
+  }
+
+  @Test
+  public void testAppendsMixedWithOtherWrites() {
+    Column<Long> time = new Column<Long>(Long.class);
+    Column<String> name = new Column<String>(String.class);
+    Table events = new Table(cols(time));
+    Index byName = new Index(events, cols(name, time));
+    Random random = new Random(42);
+    Map<Long, String> model = new TreeMap<Long, String>();
+
+    Revision head = Revisions.Empty.builder().add(byName).commit();
+    long next = 0;
+    for (int i = 0; i < 10; ++i) {
+      RevisionBuilder builder = head.builder();
+      for (int j = 0; j < 500; ++j) {
+        String value = "event" + i + "." + j;
+        long key;
+        switch (random.nextInt(10)) {
+        case 0:
+          // out of order, possibly an existing key
+          key = random.nextInt((int) next + 1);
+          break;
+
+        case 1:
+          key = next - random.nextInt(3);
+          if (model.remove(key) != null) {
+            builder.delete(events, key);
+          }
+          continue;
+
+        default:
+          key = next++;
+          break;
+        }
+
+        builder.insert(Overwrite, events, key, name, value);
+        model.put(key, value);
+      }
+      head = builder.commit();
+
+      assertEquals(shuffled(events, name, byName, model, random), head);
+    }
+  }
+
+  @Test
+  public void testCompoundKeys() {
+    Column<Long> time = new Column<Long>(Long.class);
+    Column<Long> sequence = new Column<Long>(Long.class);
+    Column<String> name = new Column<String>(String.class);
+    Table samples = new Table(cols(time, sequence));
+    Random random = new Random(42);
+    List<Object[]> rows = new ArrayList<Object[]>();
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (long t = 0; t < 100; ++t) {
+      for (long s = 0; s < 50; ++s) {
+        builder.insert(Overwrite, samples, t, s, name, t + "." + s);
+        rows.add(new Object[] { t, s });
+      }
+    }
+    Revision head = builder.commit();
+
+    Collections.shuffle(rows, random);
+    builder = Revisions.Empty.builder();
+    for (Object[] row: rows) {
+      builder.insert
+        (Overwrite, samples, row[0], row[1], name, row[0] + "." + row[1]);
+    }
+
+    assertEquals(builder.commit(), head);
+    assertEquals(5000, head.count(samples.primaryKey));
+    assertEquals("42.7", head.query(name, samples.primaryKey, 42L, 7L));
+  }
+}
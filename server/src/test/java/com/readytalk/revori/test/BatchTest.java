@@ -0,0 +1,222 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.greaterThanOrEqual;
+import static com.readytalk.revori.ExpressionFactory.parameter;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.BatchResult;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.DeleteTemplate;
+import com.readytalk.revori.DuplicateKeyResolution;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.InsertTemplate;
+import com.readytalk.revori.PatchTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.UpdateTemplate;
+
+public class BatchTest {
+  private static Revision sequential(Revision base,
+                                     PatchTemplate template,
+                                     List<Object[]> rows)
+  {
+    RevisionBuilder builder = base.builder();
+    for (Object[] row: rows) {
+      builder.apply(template, row);
+    }
+    return builder.commit();
+  }
+
+  private static Revision batch(Revision base,
+                                PatchTemplate template,
+                                List<Object[]> rows,
+                                int affected)
+  {
+    RevisionBuilder builder = base.builder();
+    BatchResult result = builder.applyBatch(template, rows);
+    assertEquals(rows.size(), result.rows());
+    assertEquals(affected, result.affected());
+    return builder.commit();
+  }
+
+  private static int count(Revision head, Index index,
+                           List<Object[]> updates)
+  {
+    int count = 0;
+    for (Object[] row: updates) {
+      count += head.count(index, row[0]);
+    }
+    return count;
+  }
+
+  @Test
+  public void testBatchesMatchSequentialApplication() {
+    Column<String> country = new Column<String>(String.class);
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(country, number));
+    TableReference numbersReference = new TableReference(numbers);
+
+    PatchTemplate overwrite = new InsertTemplate
+      (numbers, cols(country, number, name),
+       Lists.newArrayList((Expression) parameter(), parameter(), parameter()),
+       DuplicateKeyResolution.Overwrite);
+
+    PatchTemplate skip = new InsertTemplate
+      (numbers, cols(country, number, name),
+       Lists.newArrayList((Expression) parameter(), parameter(), parameter()),
+       DuplicateKeyResolution.Skip);
+
+    PatchTemplate update = new UpdateTemplate
+      (numbersReference,
+       equal(reference(numbersReference, country), parameter()),
+       cols(name),
+       Lists.newArrayList((Expression) parameter()));
+
+    PatchTemplate rename = new UpdateTemplate
+      (numbersReference,
+       equal(reference(numbersReference, name), parameter()),
+       cols(name),
+       Lists.newArrayList((Expression) parameter()));
+
+    PatchTemplate delete = new DeleteTemplate
+      (numbersReference,
+       equal(reference(numbersReference, country), parameter()));
+
+    Random random = new Random(42);
+    String[] countries = { "France", "USA", "China", "Peru", "Chile" };
+
+    List<Object[]> inserts = new ArrayList<Object[]>();
+    for (int i = 0; i < 1000; ++i) {
+      inserts.add(new Object[] {
+          countries[random.nextInt(countries.length)],
+          random.nextInt(200), "name" + i });
+    }
+
+    Revision head = sequential(Revisions.Empty, overwrite, inserts);
+    assertEquals(head, batch(Revisions.Empty, overwrite, inserts, 1000));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    BatchResult result = builder.applyBatch(skip, inserts);
+    assertEquals(1000, result.rows());
+    assertEquals(1000 - result.skipped(), result.inserted());
+    assertEquals(0, result.overwritten());
+    Revision skipped = builder.commit();
+    assertEquals
+      (skipped, sequential(Revisions.Empty, skip, inserts));
+
+    int unique = result.inserted();
+
+    builder = Revisions.Empty.builder();
+    result = builder.applyBatch(overwrite, inserts);
+    assertEquals(unique, result.inserted());
+    assertEquals(1000 - unique, result.overwritten());
+    assertEquals(0, result.skipped());
+
+    List<Object[]> updates = new ArrayList<Object[]>();
+    for (int i = 0; i < 20; ++i) {
+      updates.add(new Object[] {
+          countries[random.nextInt(countries.length)], "update" + i });
+    }
+    Revision updated = sequential(head, update, updates);
+    assertEquals(updated, batch
+                 (head, update, updates,
+                  count(head, numbers.primaryKey, updates)));
+
+    // renames may chain, so they must be done in the order given
+    builder = Revisions.Empty.builder();
+    builder.applyBatch
+      (overwrite, Lists.newArrayList
+       (new Object[] { "Peru", 1, "x" }, new Object[] { "Peru", 2, "y" }));
+    Revision small = builder.commit();
+
+    List<Object[]> renames = new ArrayList<Object[]>();
+    renames.add(new Object[] { "x", "a" });
+    renames.add(new Object[] { "a", "b" });
+    renames.add(new Object[] { "y", "a" });
+    Revision renamed = sequential(small, rename, renames);
+    assertEquals(renamed, batch(small, rename, renames, 3));
+    assertEquals("b", renamed.query(name, numbers.primaryKey, "Peru", 1));
+    assertEquals("a", renamed.query(name, numbers.primaryKey, "Peru", 2));
+
+    List<Object[]> deletes = new ArrayList<Object[]>();
+    deletes.add(new Object[] { "USA" });
+    deletes.add(new Object[] { "France" });
+    deletes.add(new Object[] { "USA" });
+    builder = head.builder();
+    result = builder.applyBatch(delete, deletes);
+    assertEquals(sequential(head, delete, deletes), builder.commit());
+    assertEquals(result.deleted(), result.affected());
+    assertEquals(head.count(numbers.primaryKey, "USA")
+                 + head.count(numbers.primaryKey, "France"),
+                 result.deleted());
+  }
+
+  @Test
+  public void testOneSidedRanges() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    TableReference numbersReference = new TableReference(numbers);
+
+    PatchTemplate insert = new InsertTemplate
+      (numbers, cols(number, name),
+       Lists.newArrayList((Expression) parameter(), parameter()),
+       DuplicateKeyResolution.Throw);
+
+    PatchTemplate update = new UpdateTemplate
+      (numbersReference,
+       greaterThanOrEqual(reference(numbersReference, number), parameter()),
+       cols(name),
+       Lists.newArrayList((Expression) parameter()));
+
+    PatchTemplate delete = new DeleteTemplate
+      (numbersReference,
+       greaterThanOrEqual(reference(numbersReference, number), parameter()));
+
+    List<Object[]> inserts = new ArrayList<Object[]>();
+    for (int i = 0; i < 100; ++i) {
+      inserts.add(new Object[] { i, "name" + i });
+    }
+    Revision head = batch(Revisions.Empty, insert, inserts, 100);
+
+    // a lower bound alone doesn't restrict the key to a single value,
+    // so these can't be sorted by key, but must still be applied
+    List<Object[]> updates = new ArrayList<Object[]>();
+    updates.add(new Object[] { 90, "ninety" });
+    updates.add(new Object[] { 50, "fifty" });
+    updates.add(new Object[] { 95, "ninety-five" });
+    Revision updated = sequential(head, update, updates);
+    assertEquals(updated, batch(head, update, updates, 10 + 50 + 5));
+    assertEquals("fifty", updated.query(name, numbers.primaryKey, 92));
+
+    List<Object[]> deletes = new ArrayList<Object[]>();
+    deletes.add(new Object[] { 90 });
+    deletes.add(new Object[] { 40 });
+    deletes.add(new Object[] { 95 });
+    Revision deleted = sequential(head, delete, deletes);
+    assertEquals(deleted, batch(head, delete, deletes, 10 + 50));
+    assertEquals(40, deleted.count(numbers.primaryKey));
+  }
+}
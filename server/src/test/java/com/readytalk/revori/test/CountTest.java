@@ -0,0 +1,129 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+public class CountTest {
+  @Test
+  public void testCountRankAndOffset() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    List<Integer> values = new ArrayList<Integer>();
+    for (int i = 0; i < 500; ++i) {
+      values.add(i * 2);
+    }
+    Collections.shuffle(values, new Random(42));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int v: values) {
+      builder.insert(Throw, numbers, v, name, String.valueOf(v));
+    }
+    Revision first = builder.commit();
+
+    builder = first.builder();
+    for (int i = 0; i < 100; ++i) {
+      builder.delete(numbers, values.get(i));
+    }
+    Revision second = builder.commit();
+
+    assertEquals(0, Revisions.Empty.count(numbers.primaryKey));
+    assertEquals(500, first.count(numbers.primaryKey));
+    assertEquals(400, second.count(numbers.primaryKey));
+    assertEquals(1, first.count(numbers.primaryKey, 42));
+    assertEquals(0, first.count(numbers.primaryKey, 43));
+
+    assertEquals(0, first.rank(numbers.primaryKey, -1));
+    assertEquals(21, first.rank(numbers.primaryKey, 42));
+    assertEquals(22, first.rank(numbers.primaryKey, 43));
+    assertEquals(500, first.rank(numbers.primaryKey, 1000));
+
+    List<Integer> remaining = new ArrayList<Integer>(values.subList(100, 500));
+    Collections.sort(remaining);
+
+    for (int i = 0; i < remaining.size(); i += 37) {
+      assertEquals(i, second.rank(numbers.primaryKey, remaining.get(i)));
+
+      Iterator<String> it = second.queryAll(i, name, numbers.primaryKey);
+      for (int j = i; j < Math.min(i + 10, remaining.size()); ++j) {
+        assertEquals(String.valueOf(remaining.get(j)), it.next());
+      }
+    }
+
+    assertFalse(second.queryAll(400, name, numbers.primaryKey).hasNext());
+  }
+
+  @Test
+  public void testMultiColumnCounts() {
+    Column<String> country = new Column<String>(String.class);
+    Column<String> city = new Column<String>(String.class);
+    Column<Integer> population = new Column<Integer>(Integer.class);
+    Table cities = new Table(cols(country, city));
+    Index byPopulation = new Index(cities, cols(population));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byPopulation);
+    builder.insert(Throw, cities, "France", "Paris", population, 2);
+    builder.insert(Throw, cities, "France", "Lyon", population, 1);
+    builder.insert(Throw, cities, "USA", "Denver", population, 1);
+    builder.insert(Throw, cities, "USA", "Boston", population, 1);
+    builder.insert(Throw, cities, "USA", "Chicago", population, 3);
+    builder.insert(Throw, cities, "China", "Beijing", population, 20);
+    Revision head = builder.commit();
+
+    assertEquals(6, head.count(cities.primaryKey));
+    assertEquals(3, head.count(cities.primaryKey, "USA"));
+    assertEquals(0, head.count(cities.primaryKey, "Peru"));
+    assertEquals(1, head.count(cities.primaryKey, "USA", "Denver"));
+
+    assertEquals(6, head.count(byPopulation));
+    assertEquals(3, head.count(byPopulation, 1));
+
+    assertEquals(3, head.rank(cities.primaryKey, "USA"));
+    assertEquals(4, head.rank(cities.primaryKey, "USA", "Chicago"));
+    assertEquals(6, head.rank(cities.primaryKey, "Venezuela"));
+    assertEquals(3, head.rank(byPopulation, 2));
+
+    Iterator<String> it = head.queryAll(2, city, cities.primaryKey);
+    assertEquals("Paris", it.next());
+    assertEquals("Boston", it.next());
+    assertEquals("Chicago", it.next());
+    assertEquals("Denver", it.next());
+    assertFalse(it.hasNext());
+
+    it = head.queryAll(1, city, cities.primaryKey, "USA");
+    assertEquals("Chicago", it.next());
+    assertEquals("Denver", it.next());
+    assertFalse(it.hasNext());
+
+    it = head.queryAll(4, city, byPopulation);
+    assertEquals("Chicago", it.next());
+    assertEquals("Beijing", it.next());
+    assertFalse(it.hasNext());
+  }
+}
@@ -0,0 +1,86 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolvers;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+public class EqualsTest {
+  private static Revision build(Table table,
+                                Column<String> name,
+                                List<Integer> keys)
+  {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int key: keys) {
+      builder.insert(Throw, table, key, name, String.valueOf(key));
+    }
+    return builder.commit();
+  }
+
+  @Test
+  public void testIndependentlyBuiltRevisions() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    List<Integer> keys = new ArrayList<Integer>();
+    for (int i = 0; i < 200; ++i) {
+      keys.add(i);
+    }
+
+    Revision ascending = build(numbers, name, keys);
+    Collections.shuffle(keys, new Random(42));
+    Revision shuffled = build(numbers, name, keys);
+
+    assertEquals(ascending, shuffled);
+
+    RevisionBuilder builder = shuffled.builder();
+    builder.insert(Throw, numbers, 200, name, "200");
+    Revision bigger = builder.commit();
+
+    assertFalse(ascending.equals(bigger));
+
+    builder = shuffled.builder();
+    builder.insert(Throw, numbers, 200, name, "200");
+    builder.delete(numbers, 200);
+    assertEquals(ascending, builder.commit());
+
+    builder = shuffled.builder();
+    builder.table(numbers).row(7).update(name, "seven");
+    Revision renamed = builder.commit();
+
+    assertFalse(ascending.equals(renamed));
+    assertFalse(renamed.equals(ascending));
+
+    assertEquals
+      (bigger, ascending.merge
+       (shuffled, bigger, ConflictResolvers.Restrict,
+        ForeignKeyResolvers.Restrict));
+    assertTrue(ascending.merge
+               (renamed, shuffled, ConflictResolvers.Restrict,
+                ForeignKeyResolvers.Restrict).equals(renamed));
+  }
+}
@@ -17,6 +17,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
+import java.util.concurrent.ForkJoinPool;
+
 import org.junit.Test;
 
 import com.readytalk.revori.Column;
@@ -24,6 +26,7 @@ import com.readytalk.revori.DeleteTemplate;
 import com.readytalk.revori.DiffResult;
 import com.readytalk.revori.ForeignKey;
 import com.readytalk.revori.ForeignKeyException;
+import com.readytalk.revori.ForeignKeyResolver;
 import com.readytalk.revori.ForeignKeyResolvers;
 import com.readytalk.revori.InsertTemplate;
 import com.readytalk.revori.PatchTemplate;
@@ -358,6 +361,133 @@ public class ForeignKeysTest {
     } catch (ForeignKeyException e) { }
   }
 
+  @Test
+  public void testCascade() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table[] tables = new Table[10];
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < tables.length; ++i) {
+      tables[i] = new Table(cols(number));
+      if (i > 0) {
+        builder.add(new ForeignKey(tables[i], cols(number),
+                                   tables[i - 1], cols(number)));
+      }
+      for (int j = 0; j < 100; ++j) {
+        builder.insert(Throw, tables[i], j, name, i + "." + j);
+      }
+    }
+
+    builder = builder.commit().builder();
+    for (int j = 0; j < 10; ++j) {
+      builder.delete(tables[0], j);
+    }
+
+    final int[] count = new int[1];
+    Revision head = builder.commit(new ForeignKeyResolver() {
+        public Action handleBrokenReference(ForeignKey constraint,
+                                            Object[] row)
+        {
+          ++ count[0];
+          return Action.Delete;
+        }
+      });
+
+    // each broken reference should be reported exactly once, as the
+    // deletions cascade down the chain
+    assertEquals(9 * 10, count[0]);
+
+    for (Table table: tables) {
+      assertEquals(90, head.count(table.primaryKey));
+      assertNull(head.query(name, table.primaryKey, 9));
+    }
+    assertEquals("9.10", head.query(name, tables[9].primaryKey, 10));
+  }
+
+  private static Revision bulkLoad(Column<Integer> number,
+                                   Column<Integer> parent,
+                                   Column<String> name,
+                                   Table parents,
+                                   Table children,
+                                   Table grandchildren,
+                                   boolean bulk,
+                                   ForkJoinPool pool)
+  {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(new ForeignKey(children, cols(parent),
+                               parents, cols(number)));
+    builder.add(new ForeignKey(grandchildren, cols(parent),
+                               children, cols(number)));
+    Revision base = builder.commit();
+
+    ForkJoinPool old = Revisions.maintenancePool();
+    Revisions.setMaintenancePool(pool);
+    try {
+      builder = base.builder();
+      if (bulk) {
+        builder.bulkValidateForeignKeys();
+      }
+
+      // every tenth parent is missing, so a tenth of the children and
+      // of the grandchildren should be deleted
+      for (int i = 0; i < 1000; ++i) {
+        if (i % 10 != 0) {
+          builder.insert(Throw, parents, i, name, "parent" + i);
+        }
+        builder.insert(Throw, children, i, parent, i);
+        builder.insert(Throw, grandchildren, i, parent, i);
+      }
+
+      RevisionBuilder restricted = base.builder();
+      if (bulk) {
+        restricted.bulkValidateForeignKeys();
+      }
+      restricted.insert(Throw, children, 1, parent, 1);
+      try {
+        restricted.commit();
+        fail("expected ForeignKeyException");
+      } catch (ForeignKeyException e) { }
+
+      Revision head = builder.commit(ForeignKeyResolvers.Delete);
+
+      assertEquals(900, head.count(parents.primaryKey));
+      assertEquals(900, head.count(children.primaryKey));
+      assertEquals(900, head.count(grandchildren.primaryKey));
+      assertNull(head.query(parent, grandchildren.primaryKey, 10));
+      assertEquals(Integer.valueOf(11),
+                   head.query(parent, grandchildren.primaryKey, 11));
+
+      return head;
+    } finally {
+      Revisions.setMaintenancePool(old);
+    }
+  }
+
+  @Test
+  public void testBulkValidation() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<Integer> parent = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table parents = new Table(cols(number), "parents");
+    Table children = new Table(cols(number), "children");
+    Table grandchildren = new Table(cols(number), "grandchildren");
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Revision expected = bulkLoad
+        (number, parent, name, parents, children, grandchildren, false, null);
+      assertEquals(expected, bulkLoad
+                   (number, parent, name, parents, children, grandchildren,
+                    true, null));
+      assertEquals(expected, bulkLoad
+                   (number, parent, name, parents, children, grandchildren,
+                    true, pool));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
   private static void testDiff(boolean skipBrokenReferences) {
     Column<Integer> number = new Column<Integer>(Integer.class);
     Column<String> name = new Column<String>(String.class);
@@ -0,0 +1,205 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+public class ForkTest {
+  private static Revision base(Table numbers, Table others,
+                               Column<String> name, Index byName)
+  {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byName);
+    for (int i = 0; i < 1000; i += 3) {
+      builder.insert(Overwrite, numbers, i, name, "base" + i);
+      builder.insert(Overwrite, others, i, name, "base" + i);
+    }
+    return builder.commit();
+  }
+
+  private static void populate(RevisionBuilder builder, Table table,
+                               Column<String> name, int seed, int low,
+                               int high)
+  {
+    Random random = new Random(seed);
+    for (int i = 0; i < 500; ++i) {
+      int key = low + random.nextInt(high - low);
+      if (random.nextInt(4) == 0) {
+        builder.delete(table, key);
+      } else {
+        builder.insert(Overwrite, table, key, name, "name" + seed + "." + i);
+      }
+    }
+  }
+
+  private static void run(List<Thread> threads) throws Exception {
+    for (Thread thread: threads) {
+      thread.start();
+    }
+    for (Thread thread: threads) {
+      thread.join();
+    }
+  }
+
+  @Test
+  public void testTablesInParallel() throws Exception {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    final Column<String> name = new Column<String>(String.class);
+    final Table numbers = new Table(cols(number));
+    final Table others = new Table(cols(number));
+    Index byName = new Index(numbers, cols(name, number));
+
+    Revision base = base(numbers, others, name, byName);
+
+    RevisionBuilder builder = base.builder();
+    populate(builder, numbers, name, 1, 0, 1000);
+    populate(builder, others, name, 2, 0, 1000);
+    Revision expected = builder.commit();
+
+    builder = base.builder();
+    final RevisionBuilder a = builder.fork(numbers);
+    final RevisionBuilder b = builder.fork(others);
+
+    List<Thread> threads = new ArrayList<Thread>();
+    threads.add(new Thread() {
+        public void run() {
+          populate(a, numbers, name, 1, 0, 1000);
+        }
+      });
+    threads.add(new Thread() {
+        public void run() {
+          populate(b, others, name, 2, 0, 1000);
+        }
+      });
+    run(threads);
+
+    builder.join(a);
+    builder.join(b);
+    Revision head = builder.commit();
+
+    assertEquals(expected, head);
+    assertEquals(head.builder().remove(byName).commit()
+                 .builder().add(byName).commit(), head);
+  }
+
+  @Test
+  public void testRangesInParallel() throws Exception {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    final Column<String> name = new Column<String>(String.class);
+    final Table numbers = new Table(cols(number));
+    Table others = new Table(cols(number));
+    Index byName = new Index(numbers, cols(name, number));
+
+    Revision base = base(numbers, others, name, byName);
+    int[] bounds = { 0, 250, 500, 750, 1000 };
+
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < bounds.length - 1; ++i) {
+      populate(builder, numbers, name, i, bounds[i], bounds[i + 1]);
+    }
+    Revision expected = builder.commit();
+
+    builder = base.builder();
+    List<RevisionBuilder> forks = new ArrayList<RevisionBuilder>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < bounds.length - 1; ++i) {
+      final int seed = i;
+      final int low = bounds[i];
+      final int high = bounds[i + 1];
+      final RevisionBuilder fork = builder.fork
+        (numbers, i == 0 ? null : low,
+         i == bounds.length - 2 ? null : high);
+      forks.add(fork);
+      threads.add(new Thread() {
+          public void run() {
+            populate(fork, numbers, name, seed, low, high);
+          }
+        });
+    }
+    run(threads);
+
+    // the order in which forks are joined shouldn't matter
+    for (int i = forks.size() - 1; i >= 0; --i) {
+      builder.join(forks.get(i));
+    }
+
+    assertEquals(expected, builder.commit());
+  }
+
+  @Test
+  public void testErrors() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Table others = new Table(cols(number));
+    Index byName = new Index(numbers, cols(name, number));
+
+    Revision base = base(numbers, others, name, byName);
+
+    RevisionBuilder builder = base.builder();
+    builder.fork(numbers, 0, 500);
+    try {
+      builder.fork(numbers, 400, null);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+
+    builder = base.builder();
+    RevisionBuilder fork = builder.fork(numbers, 0, 500);
+    try {
+      fork.insert(Overwrite, others, 1, name, "one");
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+
+    builder = base.builder();
+    fork = builder.fork(numbers, 0, 500);
+    try {
+      fork.insert(Overwrite, numbers, 600, name, "six hundred");
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+
+    builder = base.builder();
+    fork = builder.fork(numbers);
+    try {
+      builder.insert(Overwrite, numbers, 1, name, "one");
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+
+    builder = base.builder();
+    fork = builder.fork(numbers);
+    try {
+      builder.commit();
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) { }
+
+    builder = base.builder();
+    fork = builder.fork(numbers);
+    builder.insert(Overwrite, others, 1, name, "one");
+    fork.insert(Overwrite, numbers, 1, name, "uno");
+    builder.join(fork);
+    Revision head = builder.commit();
+    assertEquals("one", head.query(name, others.primaryKey, 1));
+    assertEquals("uno", head.query(name, numbers.primaryKey, 1));
+    assertEquals("uno", head.query(name, byName, "uno", 1));
+  }
+}
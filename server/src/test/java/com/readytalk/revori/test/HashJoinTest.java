@@ -0,0 +1,229 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.ExpressionFactory.and;
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.lessThan;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.toStrings;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Join;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+
+public class HashJoinTest {
+  static void populate(RevisionBuilder builder, Table people,
+                       Table pets, Column<Integer> key,
+                       Column<String> name, Random random,
+                       int count, int keys)
+  {
+    for (int i = 0; i < count; ++i) {
+      Table table = random.nextBoolean() ? people : pets;
+      int row = random.nextInt(count);
+      switch (random.nextInt(4)) {
+      case 0:
+        builder.delete(table, row);
+        break;
+
+      case 1:
+        // each row has a "home" key, so this will often change only
+        // the name of an existing row and leave its key alone
+        builder.insert(Overwrite, table, row, key, row % keys);
+        builder.insert(Overwrite, table, row, name, "name" + i);
+        break;
+
+      default:
+        builder.insert(Overwrite, table, row, key, random.nextInt(keys));
+        builder.insert(Overwrite, table, row, name, "name" + i);
+        break;
+      }
+    }
+  }
+
+  private static List<String> diff(Revision base, Revision fork,
+                                   QueryTemplate template)
+  {
+    List<String> list = toStrings(base, fork, template);
+    Collections.sort(list);
+    return list;
+  }
+
+  private static Revision add(Revision revision, Index index) {
+    return revision.builder().add(index).commit();
+  }
+
+  @Test
+  public void testMatchesNestedLoop() {
+    Column<Integer> id = new Column<Integer>(Integer.class);
+    Column<Integer> key = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table people = new Table(cols(id));
+    Table pets = new Table(cols(id));
+    Index petsByKey = new Index(pets, cols(key));
+    Index peopleByKey = new Index(people, cols(key));
+    TableReference peopleReference = new TableReference(people);
+    TableReference petsReference = new TableReference(pets);
+
+    QueryTemplate join = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(peopleReference, name),
+                          reference(petsReference, name)),
+       new Join(Join.Type.Inner, peopleReference, petsReference),
+       equal(reference(peopleReference, key),
+             reference(petsReference, key)));
+
+    QueryTemplate filteredJoin = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(peopleReference, name),
+                          reference(petsReference, name)),
+       new Join(Join.Type.Inner, peopleReference, petsReference),
+       and(equal(reference(petsReference, key),
+                 reference(peopleReference, key)),
+           lessThan(reference(peopleReference, id),
+                    reference(petsReference, id))));
+
+    QueryTemplate outerJoin = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(peopleReference, name),
+                          reference(petsReference, name)),
+       new Join(Join.Type.LeftOuter, peopleReference, petsReference),
+       equal(reference(peopleReference, key),
+             reference(petsReference, key)));
+
+    Random random = new Random(42);
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    populate(builder, people, pets, key, name, random, 500, 50);
+    Revision first = builder.commit();
+
+    builder = first.builder();
+    populate(builder, people, pets, key, name, random, 500, 50);
+    Revision second = builder.commit();
+
+    for (QueryTemplate template:
+           Lists.newArrayList(join, filteredJoin, outerJoin))
+    {
+      // with an index on the join key, we'll use a nested loop join,
+      // which serves as our reference
+      List<String> expected = diff
+        (add(first, petsByKey), add(second, petsByKey), template);
+
+      assertEquals(expected, diff(first, second, template));
+      assertEquals(diff(Revisions.Empty, add(second, petsByKey), template),
+                   diff(Revisions.Empty, second, template));
+      assertEquals(diff(add(first, petsByKey), Revisions.Empty, template),
+                   diff(first, Revisions.Empty, template));
+
+      // likewise with the hash table built from the other side
+      expected = diff
+        (add(first, peopleByKey), add(second, peopleByKey), template);
+
+      assertEquals(expected, diff(first, second, template));
+    }
+  }
+
+  @Test
+  public void testChangedJoinColumn() {
+    Column<Integer> aId = new Column<Integer>(Integer.class);
+    Column<Integer> x = new Column<Integer>(Integer.class);
+    Column<Integer> y = new Column<Integer>(Integer.class);
+    Column<Integer> bId = new Column<Integer>(Integer.class);
+    Column<Integer> bx = new Column<Integer>(Integer.class);
+    Column<Integer> z = new Column<Integer>(Integer.class);
+    Table a = new Table(cols(aId));
+    Table b = new Table(cols(bId));
+    TableReference aReference = new TableReference(a);
+    TableReference bReference = new TableReference(b);
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.insert(Overwrite, a, 0, x, 1);
+    builder.insert(Overwrite, a, 0, y, 5);
+    for (int i = 0; i < 5; ++i) {
+      builder.insert(Overwrite, b, i, bx, 100 + i);
+    }
+    builder.insert(Overwrite, b, 5, bx, 1);
+    builder.insert(Overwrite, b, 5, z, 4);
+    Revision first = builder.commit();
+
+    // b's row 5 no longer matches a's row 0, but, since bx isn't
+    // selected, that row is unchanged as far as the query is
+    // concerned, so the join must not be driven from b's side
+    builder = first.builder();
+    builder.insert(Overwrite, a, 0, y, 3);
+    builder.insert(Overwrite, b, 5, bx, 2);
+    Revision second = builder.commit();
+
+    QueryTemplate template = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(aReference, aId),
+                          reference(aReference, y),
+                          reference(bReference, bId),
+                          reference(bReference, z)),
+       new Join(Join.Type.Inner, aReference, bReference),
+       equal(reference(aReference, x), reference(bReference, bx)));
+
+    assertEquals(Lists.newArrayList("Deleted 0 5 5 4"),
+                 diff(first, second, template));
+    assertEquals(Lists.newArrayList("Inserted 0 5 5 4"),
+                 diff(Revisions.Empty, first, template));
+    assertEquals(Lists.newArrayList(),
+                 diff(Revisions.Empty, second, template));
+  }
+
+  @Test
+  public void testLargeJoin() {
+    Column<Integer> id = new Column<Integer>(Integer.class);
+    Column<Integer> key = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table people = new Table(cols(id));
+    Table pets = new Table(cols(id));
+    TableReference peopleReference = new TableReference(people);
+    TableReference petsReference = new TableReference(pets);
+
+    QueryTemplate join = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(peopleReference, name),
+                          reference(petsReference, name)),
+       new Join(Join.Type.Inner, peopleReference, petsReference),
+       equal(reference(peopleReference, key),
+             reference(petsReference, key)));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < 20000; ++i) {
+      builder.insert(Overwrite, people, i, key, i % 10000);
+      builder.insert(Overwrite, people, i, name, "person" + i);
+      builder.insert(Overwrite, pets, i, key, i);
+      builder.insert(Overwrite, pets, i, name, "pet" + i);
+    }
+    Revision head = builder.commit();
+
+    QueryResult result = Revisions.Empty.diff(head, join);
+    int count = 0;
+    while (result.nextRow() == QueryResult.Type.Inserted) {
+      result.nextItem();
+      result.nextItem();
+      ++ count;
+    }
+
+    assertEquals(20000, count);
+  }
+}
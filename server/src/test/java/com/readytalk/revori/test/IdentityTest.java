@@ -0,0 +1,85 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+public class IdentityTest {
+  @Test
+  public void testEqualSchemaObjectsAreInterchangeable() {
+    Column<Integer> number = new Column<Integer>(Integer.class, "number");
+    Column<String> name = new Column<String>(String.class, "name");
+    Table numbers = new Table(cols(number), "numbers");
+    Index byName = new Index(numbers, cols(name));
+
+    Column<Integer> number2 = new Column<Integer>(Integer.class, "number");
+    Column<String> name2 = new Column<String>(String.class, "name");
+    Table numbers2 = new Table(cols(number2), "numbers");
+    Index byName2 = new Index(numbers2, cols(name2));
+
+    assertEquals(number.identity(), number2.identity());
+    assertEquals(numbers.identity(), numbers2.identity());
+    assertEquals(byName.identity(), byName2.identity());
+    assertTrue(numbers2.primaryKey.isPrimary());
+    assertFalse(byName2.isPrimary());
+
+    Column<String> name3 = new Column<String>(String.class, "number");
+    assertFalse(number.identity() == name3.identity());
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byName);
+    builder.insert(Throw, numbers, 1, name, "one");
+    builder.insert(Throw, numbers2, 2, name2, "two");
+    Revision head = builder.commit();
+
+    assertEquals("one", head.query(name2, numbers2.primaryKey, 1));
+    assertEquals("two", head.query(name, numbers.primaryKey, 2));
+    assertEquals(2, head.count(byName2));
+    assertEquals(1, head.rank(byName2, "two"));
+  }
+
+  @Test
+  public void testIdentitiesDoNotPinSchemaObjects() {
+    Column<Integer> first = new Column<Integer>(Integer.class, "transient");
+    Column<Integer> second = new Column<Integer>(Integer.class, "transient");
+    int identity = first.identity();
+    assertEquals(identity, second.identity());
+
+    // an equal column holding the identity keeps it alive after the
+    // first one is dropped
+    first = null;
+    System.gc();
+    assertEquals(identity, new Column<Integer>
+                 (Integer.class, "transient").identity());
+
+    WeakReference<Column<Integer>> reference
+      = new WeakReference<Column<Integer>>(second);
+    second = null;
+    for (int i = 0; i < 100 && reference.get() != null; ++i) {
+      System.gc();
+    }
+
+    assertNull(reference.get());
+  }
+}
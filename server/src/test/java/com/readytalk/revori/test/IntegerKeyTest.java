@@ -0,0 +1,86 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Comparators;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+public class IntegerKeyTest {
+  @Test
+  public void testLongKeys() {
+    Column<Long> number = new Column<Long>(Long.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    long[] keys = { 0, Long.MAX_VALUE, -1, Long.MIN_VALUE, 1L << 40, 7 };
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (long key: keys) {
+      builder.insert(Throw, numbers, key, name, String.valueOf(key));
+    }
+    Revision head = builder.commit();
+
+    for (long key: keys) {
+      assertEquals(String.valueOf(key),
+                   head.query(name, numbers.primaryKey, key));
+    }
+    assertNull(head.query(name, numbers.primaryKey, 8L));
+
+    Iterator<String> it = head.queryAll(0, name, numbers.primaryKey);
+    assertEquals(String.valueOf(Long.MIN_VALUE), it.next());
+    assertEquals("-1", it.next());
+    assertEquals("0", it.next());
+    assertEquals("7", it.next());
+    assertEquals(String.valueOf(1L << 40), it.next());
+    assertEquals(String.valueOf(Long.MAX_VALUE), it.next());
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void testDescendingIntegerKeys() {
+    Column<Integer> number = new Column<Integer>
+      (Integer.class, "number", Comparators.Descending);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    int[] keys = { 3, Integer.MIN_VALUE, 0, Integer.MAX_VALUE, -3 };
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int key: keys) {
+      builder.insert(Throw, numbers, key, name, String.valueOf(key));
+    }
+    Revision head = builder.commit();
+
+    for (int key: keys) {
+      assertEquals(String.valueOf(key),
+                   head.query(name, numbers.primaryKey, key));
+    }
+
+    Iterator<String> it = head.queryAll(0, name, numbers.primaryKey);
+    assertEquals(String.valueOf(Integer.MAX_VALUE), it.next());
+    assertEquals("3", it.next());
+    assertEquals("0", it.next());
+    assertEquals("-3", it.next());
+    assertEquals(String.valueOf(Integer.MIN_VALUE), it.next());
+    assertFalse(it.hasNext());
+  }
+}
@@ -18,6 +18,7 @@ import com.readytalk.revori.BinaryOperation;
 import com.readytalk.revori.Column;
 import com.readytalk.revori.DuplicateKeyResolution;
 import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
 import com.readytalk.revori.InsertTemplate;
 import com.readytalk.revori.Join;
 import com.readytalk.revori.Parameter;
@@ -455,4 +456,82 @@ public class JoinTest {
         assertNull(result.nextItem());
         assertEquals(QueryResult.Type.End, result.nextRow());	
     }
+
+    @Test
+    public void testJoinsAsIndexesChange(){
+        Column<Integer> id = new Column<Integer>(Integer.class);
+        Column<String> name = new Column<String>(String.class);
+        Column<String> nickname = new Column<String>(String.class);
+        Column<String> description = new Column<String>(String.class);
+        Table names = new Table(cols(id));
+        Table descriptions = new Table(cols(id));
+        Index byNickname = new Index(descriptions, cols(nickname, id));
+
+        RevisionBuilder builder = Revisions.Empty.builder();
+
+        builder.table(names)
+          .row(1).update(name, "tom").update(nickname, "moneybags")
+          .row(2).update(name, "ted").update(nickname, "baldy")
+          .row(3).update(name, "tim").update(nickname, "knuckles");
+
+        builder.table(descriptions)
+          .row(10).update(nickname, "moneybags").update(description, "rich")
+          .row(11).update(nickname, "baldy").update(description, "bald");
+
+        Revision first = builder.commit();
+
+        builder = first.builder();
+        builder.add(byNickname);
+        builder.delete(descriptions, 10);
+        builder.table(descriptions)
+          .row(12).update(nickname, "knuckles").update(description, "tough");
+
+        Revision second = builder.commit();
+
+        Revision third = second.builder().remove(byNickname).commit();
+
+        TableReference namesReference = new TableReference(names);
+        TableReference descriptionsReference = new TableReference(descriptions);
+
+        QueryTemplate namesInnerDescriptions = new QueryTemplate
+          (Lists.newArrayList(reference(namesReference, name),
+                reference(descriptionsReference, description)),
+           new Join
+           (Join.Type.Inner,
+            namesReference,
+            descriptionsReference),
+           new BinaryOperation
+           (BinaryOperation.Type.Equal,
+            reference(namesReference, nickname),
+            reference(descriptionsReference, nickname)));
+        Object[] parameters = {};
+
+        QueryResult result = first.diff
+          (second, namesInnerDescriptions, parameters);
+
+        assertEquals(QueryResult.Type.Deleted, result.nextRow());
+        assertEquals("tom", result.nextItem());
+        assertEquals("rich", result.nextItem());
+        assertEquals(QueryResult.Type.Inserted, result.nextRow());
+        assertEquals("tim", result.nextItem());
+        assertEquals("tough", result.nextItem());
+        assertEquals(QueryResult.Type.End, result.nextRow());
+
+        for (Revision revision: Lists.newArrayList(second, third)) {
+          result = Revisions.Empty.diff
+            (revision, namesInnerDescriptions, parameters);
+
+          assertEquals(QueryResult.Type.Inserted, result.nextRow());
+          assertEquals("ted", result.nextItem());
+          assertEquals("bald", result.nextItem());
+          assertEquals(QueryResult.Type.Inserted, result.nextRow());
+          assertEquals("tim", result.nextItem());
+          assertEquals("tough", result.nextItem());
+          assertEquals(QueryResult.Type.End, result.nextRow());
+        }
+
+        result = second.diff(third, namesInnerDescriptions, parameters);
+
+        assertEquals(QueryResult.Type.End, result.nextRow());
+    }
 }
@@ -0,0 +1,224 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.ExpressionFactory.aggregate;
+import static com.readytalk.revori.ExpressionFactory.ascending;
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.descending;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.set;
+import static com.readytalk.revori.util.Util.toStrings;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Foldables;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+
+public class LimitTest {
+  private static QueryTemplate limit
+    (TableReference things, Column<Integer> number, Column<String> name,
+     int limit, int offset, QueryTemplate.OrderExpression ... order)
+  {
+    return new QueryTemplate
+      (Lists.newArrayList((Expression) reference(things, number),
+                          reference(things, name)),
+       things, constant(true), Collections.<Expression>emptySet(),
+       Lists.newArrayList(order), limit, offset);
+  }
+
+  @Test
+  public void testLimit() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table things = new Table(cols(number));
+    TableReference thingsReference = new TableReference(things);
+
+    Revision head = OrderByTest.populate(Revisions.Empty, things, name);
+
+    // scanned in primary key order, stopping early:
+    assertEquals(Lists.newArrayList("Inserted 2 truck", "Inserted 3 planet"),
+                 toStrings(Revisions.Empty, head, limit
+                      (thingsReference, number, name, 2, 1,
+                       ascending(reference(thingsReference, number)))));
+
+    // the primary key order is also used if there are no order-by
+    // expressions:
+    assertEquals(Lists.newArrayList("Inserted 1 tree", "Inserted 2 truck"),
+                 toStrings(Revisions.Empty, head, limit
+                      (thingsReference, number, name, 2, 0)));
+
+    // sorted using a bounded heap:
+    assertEquals(Lists.newArrayList
+                 ("Inserted 2 truck", "Inserted 1 tree", "Inserted 6 tree"),
+                 toStrings(Revisions.Empty, head, limit
+                      (thingsReference, number, name, 3, 0,
+                       descending(reference(thingsReference, name)))));
+
+    assertEquals(Lists.newArrayList("Inserted 3 planet", "Inserted 4 planet"),
+                 toStrings(Revisions.Empty, head, limit
+                      (thingsReference, number, name, 2, 1,
+                       ascending(reference(thingsReference, name)))));
+
+    assertEquals(Lists.newArrayList("Inserted 5 apple", "Inserted 6 tree"),
+                 toStrings(Revisions.Empty, head, limit
+                      (thingsReference, number, name,
+                       QueryTemplate.Unlimited, 4,
+                       ascending(reference(thingsReference, number)))));
+
+    assertEquals(Lists.newArrayList(),
+                 toStrings(Revisions.Empty, head, limit
+                      (thingsReference, number, name, 0, 0,
+                       ascending(reference(thingsReference, number)))));
+
+    assertEquals(Lists.newArrayList(),
+                 toStrings(Revisions.Empty, head, limit
+                      (thingsReference, number, name, 2, 6,
+                       ascending(reference(thingsReference, number)))));
+  }
+
+  @Test
+  public void testLimitedDiff() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table things = new Table(cols(number));
+    TableReference thingsReference = new TableReference(things);
+
+    Revision base = OrderByTest.populate(Revisions.Empty, things, name);
+
+    RevisionBuilder builder = base.builder();
+    builder.delete(things, 2);
+    builder.insert(Throw, things, 7, name, "bicycle");
+    Revision head = builder.commit();
+
+    // deleting row 2 moves row 4 into the window:
+    QueryTemplate template = limit
+      (thingsReference, number, name, 3, 0,
+       ascending(reference(thingsReference, number)));
+
+    assertEquals(Lists.newArrayList("Deleted 2 truck", "Inserted 4 planet"),
+                 toStrings(base, head, template));
+
+    assertEquals(Lists.newArrayList("Deleted 4 planet", "Inserted 2 truck"),
+                 toStrings(head, base, template));
+
+    assertEquals(Lists.newArrayList(), toStrings(base, base, template));
+
+    // inserting row 7 moves row 4 out of the window:
+    template = limit
+      (thingsReference, number, name, 3, 0,
+       ascending(reference(thingsReference, name)));
+
+    assertEquals(Lists.newArrayList("Deleted 4 planet", "Inserted 7 bicycle"),
+                 toStrings(base, head, template));
+
+    // changes outside the window have no effect:
+    builder = base.builder();
+    builder.table(things).row(6).update(name, "tractor");
+    assertEquals(Lists.newArrayList(),
+                 toStrings(base, builder.commit(), template));
+  }
+
+  @Test
+  public void testLimitedAggregate() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table things = new Table(cols(number));
+    TableReference thingsReference = new TableReference(things);
+
+    Revision base = OrderByTest.populate(Revisions.Empty, things, name);
+
+    QueryTemplate template = new QueryTemplate
+      (Lists.newArrayList(reference(thingsReference, name),
+                          aggregate(Integer.class, Foldables.Count)),
+       thingsReference, constant(true),
+       set(reference(thingsReference, name)),
+       Lists.newArrayList
+       (descending(aggregate(Integer.class, Foldables.Count)),
+        ascending(reference(thingsReference, name))), 2, 0);
+
+    assertEquals(Lists.newArrayList("Inserted planet 2", "Inserted tree 2"),
+                 toStrings(Revisions.Empty, base, template));
+
+    RevisionBuilder builder = base.builder();
+    builder.delete(things, 3);
+    Revision head = builder.commit();
+
+    // unlike an unlimited aggregate query, the diff is between the
+    // windows of the two revisions, not between individual groups
+    assertEquals(Lists.newArrayList("Deleted planet 2", "Inserted apple 1"),
+                 toStrings(base, head, template));
+  }
+
+  @Test
+  public void testInvalidLimit() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table things = new Table(cols(number));
+    TableReference thingsReference = new TableReference(things);
+
+    try {
+      limit(thingsReference, number, name, -2, 0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+
+    try {
+      limit(thingsReference, number, name, 1, -1);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void testTemplateComparison() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table things = new Table(cols(number));
+    TableReference thingsReference = new TableReference(things);
+
+    QueryTemplate unlimited = limit
+      (thingsReference, number, name, QueryTemplate.Unlimited, 0);
+    QueryTemplate huge = limit
+      (thingsReference, number, name, Integer.MAX_VALUE, 0);
+
+    // the difference between these limits overflows an int
+    assertTrue(unlimited.compareTo(huge) < 0);
+    assertTrue(huge.compareTo(unlimited) > 0);
+
+    QueryTemplate ascending = limit
+      (thingsReference, number, name, 2, 0,
+       ascending(reference(thingsReference, name)));
+    QueryTemplate descending = limit
+      (thingsReference, number, name, 2, 0,
+       descending(reference(thingsReference, name)));
+
+    assertFalse(ascending.equals(descending));
+    assertEquals(-ascending.compareTo(descending),
+                 descending.compareTo(ascending));
+    assertFalse(ascending.equals(limit(thingsReference, number, name, 2, 0)));
+    assertEquals(ascending, limit
+                 (thingsReference, number, name, 2, 0,
+                  ascending(reference(thingsReference, name))));
+  }
+}
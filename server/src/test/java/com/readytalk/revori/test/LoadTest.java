@@ -0,0 +1,212 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.DuplicateKeyResolution.Skip;
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.ExpressionFactory.aggregate;
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.BinaryOperation;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.DuplicateKeyException;
+import com.readytalk.revori.Foldables;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Parameter;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.View;
+
+public class LoadTest {
+  private static void expectSame(Revision expected,
+                                 Revision actual,
+                                 QueryTemplate query,
+                                 Object ... parameters)
+  {
+    QueryResult e = Revisions.Empty.diff(expected, query, parameters);
+    QueryResult a = Revisions.Empty.diff(actual, query, parameters);
+    while (true) {
+      QueryResult.Type type = e.nextRow();
+      assertEquals(type, a.nextRow());
+      if (type == QueryResult.Type.End) {
+        break;
+      }
+      for (int i = 0; i < query.expressions.size(); ++i) {
+        assertEquals(e.nextItem(), a.nextItem());
+      }
+    }
+  }
+
+  @Test
+  public void testLoadMatchesInserts() {
+    Column<Integer> a = new Column<Integer>(Integer.class, "a");
+    Column<Integer> b = new Column<Integer>(Integer.class, "b");
+    Column<String> color = new Column<String>(String.class, "color");
+    Table things = new Table(cols(a, b), "things");
+    Index byColor = new Index(things, cols(color));
+
+    TableReference thingsReference = new TableReference(things);
+
+    Column<Integer> count = new Column<Integer>(Integer.class, "count");
+    View view = new View
+      (new QueryTemplate
+       (Lists.newArrayList(reference(thingsReference, color),
+                           aggregate(Integer.class, Foldables.Count)),
+        thingsReference, constant(true),
+        set(reference(thingsReference, color))),
+       Collections.emptyList(),
+       cols(color, count),
+       cols(color),
+       Lists.newArrayList(reference(thingsReference, color)),
+       "view");
+
+    String[] colors = { "red", "green", "blue", "orange", "teal" };
+
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 50; ++i) {
+      for (int j = 0; j < 20; ++j) {
+        rows.add(new Object[] { colors[(i * j) % colors.length], j, i });
+      }
+    }
+    Collections.shuffle(rows, new Random(42));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byColor);
+    builder.add(view);
+    for (Object[] row: rows) {
+      builder.insert(Throw, things, row[2], row[1], color, row[0]);
+    }
+    Revision expected = builder.commit();
+
+    builder = Revisions.Empty.builder();
+    builder.add(byColor);
+    builder.add(view);
+    assertEquals(1000, builder.load(Throw, things, cols(color, b, a), rows));
+    Revision loaded = builder.commit();
+
+    assertEquals(expected, loaded);
+
+    QueryTemplate colorEqual = new QueryTemplate
+      (Lists.newArrayList(reference(thingsReference, a),
+                          reference(thingsReference, b)),
+       thingsReference,
+       new BinaryOperation
+       (BinaryOperation.Type.Equal,
+        reference(thingsReference, color),
+        new Parameter()));
+
+    for (String c: colors) {
+      expectSame(expected, loaded, colorEqual, c);
+    }
+
+    TableReference viewReference = new TableReference(view.table);
+    expectSame
+      (expected, loaded, new QueryTemplate
+       (Lists.newArrayList(reference(viewReference, color),
+                           reference(viewReference, count)),
+        viewReference, constant(true)));
+
+    // further updates must leave the loaded revision untouched
+    builder = loaded.builder();
+    builder.delete(things, 0, 0);
+    builder.insert(Throw, things, 100, 0, color, "red");
+    Revision next = builder.commit();
+
+    expectSame(expected, loaded, colorEqual, "red");
+
+    QueryResult result = loaded.diff(next, colorEqual, "red");
+    assertEquals(QueryResult.Type.Deleted, result.nextRow());
+    assertEquals(0, result.nextItem());
+    assertEquals(0, result.nextItem());
+    assertEquals(QueryResult.Type.Inserted, result.nextRow());
+    assertEquals(100, result.nextItem());
+    assertEquals(0, result.nextItem());
+    assertEquals(QueryResult.Type.End, result.nextRow());
+  }
+
+  @Test
+  public void testLoadDuplicates() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add(new Object[] { 2, "two" });
+    rows.add(new Object[] { 1, "one" });
+    rows.add(new Object[] { 2, "deux" });
+
+    try {
+      Revisions.Empty.builder().load(Throw, numbers, cols(number, name), rows);
+      fail("expected DuplicateKeyException");
+    } catch (DuplicateKeyException e) { }
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    assertEquals(2, builder.load(Skip, numbers, cols(number, name), rows));
+    Revision skipped = builder.commit();
+
+    assertEquals("one", skipped.query(numbers.primaryKey, 1, name));
+    assertEquals("two", skipped.query(numbers.primaryKey, 2, name));
+
+    builder = Revisions.Empty.builder();
+    assertEquals(2, builder.load(Overwrite, numbers, cols(number, name), rows));
+    Revision overwritten = builder.commit();
+
+    assertEquals("one", overwritten.query(numbers.primaryKey, 1, name));
+    assertEquals("deux", overwritten.query(numbers.primaryKey, 2, name));
+  }
+
+  @Test
+  public void testLoadIntoPopulatedTable() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.insert(Throw, numbers, 1, name, "one");
+    builder.insert(Throw, numbers, 3, name, "three");
+    Revision first = builder.commit();
+
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add(new Object[] { 2, "two" });
+    rows.add(new Object[] { 3, "trois" });
+
+    builder = first.builder();
+    try {
+      builder.load(Throw, numbers, cols(number, name), rows);
+      fail("expected DuplicateKeyException");
+    } catch (DuplicateKeyException e) { }
+
+    builder = first.builder();
+    assertEquals(1, builder.load(Skip, numbers, cols(number, name), rows));
+    Revision second = builder.commit();
+
+    assertEquals("one", second.query(numbers.primaryKey, 1, name));
+    assertEquals("two", second.query(numbers.primaryKey, 2, name));
+    assertEquals("three", second.query(numbers.primaryKey, 3, name));
+    assertEquals(null, first.query(numbers.primaryKey, 2, name));
+  }
+}
@@ -0,0 +1,169 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.ExpressionFactory.and;
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.lessThan;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.toStrings;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Join;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+
+public class MergeJoinTest {
+  private static QueryTemplate join(Join.Type type,
+                                    TableReference people,
+                                    Column<Integer> peopleColumn,
+                                    TableReference pets,
+                                    Column<Integer> petsColumn,
+                                    Column<String> name)
+  {
+    return new QueryTemplate
+      (Lists.newArrayList((Expression) reference(people, name),
+                          reference(pets, name)),
+       new Join(type, people, pets),
+       equal(reference(people, peopleColumn),
+             reference(pets, petsColumn)));
+  }
+
+  private static List<String> diff(Revision base, Revision fork,
+                                   QueryTemplate template)
+  {
+    List<String> list = toStrings(base, fork, template);
+    Collections.sort(list);
+    return list;
+  }
+
+  private static Revision add(Revision revision, Index ... indexes) {
+    RevisionBuilder builder = revision.builder();
+    for (Index index: indexes) {
+      builder.add(index);
+    }
+    return builder.commit();
+  }
+
+  private static void check(Revision first, Revision second,
+                            QueryTemplate template, Index reference,
+                            Index ... indexes)
+  {
+    // with only the right side indexed, we'll use a nested loop join,
+    // which serves as our reference, whereas with both sides ordered
+    // by their join columns, we'll use a merge join
+    assertEquals
+      (diff(add(first, reference), add(second, reference), template),
+       diff(add(first, indexes), add(second, indexes), template));
+
+    assertEquals
+      (diff(Revisions.Empty, add(second, reference), template),
+       diff(Revisions.Empty, add(second, indexes), template));
+
+    assertEquals
+      (diff(add(first, reference), Revisions.Empty, template),
+       diff(add(first, indexes), Revisions.Empty, template));
+  }
+
+  @Test
+  public void testMatchesNestedLoop() {
+    Column<Integer> id = new Column<Integer>(Integer.class);
+    Column<Integer> key = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table people = new Table(cols(id));
+    Table pets = new Table(cols(id));
+    Index petsByKey = new Index(pets, cols(key, id));
+    Index peopleByKey = new Index(people, cols(key, id));
+    TableReference peopleReference = new TableReference(people);
+    TableReference petsReference = new TableReference(pets);
+
+    Random random = new Random(42);
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    HashJoinTest.populate(builder, people, pets, key, name, random, 500, 50);
+    Revision first = builder.commit();
+
+    builder = first.builder();
+    HashJoinTest.populate(builder, people, pets, key, name, random, 500, 50);
+    Revision second = builder.commit();
+
+    for (Join.Type type: Join.Type.values()) {
+      check(first, second, join
+            (type, peopleReference, key, petsReference, key, name),
+            petsByKey, petsByKey, peopleByKey);
+
+      check(first, second, new QueryTemplate
+            (Lists.newArrayList((Expression) reference(peopleReference, name),
+                                reference(petsReference, name)),
+             new Join(type, peopleReference, petsReference),
+             and(equal(reference(petsReference, key),
+                       reference(peopleReference, key)),
+                 lessThan(reference(peopleReference, id),
+                          reference(petsReference, id)))),
+            petsByKey, petsByKey, peopleByKey);
+
+      // the left side may also be ordered by its primary key
+      check(first, second, join
+            (type, peopleReference, id, petsReference, key, name),
+            petsByKey, petsByKey);
+    }
+  }
+
+  @Test
+  public void testLargeJoin() {
+    Column<Integer> id = new Column<Integer>(Integer.class);
+    Column<Integer> key = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table people = new Table(cols(id));
+    Table pets = new Table(cols(id));
+    Index petsByKey = new Index(pets, cols(key, id));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(petsByKey);
+    for (int i = 0; i < 20000; ++i) {
+      builder.insert(Overwrite, people, i, key, i);
+      builder.insert(Overwrite, people, i, name, "person" + i);
+      builder.insert(Overwrite, pets, i, key, i % 10000);
+      builder.insert(Overwrite, pets, i, name, "pet" + i);
+    }
+    Revision head = builder.commit();
+
+    QueryResult result = Revisions.Empty.diff
+      (head, join(Join.Type.LeftOuter, new TableReference(people), id,
+                  new TableReference(pets), key, name));
+    int count = 0;
+    int matched = 0;
+    while (result.nextRow() == QueryResult.Type.Inserted) {
+      result.nextItem();
+      if (result.nextItem() != null) {
+        ++ matched;
+      }
+      ++ count;
+    }
+
+    assertEquals(30000, count);
+    assertEquals(20000, matched);
+  }
+}
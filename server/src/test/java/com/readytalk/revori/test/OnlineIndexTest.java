@@ -0,0 +1,168 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.ConflictResolvers;
+import com.readytalk.revori.ForeignKeyResolvers;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.server.RevisionServer;
+import com.readytalk.revori.server.Servers;
+import com.readytalk.revori.server.SimpleRevisionServer;
+import com.readytalk.revori.subscribe.Subscription;
+
+public class OnlineIndexTest {
+  private static Revision populate(Revision base, Table numbers,
+                                   Column<String> name, Random random,
+                                   int count)
+  {
+    RevisionBuilder builder = base.builder();
+    for (int i = 0; i < count; ++i) {
+      int key = random.nextInt(1000);
+      if (random.nextInt(4) == 0) {
+        builder.delete(numbers, key);
+      } else {
+        builder.insert
+          (Overwrite, numbers, key, name, "name" + random.nextInt(100));
+      }
+    }
+    return builder.commit();
+  }
+
+  private static void write(RevisionServer server, Table numbers,
+                            Column<String> name, Random random)
+  {
+    Revision head = server.head();
+    server.merge(head, populate(head, numbers, name, random, 20));
+  }
+
+  private static Revision rebuilt(Revision revision, Index index) {
+    return revision.builder().remove(index).commit()
+      .builder().add(index).commit();
+  }
+
+  @Test
+  public void testMergeAdoptsNewIndex() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Index byName = new Index(numbers, cols(name, number));
+    Random random = new Random(42);
+
+    Revision base = populate(Revisions.Empty, numbers, name, random, 500);
+    Revision left = populate(base, numbers, name, random, 100);
+    Revision right = base.builder().add(byName).commit();
+
+    Revision expected = left.builder().add(byName).commit();
+
+    assertEquals(expected, base.merge
+                 (left, right, ConflictResolvers.Restrict,
+                  ForeignKeyResolvers.Restrict));
+
+    assertEquals(expected, base.merge
+                 (right, left, ConflictResolvers.Restrict,
+                  ForeignKeyResolvers.Restrict));
+  }
+
+  @Test
+  public void testCatchUp() throws Exception {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    final Column<String> name = new Column<String>(String.class);
+    final Table numbers = new Table(cols(number));
+    Index byName = new Index(numbers, cols(name, number));
+    final Random random = new Random(42);
+
+    final SimpleRevisionServer server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Restrict);
+    write(server, numbers, name, random);
+
+    // simulate writers which merge a change each time the index
+    // builder looks at the head, until it has looked three times
+    RevisionServer busy = new RevisionServer() {
+        private int count;
+
+        public Revision head() {
+          if (count++ < 3) {
+            write(server, numbers, name, random);
+          }
+          return server.head();
+        }
+
+        public void merge(Revision base, Revision fork) {
+          server.merge(base, fork);
+        }
+
+        public Subscription registerListener(Runnable listener) {
+          return server.registerListener(listener);
+        }
+      };
+
+    Revision head = Servers.addIndex
+      (busy, byName, new Servers.TaskHandler() {
+        public void handleTask(Runnable task) {
+          task.run();
+        }
+      }).get();
+
+    assertEquals(server.head(), head);
+    assertEquals(rebuilt(head, byName), head);
+  }
+
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Index byName = new Index(numbers, cols(name, number));
+    Random random = new Random(42);
+
+    SimpleRevisionServer server = new SimpleRevisionServer
+      (ConflictResolvers.Restrict, ForeignKeyResolvers.Restrict);
+    server.merge(Revisions.Empty,
+                 populate(Revisions.Empty, numbers, name, random, 2000));
+
+    Future<Revision> future = Servers.addIndex
+      (server, byName, new Servers.TaskHandler() {
+        public void handleTask(Runnable task) {
+          new Thread(task).start();
+        }
+      });
+
+    while (! future.isDone()) {
+      write(server, numbers, name, random);
+    }
+    future.get();
+
+    for (int i = 0; i < 5; ++i) {
+      write(server, numbers, name, random);
+    }
+
+    Revision head = server.head();
+    assertEquals(rebuilt(head, byName), head);
+
+    RevisionBuilder builder = head.builder();
+    builder.insert(Throw, numbers, 1000, name, "unique");
+    assertEquals
+      (Integer.valueOf(1000),
+       builder.commit().query(number, byName, "unique", 1000));
+  }
+}
@@ -0,0 +1,191 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.ExpressionFactory.aggregate;
+import static com.readytalk.revori.ExpressionFactory.ascending;
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.descending;
+import static com.readytalk.revori.ExpressionFactory.lessThan;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.toStrings;
+import static com.readytalk.revori.util.Util.set;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Foldables;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+
+public class OrderByTest {
+  static Revision populate(Revision base, Table things,
+                           Column<String> name)
+  {
+    RevisionBuilder builder = base.builder();
+    builder.insert(Throw, things, 1, name, "tree");
+    builder.insert(Throw, things, 2, name, "truck");
+    builder.insert(Throw, things, 3, name, "planet");
+    builder.insert(Throw, things, 4, name, "planet");
+    builder.insert(Throw, things, 5, name, "apple");
+    builder.insert(Throw, things, 6, name, "tree");
+    return builder.commit();
+  }
+
+  private static QueryTemplate orderBy
+    (TableReference things, Column<Integer> number, Column<String> name,
+     Expression test, QueryTemplate.OrderExpression ... order)
+  {
+    return new QueryTemplate
+      (Lists.newArrayList((Expression) reference(things, number),
+                          reference(things, name)),
+       things, test, Collections.<Expression>emptySet(),
+       Lists.newArrayList(order));
+  }
+
+  @Test
+  public void testOrderBy() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table things = new Table(cols(number));
+    Index thingsByName = new Index(things, cols(name));
+    TableReference thingsReference = new TableReference(things);
+
+    Revision head = populate(Revisions.Empty, things, name);
+
+    List<String> byName = Lists.newArrayList
+      ("Inserted 5 apple", "Inserted 3 planet", "Inserted 4 planet",
+       "Inserted 1 tree", "Inserted 6 tree", "Inserted 2 truck");
+
+    QueryTemplate template = orderBy
+      (thingsReference, number, name, constant(true),
+       ascending(reference(thingsReference, name)));
+
+    // sorted in memory:
+    assertEquals(byName, toStrings(Revisions.Empty, head, template));
+
+    // scanned in index order:
+    Revision indexed = head.builder().add(thingsByName).commit();
+    assertEquals(byName, toStrings(Revisions.Empty, indexed, template));
+
+    List<String> byNameDescending = Lists.newArrayList
+      ("Inserted 2 truck", "Inserted 1 tree", "Inserted 6 tree",
+       "Inserted 3 planet", "Inserted 4 planet", "Inserted 5 apple");
+
+    template = orderBy
+      (thingsReference, number, name, constant(true),
+       descending(reference(thingsReference, name)));
+
+    assertEquals(byNameDescending,
+                 toStrings(Revisions.Empty, head, template));
+    assertEquals(byNameDescending,
+                 toStrings(Revisions.Empty, indexed, template));
+
+    List<String> restricted = Lists.newArrayList
+      ("Inserted 6 tree", "Inserted 5 apple", "Inserted 4 planet");
+
+    template = orderBy
+      (thingsReference, number, name,
+       lessThan(constant(3), reference(thingsReference, number)),
+       descending(reference(thingsReference, number)));
+
+    assertEquals(restricted, toStrings(Revisions.Empty, head, template));
+    assertEquals(restricted, toStrings(Revisions.Empty, indexed, template));
+
+    // scanned in primary key order:
+    template = orderBy
+      (thingsReference, number, name,
+       lessThan(constant(3), reference(thingsReference, number)),
+       ascending(reference(thingsReference, number)));
+
+    assertEquals(Lists.reverse(restricted),
+                 toStrings(Revisions.Empty, head, template));
+  }
+
+  @Test
+  public void testOrderedDiff() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table things = new Table(cols(number));
+    Index thingsByName = new Index(things, cols(name));
+    TableReference thingsReference = new TableReference(things);
+
+    Revision base = populate(Revisions.Empty, things, name);
+
+    RevisionBuilder builder = base.builder();
+    builder.delete(things, 3);
+    builder.insert(Throw, things, 7, name, "bicycle");
+    builder.table(things).row(6).update(name, "anchor");
+    Revision head = builder.commit();
+
+    List<String> expected = Lists.newArrayList
+      ("Inserted 6 anchor", "Inserted 7 bicycle", "Deleted 3 planet",
+       "Deleted 6 tree");
+
+    QueryTemplate template = orderBy
+      (thingsReference, number, name, constant(true),
+       ascending(reference(thingsReference, name)));
+
+    assertEquals(expected, toStrings(base, head, template));
+    assertEquals(expected, toStrings
+                 (base.builder().add(thingsByName).commit(),
+                  head.builder().add(thingsByName).commit(), template));
+  }
+
+  @Test
+  public void testOrderedAggregate() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table things = new Table(cols(number));
+    TableReference thingsReference = new TableReference(things);
+
+    Revision head = populate(Revisions.Empty, things, name);
+
+    QueryTemplate template = new QueryTemplate
+      (Lists.newArrayList(reference(thingsReference, name),
+                          aggregate(Integer.class, Foldables.Count)),
+       thingsReference, constant(true),
+       set(reference(thingsReference, name)),
+       Lists.newArrayList
+       (descending(aggregate(Integer.class, Foldables.Count))));
+
+    assertEquals(Lists.newArrayList
+                 ("Inserted planet 2", "Inserted tree 2",
+                  "Inserted apple 1", "Inserted truck 1"),
+                 toStrings(Revisions.Empty, head, template));
+
+    // the aggregate in the order-by expression is distinct from the
+    // one in the expression list, but folds the same rows
+    RevisionBuilder builder = head.builder();
+    builder.insert(Throw, things, 7, name, "apple");
+    builder.insert(Throw, things, 8, name, "apple");
+    builder.delete(things, 2);
+    Revision next = builder.commit();
+
+    assertEquals(Lists.newArrayList
+                 ("Inserted apple 3", "Inserted planet 2", "Inserted tree 2"),
+                 toStrings(Revisions.Empty, next, template));
+
+    assertEquals(Lists.newArrayList
+                 ("Inserted apple 2", "Inserted truck -1"),
+                 toStrings(head, next, template));
+  }
+}
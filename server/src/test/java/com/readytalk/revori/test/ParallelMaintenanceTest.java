@@ -0,0 +1,206 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.ExpressionFactory.aggregate;
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static com.readytalk.revori.util.Util.set;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Foldables;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.View;
+
+public class ParallelMaintenanceTest {
+  @Test
+  public void testParallelMatchesSequential() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<Integer> a = new Column<Integer>(Integer.class);
+    Column<Integer> b = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Column<Integer> total = new Column<Integer>(Integer.class);
+    Table numbers = new Table(cols(number));
+    Table others = new Table(cols(number));
+    TableReference numbersReference = new TableReference(numbers);
+    Index byA = new Index(numbers, cols(a, number));
+    Index byB = new Index(numbers, cols(b, number));
+    Index byName = new Index(numbers, cols(name, number));
+    Index othersByName = new Index(others, cols(name, number));
+    View sums = new View
+      (new QueryTemplate
+       (Lists.newArrayList
+        (reference(numbersReference, a),
+         aggregate(Integer.class, Foldables.Sum,
+                   reference(numbersReference, b))),
+        numbersReference, constant(true),
+        set(reference(numbersReference, a))),
+       Collections.emptyList(),
+       cols(a, total),
+       cols(a),
+       Lists.newArrayList(reference(numbersReference, a)),
+       "sums");
+    View counts = new View
+      (new QueryTemplate
+       (Lists.newArrayList
+        (reference(numbersReference, b),
+         aggregate(Integer.class, Foldables.Count)),
+        numbersReference, constant(true),
+        set(reference(numbersReference, b))),
+       Collections.emptyList(),
+       cols(b, total),
+       cols(b),
+       Lists.newArrayList(reference(numbersReference, b)),
+       "counts");
+
+    // a null pool means sequential maintenance, which serves as our
+    // reference
+    Revision expected = null;
+    for (int threads: new int[] { 0, 1, 4, 16 }) {
+      ForkJoinPool pool = threads == 0 ? null : new ForkJoinPool(threads);
+      ForkJoinPool old = Revisions.maintenancePool();
+      Revisions.setMaintenancePool(pool);
+      try {
+        Random random = new Random(42);
+
+        RevisionBuilder builder = Revisions.Empty.builder();
+        builder.add(byA);
+        builder.add(byB);
+        builder.add(byName);
+        builder.add(othersByName);
+        builder.add(sums);
+        builder.add(counts);
+        Revision head = builder.commit();
+
+        for (int i = 0; i < 10; ++i) {
+          builder = head.builder();
+          for (int j = 0; j < 200; ++j) {
+            int key = random.nextInt(500);
+            switch (random.nextInt(3)) {
+            case 0:
+              builder.delete(numbers, key);
+              break;
+
+            case 1:
+              builder.insert(Overwrite, others, key, name, "other" + key);
+              break;
+
+            default:
+              builder.table(numbers).row(key)
+                .update(a, random.nextInt(7))
+                .update(b, random.nextInt(13))
+                .update(name, "name" + random.nextInt(50));
+              break;
+            }
+          }
+          head = builder.commit();
+        }
+
+        if (expected == null) {
+          expected = head;
+        } else {
+          assertEquals(expected, head);
+        }
+      } finally {
+        Revisions.setMaintenancePool(old);
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testQueriesAfterParallelCommit() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<Integer> a = new Column<Integer>(Integer.class);
+    Column<Integer> b = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Column<Integer> total = new Column<Integer>(Integer.class);
+    Table numbers = new Table(cols(number));
+    Index byA = new Index(numbers, cols(a, number));
+    Index byB = new Index(numbers, cols(b, number));
+    TableReference numbersReference = new TableReference(numbers);
+    View sums = new View
+      (new QueryTemplate
+       (Lists.newArrayList(reference(numbersReference, a),
+                           aggregate(Integer.class, Foldables.Sum,
+                                     reference(numbersReference, b))),
+        numbersReference, constant(true),
+        set(reference(numbersReference, a))),
+       Collections.emptyList(),
+       cols(a, total),
+       cols(a),
+       Lists.newArrayList(reference(numbersReference, a)),
+       "sums");
+    View counts = new View
+      (new QueryTemplate
+       (Lists.newArrayList(reference(numbersReference, b),
+                           aggregate(Integer.class, Foldables.Count)),
+        numbersReference, constant(true),
+        set(reference(numbersReference, b))),
+       Collections.emptyList(),
+       cols(b, total),
+       cols(b),
+       Lists.newArrayList(reference(numbersReference, b)),
+       "counts");
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    ForkJoinPool old = Revisions.maintenancePool();
+    Revisions.setMaintenancePool(pool);
+    try {
+      RevisionBuilder builder = Revisions.Empty.builder();
+      builder.add(byA);
+      builder.add(byB);
+      builder.add(sums);
+      builder.add(counts);
+      builder.table(numbers)
+        .row(1).update(a, 1).update(b, 10).update(name, "one")
+        .row(2).update(a, 1).update(b, 20).update(name, "two")
+        .row(3).update(a, 2).update(b, 10).update(name, "three");
+      Revision head = builder.commit();
+
+      assertEquals("one", head.query(name, byA, 1, 1));
+      assertEquals("three", head.query(name, byB, 10, 3));
+      assertEquals(Integer.valueOf(30),
+                   head.query(total, sums.table.primaryKey, 1));
+      assertEquals(Integer.valueOf(2),
+                   head.query(total, counts.table.primaryKey, 10));
+
+      builder = head.builder();
+      builder.delete(numbers, 1);
+      head = builder.commit();
+
+      assertEquals(null, head.query(name, byA, 1, 1));
+      assertEquals("two", head.query(name, byA, 1, 2));
+      assertEquals(Integer.valueOf(20),
+                   head.query(total, sums.table.primaryKey, 1));
+      assertEquals(Integer.valueOf(1),
+                   head.query(total, counts.table.primaryKey, 10));
+    } finally {
+      Revisions.setMaintenancePool(old);
+      pool.shutdown();
+    }
+  }
+}
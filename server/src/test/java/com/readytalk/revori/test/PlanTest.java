@@ -0,0 +1,171 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Overwrite;
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.ExpressionFactory.and;
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.greaterThan;
+import static com.readytalk.revori.ExpressionFactory.parameter;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.Join;
+import com.readytalk.revori.QueryResult;
+import com.readytalk.revori.QueryTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+
+public class PlanTest {
+  private static Revision revision(Table numbers, Column<String> name,
+                                   Index byName, Table colors,
+                                   Column<Integer> number)
+  {
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byName);
+    for (int i = 0; i < 1000; ++i) {
+      // names sort in a different order than numbers
+      builder.insert(Throw, numbers, i, name, String.valueOf(999 - i));
+    }
+    builder.insert(Throw, colors, "red", number, 3);
+    builder.insert(Throw, colors, "green", number, 500);
+    return builder.commit();
+  }
+
+  private static List<Object> query(Revision revision,
+                                    QueryTemplate template,
+                                    Object ... parameters)
+  {
+    List<Object> list = new ArrayList<Object>();
+    QueryResult result = Revisions.Empty.diff(revision, template, parameters);
+    while (result.nextRow() == QueryResult.Type.Inserted) {
+      list.add(result.nextItem());
+    }
+    return list;
+  }
+
+  @Test
+  public void testSelectiveIndexIsPreferred() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Column<String> color = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Table colors = new Table(cols(color));
+    Index byName = new Index(numbers, cols(name));
+    TableReference numbersReference = new TableReference(numbers);
+
+    Revision head = revision(numbers, name, byName, colors, number);
+
+    QueryTemplate template = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(numbersReference, number)),
+       numbersReference,
+       and(greaterThan(reference(numbersReference, number), parameter()),
+           greaterThan(reference(numbersReference, name), parameter())));
+
+    // the name test is the selective one, so rows come back in name
+    // order
+    assertEquals(Lists.newArrayList((Object) 1, 0),
+                 query(head, template, -1, "997"));
+
+    // the number test is the selective one, so rows come back in
+    // number order
+    assertEquals(Lists.newArrayList((Object) 997, 998),
+                 query(head, template, 996, "0"));
+  }
+
+  @Test
+  public void testJoinDrivenBySelectiveSide() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Column<String> color = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Table colors = new Table(cols(color));
+    Index byName = new Index(numbers, cols(name));
+    TableReference numbersReference = new TableReference(numbers);
+    TableReference colorsReference = new TableReference(colors);
+
+    Revision head = revision(numbers, name, byName, colors, number);
+
+    QueryTemplate template = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(numbersReference, name),
+                          reference(colorsReference, color)),
+       new Join(Join.Type.Inner, numbersReference, colorsReference),
+       equal(reference(numbersReference, number),
+             reference(colorsReference, number)));
+
+    Set<List<Object>> expected = new HashSet<List<Object>>();
+    expected.add(Lists.newArrayList((Object) "996", "red"));
+    expected.add(Lists.newArrayList((Object) "499", "green"));
+
+    Set<List<Object>> actual = new HashSet<List<Object>>();
+    QueryResult result = Revisions.Empty.diff(head, template);
+    while (result.nextRow() == QueryResult.Type.Inserted) {
+      actual.add(Lists.newArrayList(result.nextItem(), result.nextItem()));
+    }
+
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testJoinDiffAgainstNonEmptyBase() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Column<String> color = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Table colors = new Table(cols(color));
+    Index byName = new Index(numbers, cols(name));
+    TableReference numbersReference = new TableReference(numbers);
+    TableReference colorsReference = new TableReference(colors);
+
+    Revision base = revision(numbers, name, byName, colors, number);
+
+    // "red" no longer matches any number, but since the join column
+    // is not selected, its row looks unchanged on its own; the join
+    // must not be driven from the colors side, or it would pair "red"
+    // with the renamed number it used to match
+    RevisionBuilder builder = base.builder();
+    builder.insert(Overwrite, numbers, 3, name, "three");
+    builder.insert(Overwrite, colors, "red", number, 1000);
+    Revision head = builder.commit();
+
+    QueryTemplate template = new QueryTemplate
+      (Lists.newArrayList((Expression) reference(numbersReference, name),
+                          reference(colorsReference, color)),
+       new Join(Join.Type.Inner, numbersReference, colorsReference),
+       equal(reference(numbersReference, number),
+             reference(colorsReference, number)));
+
+    List<String> actual = new ArrayList<String>();
+    QueryResult result = base.diff(head, template);
+    while (true) {
+      QueryResult.Type type = result.nextRow();
+      if (type == QueryResult.Type.End) {
+        break;
+      }
+      actual.add(type + " " + result.nextItem() + " " + result.nextItem());
+    }
+
+    assertEquals(Lists.newArrayList("Deleted 996 red"), actual);
+  }
+}
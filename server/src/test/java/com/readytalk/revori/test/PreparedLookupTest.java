@@ -0,0 +1,136 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.PreparedLookup;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+
+public class PreparedLookupTest {
+  @Test
+  public void testLookups() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Column<String> color = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Table colors = new Table(cols(number, name));
+    Index byName = new Index(numbers, cols(name));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byName);
+    builder.insert(Throw, numbers, 1, name, "one");
+    builder.insert(Throw, numbers, 2, name, "two");
+    builder.insert(Throw, colors, 1, "one", color, "red");
+    Revision first = builder.commit();
+
+    builder = first.builder();
+    builder.insert(Throw, numbers, 3, name, "three");
+    Revision second = builder.commit();
+
+    PreparedLookup<String> nameByNumber = new PreparedLookup<String>
+      (numbers.primaryKey, name);
+    PreparedLookup<Integer> numberByName = new PreparedLookup<Integer>
+      (byName, number);
+    PreparedLookup<String> colorByKey = new PreparedLookup<String>
+      (colors.primaryKey, color);
+
+    assertEquals("one", first.query(nameByNumber, 1));
+    assertEquals("two", second.query(nameByNumber, 2));
+    assertNull(first.query(nameByNumber, 3));
+    assertEquals("three", second.query(nameByNumber, 3));
+    assertNull(Revisions.Empty.query(nameByNumber, 1));
+
+    assertEquals((Integer) 2, second.query(numberByName, "two", 2));
+    assertNull(second.query(numberByName, "two", 3));
+
+    assertEquals("red", first.query(colorByKey, 1, "one"));
+    assertEquals("red", first.query(colorByKey, new Object[] { 1, "one" }, 0));
+    assertEquals
+      ("red", first.query(colorByKey, new Object[] { 0, 1, "one" }, 1));
+    assertNull(first.query(colorByKey, 1, "two"));
+
+    try {
+      first.query(colorByKey, 1);
+      fail();
+    } catch (IllegalArgumentException e) { }
+
+    try {
+      first.query(colorByKey, new Object[] { 1 }, 0);
+      fail();
+    } catch (IllegalArgumentException e) { }
+  }
+
+  @Test
+  public void testLookupsDoNotAllocate() {
+    java.lang.management.ThreadMXBean bean
+      = ManagementFactory.getThreadMXBean();
+    if (! (bean instanceof com.sun.management.ThreadMXBean)) {
+      return;
+    }
+    com.sun.management.ThreadMXBean threads
+      = (com.sun.management.ThreadMXBean) bean;
+    if (! threads.isThreadAllocatedMemorySupported()
+        || ! threads.isThreadAllocatedMemoryEnabled())
+    {
+      return;
+    }
+
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    Integer[] keys = new Integer[1000];
+    RevisionBuilder builder = Revisions.Empty.builder();
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = i;
+      builder.insert(Throw, numbers, keys[i], name, String.valueOf(i));
+    }
+    Revision head = builder.commit();
+
+    PreparedLookup<String> lookup = new PreparedLookup<String>
+      (numbers.primaryKey, name);
+
+    long thread = Thread.currentThread().getId();
+    int found = 0;
+    // warm up, then measure
+    for (int round = 0; round < 2; ++round) {
+      long before = threads.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < 100; ++i) {
+        for (Integer key: keys) {
+          if (head.query(lookup, key) != null) {
+            ++ found;
+          }
+        }
+      }
+      long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+      if (round == 1) {
+        // allow for incidental allocation by the measurement itself,
+        // but not for anything proportional to the number of lookups
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+      }
+    }
+
+    assertEquals(2 * 100 * keys.length, found);
+  }
+}
@@ -0,0 +1,184 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.ExpressionFactory.equal;
+import static com.readytalk.revori.ExpressionFactory.lessThan;
+import static com.readytalk.revori.ExpressionFactory.parameter;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.readytalk.revori.Column;
+import com.readytalk.revori.DeleteTemplate;
+import com.readytalk.revori.DuplicateKeyException;
+import com.readytalk.revori.DuplicateKeyResolution;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.InsertTemplate;
+import com.readytalk.revori.PatchTemplate;
+import com.readytalk.revori.PreparedPatch;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+import com.readytalk.revori.UpdateTemplate;
+
+public class PreparedPatchTest {
+  private static Revision run(PatchTemplate insert,
+                              PatchTemplate update,
+                              PatchTemplate delete,
+                              boolean prepared)
+  {
+    Random random = new Random(42);
+    RevisionBuilder builder = Revisions.Empty.builder();
+
+    PreparedPatch[] patches = new PreparedPatch[] {
+      builder.prepare(insert),
+      builder.prepare(update),
+      builder.prepare(delete)
+    };
+
+    for (int i = 0; i < 2000; ++i) {
+      int key = random.nextInt(1000);
+      int type = random.nextInt(20);
+      if (type == 0) {
+        if (prepared) {
+          patches[2].apply(key / 10);
+        } else {
+          builder.apply(delete, key / 10);
+        }
+      } else if (type < 8) {
+        if (prepared) {
+          patches[1].apply(key, "updated" + i);
+        } else {
+          builder.apply(update, key, "updated" + i);
+        }
+      } else {
+        if (prepared) {
+          patches[0].apply(key, "inserted" + i);
+        } else {
+          builder.apply(insert, key, "inserted" + i);
+        }
+      }
+    }
+
+    return builder.commit();
+  }
+
+  @Test
+  public void testPreparedMatchesUnprepared() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    TableReference numbersReference = new TableReference(numbers);
+
+    PatchTemplate insert = new InsertTemplate
+      (numbers, cols(number, name),
+       Lists.newArrayList((Expression) parameter(), parameter()),
+       DuplicateKeyResolution.Overwrite);
+
+    PatchTemplate update = new UpdateTemplate
+      (numbersReference,
+       equal(reference(numbersReference, number), parameter()),
+       cols(name),
+       Lists.newArrayList((Expression) parameter()));
+
+    PatchTemplate delete = new DeleteTemplate
+      (numbersReference,
+       lessThan(reference(numbersReference, number), parameter()));
+
+    assertEquals(run(insert, update, delete, false),
+                 run(insert, update, delete, true));
+  }
+
+  @Test
+  public void testPlanFollowsIndexes() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    TableReference numbersReference = new TableReference(numbers);
+
+    PatchTemplate insert = new InsertTemplate
+      (numbers, cols(number, name),
+       Lists.newArrayList((Expression) parameter(), parameter()),
+       DuplicateKeyResolution.Overwrite);
+
+    PatchTemplate rename = new UpdateTemplate
+      (numbersReference,
+       equal(reference(numbersReference, name), parameter()),
+       cols(name),
+       Lists.newArrayList((Expression) parameter()));
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    PreparedPatch prepared = builder.prepare(rename);
+
+    builder.apply(insert, 1, "one");
+    builder.apply(insert, 2, "two");
+
+    assertEquals(1, prepared.apply("one", "uno"));
+
+    // the plan chosen above scanned the whole table; now that there
+    // is an index on name, it should use that instead
+    Index nameIndex = new Index(numbers, cols(name));
+    builder.add(nameIndex);
+
+    assertEquals(1, prepared.apply("two", "dos"));
+    assertEquals(0, prepared.apply("two", "deux"));
+
+    Revision head = builder.commit();
+
+    assertEquals("uno", head.query(name, numbers.primaryKey, 1));
+    assertEquals("dos", head.query(name, numbers.primaryKey, 2));
+    assertEquals("dos", head.query(name, nameIndex, "dos", 2));
+    assertNull(head.query(name, nameIndex, "two", 2));
+  }
+
+  @Test
+  public void testErrors() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+
+    PatchTemplate insert = new InsertTemplate
+      (numbers, cols(number, name),
+       Lists.newArrayList((Expression) parameter(), parameter()),
+       DuplicateKeyResolution.Overwrite);
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    PreparedPatch prepared = builder.prepare
+      (new InsertTemplate
+       (numbers, cols(number, name),
+        Lists.newArrayList((Expression) parameter(), parameter()),
+        DuplicateKeyResolution.Throw));
+
+    assertEquals(insert, builder.prepare(insert).template());
+
+    try {
+      prepared.apply(1);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) { }
+
+    builder = Revisions.Empty.builder();
+    prepared = builder.prepare(prepared.template());
+    prepared.apply(1, "one");
+
+    try {
+      prepared.apply(1, "uno");
+      fail("expected DuplicateKeyException");
+    } catch (DuplicateKeyException e) { }
+  }
+}
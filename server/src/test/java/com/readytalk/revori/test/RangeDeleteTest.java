@@ -0,0 +1,175 @@
+/* Copyright (c) 2010-2012, Revori Contributors
+
+   Permission to use, copy, modify, and/or distribute this software
+   for any purpose with or without fee is hereby granted, provided
+   that the above copyright notice and this permission notice appear
+   in all copies. */
+
+package com.readytalk.revori.test;
+
+import static com.readytalk.revori.DuplicateKeyResolution.Throw;
+import static com.readytalk.revori.ExpressionFactory.and;
+import static com.readytalk.revori.ExpressionFactory.constant;
+import static com.readytalk.revori.ExpressionFactory.greaterThan;
+import static com.readytalk.revori.ExpressionFactory.greaterThanOrEqual;
+import static com.readytalk.revori.ExpressionFactory.lessThan;
+import static com.readytalk.revori.ExpressionFactory.lessThanOrEqual;
+import static com.readytalk.revori.ExpressionFactory.parameter;
+import static com.readytalk.revori.ExpressionFactory.reference;
+import static com.readytalk.revori.util.Util.cols;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.readytalk.revori.Column;
+import com.readytalk.revori.DeleteTemplate;
+import com.readytalk.revori.Expression;
+import com.readytalk.revori.Index;
+import com.readytalk.revori.PatchTemplate;
+import com.readytalk.revori.Revision;
+import com.readytalk.revori.RevisionBuilder;
+import com.readytalk.revori.Revisions;
+import com.readytalk.revori.Table;
+import com.readytalk.revori.TableReference;
+
+public class RangeDeleteTest {
+  @Test
+  public void testRandomRanges() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    Index byName = new Index(numbers, cols(name));
+    TableReference numbersReference = new TableReference(numbers);
+    Expression n = reference(numbersReference, number);
+
+    PatchTemplate[] templates = new PatchTemplate[] {
+      new DeleteTemplate
+      (numbersReference, and(greaterThanOrEqual(n, parameter()),
+                             lessThanOrEqual(n, parameter()))),
+      new DeleteTemplate
+      (numbersReference, and(greaterThan(n, parameter()),
+                             lessThan(n, parameter()))),
+      new DeleteTemplate
+      (numbersReference, and(lessThan(parameter(), n),
+                             greaterThanOrEqual(parameter(), n)))
+    };
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.add(byName);
+    for (int i = 0; i < 1000; i += 2) {
+      builder.insert(Throw, numbers, i, name, String.valueOf(i));
+    }
+    Revision head = builder.commit();
+
+    Random random = new Random(42);
+    for (int i = 0; i < 100; ++i) {
+      int a = random.nextInt(1100) - 50;
+      int b = a + random.nextInt(i < 50 ? 20 : 1100);
+      int t = random.nextInt(templates.length);
+
+      builder = head.builder();
+      int count = builder.apply(templates[t], a, b);
+      Revision actual = builder.commit();
+
+      builder = head.builder();
+      int expectedCount = 0;
+      for (int j = 0; j < 1000; j += 2) {
+        if ((t == 0 ? j >= a : j > a) && (t == 1 ? j < b : j <= b)) {
+          builder.delete(numbers, j);
+          ++ expectedCount;
+        }
+      }
+      Revision expected = builder.commit();
+
+      assertEquals(expectedCount, count);
+      assertEquals(expected, actual);
+      assertEquals(500 - count, actual.count(numbers.primaryKey));
+      assertEquals(500 - count, actual.count(byName));
+    }
+  }
+
+  @Test
+  public void testEmptyRangeAfterUncommittedWrites() {
+    Column<Integer> number = new Column<Integer>(Integer.class);
+    Column<String> name = new Column<String>(String.class);
+    Table numbers = new Table(cols(number));
+    TableReference numbersReference = new TableReference(numbers);
+    Expression n = reference(numbersReference, number);
+
+    PatchTemplate delete = new DeleteTemplate
+      (numbersReference, and(greaterThanOrEqual(n, parameter()),
+                             lessThanOrEqual(n, parameter())));
+
+    for (int count = 1; count < 16; ++count) {
+      for (int a = -1; a < count * 2 + 1; a += 2) {
+        RevisionBuilder builder = Revisions.Empty.builder();
+        for (int i = 0; i < count; ++i) {
+          builder.insert(Throw, numbers, i * 2, name, String.valueOf(i));
+        }
+
+        // nothing falls in this range, but splitting the tree may
+        // still rearrange the nodes we just inserted
+        assertEquals(0, builder.apply(delete, a, a));
+
+        builder.insert(Throw, numbers, count * 2, name, "last");
+        Revision actual = builder.commit();
+
+        builder = Revisions.Empty.builder();
+        for (int i = 0; i < count; ++i) {
+          builder.insert(Throw, numbers, i * 2, name, String.valueOf(i));
+        }
+        builder.insert(Throw, numbers, count * 2, name, "last");
+        Revision expected = builder.commit();
+
+        assertEquals(count + 1, actual.count(numbers.primaryKey));
+        assertEquals(expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testTruncateAndMultiColumnKeys() {
+    Column<String> country = new Column<String>(String.class);
+    Column<String> city = new Column<String>(String.class);
+    Column<Integer> population = new Column<Integer>(Integer.class);
+    Table cities = new Table(cols(country, city));
+    TableReference citiesReference = new TableReference(cities);
+
+    RevisionBuilder builder = Revisions.Empty.builder();
+    builder.insert(Throw, cities, "France", "Paris", population, 2);
+    builder.insert(Throw, cities, "France", "Lyon", population, 1);
+    builder.insert(Throw, cities, "USA", "Denver", population, 1);
+    builder.insert(Throw, cities, "USA", "Boston", population, 1);
+    builder.insert(Throw, cities, "China", "Beijing", population, 20);
+    builder.insert(Throw, cities, "Peru", "Lima", population, 10);
+    Revision head = builder.commit();
+
+    builder = head.builder();
+    assertEquals(3, builder.apply
+                 (new DeleteTemplate
+                  (citiesReference,
+                   and(greaterThan
+                       (reference(citiesReference, country),
+                        constant("China")),
+                       lessThanOrEqual
+                       (reference(citiesReference, country),
+                        constant("Peru"))))));
+    Revision next = builder.commit();
+
+    assertEquals(3, next.count(cities.primaryKey));
+    assertEquals((Integer) 20,
+                 next.query(population, cities.primaryKey, "China", "Beijing"));
+    assertNull(next.query(population, cities.primaryKey, "France", "Paris"));
+    assertNull(next.query(population, cities.primaryKey, "Peru", "Lima"));
+    assertEquals((Integer) 1,
+                 next.query(population, cities.primaryKey, "USA", "Boston"));
+
+    builder = next.builder();
+    assertEquals(3, builder.apply
+                 (new DeleteTemplate(citiesReference, constant(true))));
+    assertEquals(Revisions.Empty, builder.commit());
+  }
+}
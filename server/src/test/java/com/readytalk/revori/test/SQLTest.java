@@ -145,4 +145,104 @@ public class SQLTest {
     assertEquals(RowSetFlag.End.ordinal(), in.read());
 
   }
+
+  @Test
+  public void testLimit() throws IOException {
+    Connection connection = new SQLServer("test").makeConnection();
+
+    assertEquals(Response.Success.ordinal(), connection.execute("create database test").read());
+
+    assertEquals(Response.NewDatabase.ordinal(), connection.execute("use database test").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table test"
+      + " ( number int32, name string, primary key ( number ) )").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("insert into test values ( 42, 'forty-two' )").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("insert into test values ( 28, 'twenty-eight' )").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("insert into test values ( 7, 'seven' )").read());
+
+    InputStream in = connection.execute("select name from test order by number limit 1 offset 1");
+
+    assertEquals(Response.RowSet.ordinal(), in.read());
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("twenty-eight", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    in = connection.execute("select name from test order by name desc limit 2");
+
+    assertEquals(Response.RowSet.ordinal(), in.read());
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("twenty-eight", readString(in));
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("seven", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+
+    in = connection.execute("select name from test limit 1");
+
+    assertEquals(Response.RowSet.ordinal(), in.read());
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("seven", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+  }
+
+  @Test
+  public void testCopy() throws IOException {
+    Connection connection = new SQLServer("test").makeConnection();
+
+    assertEquals(Response.Success.ordinal(), connection.execute("create database test").read());
+
+    assertEquals(Response.NewDatabase.ordinal(), connection.execute("use database test").read());
+
+    assertEquals(Response.Success.ordinal(), connection.execute
+     ("create table test"
+      + " ( number int64, name string, primary key ( number ) )").read());
+
+    assertEquals(Response.CopySuccess.ordinal(), connection.execute
+     ("copy test from stdin").read());
+
+    connection.execute("28,twenty-eight");
+    connection.execute("7,seven");
+
+    InputStream in = connection.execute("\\.");
+
+    assertEquals(Response.Success.ordinal(), in.read());
+    assertEquals("inserted 2 row(s)", readString(in));
+
+    // rows preceding one which can't be inserted are still committed
+    assertEquals(Response.CopySuccess.ordinal(), connection.execute
+     ("copy test from stdin").read());
+
+    connection.execute("42,forty-two");
+    connection.execute("7,sept");
+    connection.execute("13,thirteen");
+
+    in = connection.execute("\\.");
+
+    assertEquals(Response.Success.ordinal(), in.read());
+    assertEquals("inserted 1 row(s)", readString(in));
+
+    in = connection.execute("select name from test");
+
+    assertEquals(Response.RowSet.ordinal(), in.read());
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("seven", readString(in));
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("twenty-eight", readString(in));
+    assertEquals(RowSetFlag.InsertedRow.ordinal(), in.read());
+    assertEquals(RowSetFlag.Item.ordinal(), in.read());
+    assertEquals("forty-two", readString(in));
+    assertEquals(RowSetFlag.End.ordinal(), in.read());
+  }
 }